@@ -0,0 +1,277 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the subset of the S3 REST API used by S3Interface
+ * <br>It serves a single bucket of generated objects, path-style addressed:
+ * HeadBucket, ListObjectsV2 (prefix, delimiter, continuation token, start after, max keys),
+ * HeadObject and GetObject (with byte ranges)
+ * <br>The content of an object is generated on the fly so large datasets do not use memory
+ * and every response can be delayed to simulate the network latency
+ */
+public class LocalS3Server implements AutoCloseable {
+
+	private static final DateTimeFormatter ISO_FORMAT = DateTimeFormatter
+		.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+	private static final Instant LAST_MODIFIED = Instant.parse("2024-01-01T00:00:00Z");
+
+	private final String bucketName;
+	private final long latencyMillis;
+	private final List<String> keys;
+	private final Map<String, Long> sizes = new HashMap<>();
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * Starts the server on a free local port
+	 * @param bucketName the name of the served bucket
+	 * @param folders the number of folders, the objects are spread evenly between them
+	 * @param objectCount the number of objects in the bucket
+	 * @param objectSize the size in bytes of every object
+	 * @param latencyMillis the delay added before every response
+	 * @throws IOException if the server cannot be started
+	 */
+	public LocalS3Server(String bucketName, int folders, int objectCount, long objectSize, long latencyMillis) throws IOException {
+		this.bucketName = bucketName;
+		this.latencyMillis = latencyMillis;
+
+		List<String> generated = new ArrayList<>();
+		for (int i = 0; i < objectCount; i++) {
+			String key = String.format("folder-%03d/object-%08d.bin", i % folders, i);
+			generated.add(key);
+			sizes.put(key, objectSize);
+		}
+		Collections.sort(generated);
+		this.keys = generated;
+
+		this.executor = Executors.newCachedThreadPool();
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/", this::handle);
+		this.server.setExecutor(executor);
+		this.server.start();
+	}
+
+	public URI getEndpoint() {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+
+			//the path is /bucket or /bucket/key
+			String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8);
+			String[] parts = path.substring(1).split("/", 2);
+			if (!parts[0].equals(bucketName)) {
+				sendError(exchange, 404, "NoSuchBucket");
+			} else if (parts.length == 1 || parts[1].isEmpty()) {
+				if (exchange.getRequestMethod().equals("HEAD")) {
+					sendEmpty(exchange, 200, -1);
+				} else {
+					listObjects(exchange);
+				}
+			} else if (!sizes.containsKey(parts[1])) {
+				sendError(exchange, 404, "NoSuchKey");
+			} else {
+				getObject(exchange, parts[1]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void listObjects(HttpExchange exchange) throws IOException {
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		String prefix = query.getOrDefault("prefix", "");
+		String delimiter = query.get("delimiter");
+		String startAfter = query.getOrDefault("continuation-token", query.getOrDefault("start-after", ""));
+		int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+
+		StringBuilder contents = new StringBuilder();
+		List<String> commonPrefixes = new ArrayList<>();
+		int count = 0;
+		String lastKey = null;
+		boolean truncated = false;
+		for (int i = firstAfter(startAfter); i < keys.size(); i++) {
+			String key = keys.get(i);
+			if (!key.startsWith(prefix)) {
+				if (key.compareTo(prefix) > 0) {
+					break;
+				}
+				continue;
+			}
+			if (count == maxKeys) {
+				truncated = true;
+				break;
+			}
+
+			//group the keys below the delimiter in a common prefix
+			int idx = (delimiter == null) ? -1 : key.indexOf(delimiter, prefix.length());
+			if (idx != -1) {
+				String commonPrefix = key.substring(0, idx + delimiter.length());
+				if (!commonPrefixes.contains(commonPrefix)) {
+					commonPrefixes.add(commonPrefix);
+					count++;
+				}
+				lastKey = commonPrefix + Character.MAX_VALUE;
+				continue;
+			}
+			contents.append("<Contents><Key>").append(escape(key)).append("</Key>")
+				.append("<LastModified>").append(ISO_FORMAT.format(LAST_MODIFIED)).append("</LastModified>")
+				.append("<ETag>&quot;").append(eTag(key)).append("&quot;</ETag>")
+				.append("<Size>").append(sizes.get(key)).append("</Size>")
+				.append("<StorageClass>STANDARD</StorageClass></Contents>");
+			count++;
+			lastKey = key;
+		}
+
+		StringBuilder xml = new StringBuilder()
+			.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+			.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+			.append("<Name>").append(bucketName).append("</Name>")
+			.append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+			.append("<KeyCount>").append(count).append("</KeyCount>")
+			.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>")
+			.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+		if (truncated) {
+			xml.append("<NextContinuationToken>").append(escape(lastKey)).append("</NextContinuationToken>");
+		}
+		xml.append(contents);
+		for (String commonPrefix : commonPrefixes) {
+			xml.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>");
+		}
+		xml.append("</ListBucketResult>");
+
+		byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(body);
+		}
+	}
+
+	private void getObject(HttpExchange exchange, String key) throws IOException {
+		long size = sizes.get(key);
+		long start = 0;
+		long end = size - 1;
+		int status = 200;
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String[] bounds = range.substring("bytes=".length()).split("-", 2);
+			start = Long.parseLong(bounds[0]);
+			if (!bounds[1].isEmpty()) {
+				end = Math.min(end, Long.parseLong(bounds[1]));
+			}
+			status = 206;
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + size);
+		}
+
+		exchange.getResponseHeaders().add("ETag", "\"" + eTag(key) + "\"");
+		exchange.getResponseHeaders().add("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+			.format(LAST_MODIFIED.atZone(ZoneOffset.UTC)));
+		exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			sendEmpty(exchange, 200, size);
+			return;
+		}
+
+		long length = end - start + 1;
+		exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			//generate the content, byte i of an object is always (i mod 251)
+			byte[] buffer = new byte[64 * 1024];
+			long position = start;
+			while (position <= end) {
+				int chunk = (int) Math.min(buffer.length, end - position + 1);
+				for (int i = 0; i < chunk; i++) {
+					buffer[i] = (byte) ((position + i) % 251);
+				}
+				outputStream.write(buffer, 0, chunk);
+				position += chunk;
+			}
+		}
+	}
+
+	private void sendEmpty(HttpExchange exchange, int status, long contentLength) throws IOException {
+		if (contentLength >= 0) {
+			exchange.getResponseHeaders().add("Content-Length", String.valueOf(contentLength));
+		}
+		exchange.sendResponseHeaders(status, -1);
+	}
+
+	private void sendError(HttpExchange exchange, int status, String code) throws IOException {
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			sendEmpty(exchange, status, -1);
+			return;
+		}
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code>" +
+			"<Message>" + code + "</Message></Error>").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(body);
+		}
+	}
+
+	private int firstAfter(String startAfter) {
+		int idx = Collections.binarySearch(keys, startAfter);
+		return idx >= 0 ? idx + 1 : -idx - 1;
+	}
+
+	private static String eTag(String key) {
+		return String.format("%032x", key.hashCode() & 0xffffffffL);
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null) {
+			return query;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int idx = pair.indexOf('=');
+			String name = URLDecoder.decode(idx == -1 ? pair : pair.substring(0, idx), StandardCharsets.UTF_8);
+			String value = idx == -1 ? "" : URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8);
+			query.put(name, value);
+		}
+		return query;
+	}
+}
@@ -0,0 +1,114 @@
+package qteam.solutions.s3;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import software.amazon.awssdk.regions.Region;
+
+/**
+ * Measures the main S3Interface operations against the in-process LocalS3Server
+ * <br>Run with: mvn -Pbenchmark test-compile exec:exec
+ * <br>JMH options can be passed with -Djmh.args, e.g. -Djmh.args="-p latencyMillis=20 listFolder"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class S3InterfaceBenchmark {
+
+	private static final String BUCKET = "benchmark-bucket";
+
+	@Param({"2000"})
+	public int objectCount;
+
+	@Param({"65536"})
+	public long objectSize;
+
+	@Param({"0", "20"})
+	public long latencyMillis;
+
+	@Param({"SYNC", "ASYNC"})
+	public S3InterfaceConfig.Engine engine;
+
+	private LocalS3Server server;
+	private Path downloadFolder;
+	private S3Interface s3Interface;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		//the stand-in does not check signatures but the SDK needs credentials to sign the requests
+		System.setProperty("aws.accessKeyId", "benchmark");
+		System.setProperty("aws.secretAccessKey", "benchmark");
+
+		server = new LocalS3Server(BUCKET, 20, objectCount, objectSize, latencyMillis);
+		downloadFolder = Files.createTempDirectory("s3interface-benchmark");
+		s3Interface = new S3Interface(BUCKET, Region.US_EAST_1, S3InterfaceConfig.builder()
+			.endpointOverride(server.getEndpoint())
+			.downloadFolder(downloadFolder)
+			.engine(engine)
+			.build());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		s3Interface.close();
+		server.close();
+		try (Stream<Path> paths = Files.walk(downloadFolder)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public void listFolder(Blackhole blackhole) throws S3InterfaceException {
+		String cursor = null;
+		do {
+			ListResult<Resource> page = s3Interface.listFolder(null, cursor);
+			blackhole.consume(page.getResources());
+			cursor = page.getCursor();
+		} while (cursor != null);
+	}
+
+	@Benchmark
+	public Resource getResource() throws S3InterfaceException {
+		return s3Interface.getResource(randomKey());
+	}
+
+	@Benchmark
+	public File downloadFile() throws S3InterfaceException {
+		String key = randomKey();
+		return s3Interface.getAsFile(new Resource(key, key.substring(key.lastIndexOf('/') + 1), 0));
+	}
+
+	@Benchmark
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 3)
+	public File downloadFolder() throws S3InterfaceException {
+		return s3Interface.getAsFile(null);
+	}
+
+	private String randomKey() {
+		return server.getKeys().get(ThreadLocalRandom.current().nextInt(server.getKeys().size()));
+	}
+}
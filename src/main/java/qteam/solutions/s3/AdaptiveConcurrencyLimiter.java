@@ -0,0 +1,189 @@
+package qteam.solutions.s3;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Limits the number of concurrent S3 requests with an AIMD (additive increase, multiplicative decrease) controller
+ * <br>Every request completed while the limit is in use and with a healthy latency raises the limit by 1/limit,
+ * about one more request per round of requests. A throttled request halves the limit and a latency spike
+ * lowers it by a tenth. The requests started before the last decrease do not lower the limit again,
+ * they reflect the concurrency before it was lowered
+ * <br>The latency is compared to a moving average of the healthy latencies of the same type of request
+ * <br>The limit is the actual parallelism of the transfers: the slot of a GET is held until its body is read,
+ * and the executors running the transfers have as many threads as the limit can be raised to,
+ * the threads above the limit waiting for a slot
+ */
+class AdaptiveConcurrencyLimiter {
+
+	//the latency above which a request is considered a spike, as a multiple of the average latency
+	private static final double LATENCY_SPIKE_FACTOR = 3;
+	//the weight of a new latency in the moving average
+	private static final double LATENCY_SMOOTHING = 0.1;
+	//the number of requests averaged before the latency spikes are detected
+	private static final int LATENCY_WARMUP = 20;
+	private static final double THROTTLE_DECREASE = 0.5;
+	private static final double LATENCY_DECREASE = 0.9;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final boolean adaptive;
+	private final Map<S3InterfaceMetrics.Operation, double[]> averageLatencies =
+		new EnumMap<>(S3InterfaceMetrics.Operation.class);
+
+	//the non blocking requests waiting for a slot, in their arrival order
+	private final Deque<CompletableFuture<Long>> waiters = new ArrayDeque<>();
+
+	private double limit;
+	private int inFlight;
+	private long lastDecrease;
+
+	/**
+	 * @param initialLimit the concurrency allowed at the start
+	 * @param minLimit the lowest concurrency the limit can be lowered to
+	 * @param maxLimit the highest concurrency the limit can be raised to
+	 * @param adaptive if false the limit stays at its initial value
+	 */
+	AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+		this.minLimit = minLimit;
+		this.maxLimit = Math.max(minLimit, maxLimit);
+		this.adaptive = adaptive;
+		this.limit = Math.max(minLimit, Math.min(this.maxLimit, initialLimit));
+		this.lastDecrease = System.nanoTime();
+		for (S3InterfaceMetrics.Operation operation : S3InterfaceMetrics.Operation.values()) {
+			//the average latency and the number of requests averaged
+			averageLatencies.put(operation, new double[2]);
+		}
+	}
+
+	/**
+	 * Waits until a request can be sent within the limit
+	 * @return the start time of the request to be passed to the completion method
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	synchronized long acquire() throws InterruptedException {
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Waits for a slot without blocking the calling thread
+	 * @return a future completed with the start time of the request once it can be sent within the limit,
+	 * the value to be passed to the completion method. It is completed on another thread if it has to wait
+	 */
+	synchronized CompletableFuture<Long> acquireAsync() {
+		if (waiters.isEmpty() && inFlight < (int) limit) {
+			inFlight++;
+			return CompletableFuture.completedFuture(System.nanoTime());
+		}
+		CompletableFuture<Long> waiter = new CompletableFuture<>();
+		waiters.add(waiter);
+		return waiter;
+	}
+
+	/**
+	 * Completes a successful request
+	 * @param operation the type of the request, null if its latency is not meaningful, e.g. it covers the transfer
+	 * @param startNanos the value returned by acquire()
+	 */
+	synchronized void succeeded(S3InterfaceMetrics.Operation operation, long startNanos) {
+		succeeded(operation, startNanos, System.nanoTime());
+	}
+
+	/**
+	 * Completes a successful request whose slot was held after its response, e.g. while its body was read
+	 * @param operation the type of the request, null if its latency is not meaningful
+	 * @param startNanos the value returned by acquire()
+	 * @param responseNanos the time the response was received
+	 */
+	synchronized void succeeded(S3InterfaceMetrics.Operation operation, long startNanos, long responseNanos) {
+		boolean limited = inFlight >= (int) limit;
+		release();
+		if (!adaptive) {
+			return;
+		}
+		if (operation != null) {
+			double latency = responseNanos - startNanos;
+			double[] average = averageLatencies.get(operation);
+			if (average[1] >= LATENCY_WARMUP && latency > LATENCY_SPIKE_FACTOR * average[0]) {
+				decrease(startNanos, LATENCY_DECREASE);
+				return;
+			}
+			average[0] = (average[1] == 0) ? latency : average[0] + LATENCY_SMOOTHING * (latency - average[0]);
+			average[1]++;
+		}
+		//raise the limit only while it is reached, an idle limit says nothing about the capacity of S3
+		if (limited) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+			grantWaiters();
+		}
+	}
+
+	/**
+	 * Completes a request rejected by S3 because of the request rate
+	 * @param startNanos the value returned by acquire()
+	 */
+	synchronized void throttled(long startNanos) {
+		release();
+		if (adaptive) {
+			decrease(startNanos, THROTTLE_DECREASE);
+		}
+	}
+
+	/**
+	 * Completes a request failed for any other reason, the limit is not changed
+	 */
+	synchronized void failed() {
+		release();
+	}
+
+	/**
+	 * @param e the failure of a request
+	 * @return true if S3 rejected the request because of the request rate, 503 SlowDown or any throttling error
+	 */
+	static boolean isThrottled(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e instanceof AwsServiceException && 
+			(((AwsServiceException) e).statusCode() == 503 || ((AwsServiceException) e).isThrottlingException());
+	}
+
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	private void release() {
+		inFlight--;
+		notifyAll();
+		grantWaiters();
+	}
+
+	/**
+	 * Gives the free slots to the non blocking requests waiting, their sending continues outside of the lock
+	 */
+	private void grantWaiters() {
+		while (!waiters.isEmpty() && inFlight < (int) limit) {
+			inFlight++;
+			long startNanos = System.nanoTime();
+			waiters.poll().completeAsync(() -> startNanos);
+		}
+	}
+
+	private void decrease(long startNanos, double factor) {
+		if (startNanos - lastDecrease < 0) {
+			return;
+		}
+		limit = Math.max(minLimit, limit * factor);
+		lastDecrease = System.nanoTime();
+	}
+}
@@ -0,0 +1,10 @@
+package qteam.solutions.s3;
+
+/**
+ * The formats of the archives written by S3Interface.writeFolderAsArchive
+ * <br>ZIP compresses the entries with deflate, TAR stores them as is in the POSIX (pax) format
+ */
+public enum ArchiveFormat {
+	ZIP,
+	TAR
+}
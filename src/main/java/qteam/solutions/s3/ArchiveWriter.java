@@ -0,0 +1,212 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the entries of an archive to a stream, one entry at a time
+ * <br>The stream is not closed by the writer, finish() only writes the end of the archive
+ */
+abstract class ArchiveWriter {
+
+	/**
+	 * @param format the format of the archive
+	 * @param out the stream the archive is written to
+	 * @return a writer of the format
+	 */
+	static ArchiveWriter create(ArchiveFormat format, OutputStream out) {
+		return (format == ArchiveFormat.ZIP) ? new Zip(out) : new Tar(out);
+	}
+
+	/**
+	 * Starts a new entry, the content of a file entry is written next
+	 * @param name the path of the entry in the archive, ending with a slash for a folder
+	 * @param size the exact size of the content of the entry
+	 * @param lastModified the last modified time of the entry, null for the current time
+	 * @throws IOException if the stream cannot be written
+	 */
+	abstract void putEntry(String name, long size, Instant lastModified) throws IOException;
+
+	/**
+	 * Writes a part of the content of the current entry
+	 * @param content the bytes to write, consumed
+	 * @throws IOException if the stream cannot be written
+	 */
+	abstract void write(ByteBuffer content) throws IOException;
+
+	/**
+	 * Ends the current entry
+	 * @throws IOException if the stream cannot be written
+	 */
+	abstract void closeEntry() throws IOException;
+
+	/**
+	 * Writes the end of the archive and flushes the stream
+	 * @throws IOException if the stream cannot be written
+	 */
+	abstract void finish() throws IOException;
+
+	/**
+	 * Writes a ZIP archive, the entries are compressed and the sizes above 4 GiB use the Zip64 extensions
+	 */
+	private static class Zip extends ArchiveWriter {
+		private final ZipOutputStream zip;
+
+		private Zip(OutputStream out) {
+			this.zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		void putEntry(String name, long size, Instant lastModified) throws IOException {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setLastModifiedTime(FileTime.from(lastModified != null ? lastModified : Instant.now()));
+			zip.putNextEntry(entry);
+		}
+
+		@Override
+		void write(ByteBuffer content) throws IOException {
+			zip.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+			content.position(content.limit());
+		}
+
+		@Override
+		void closeEntry() throws IOException {
+			zip.closeEntry();
+		}
+
+		@Override
+		void finish() throws IOException {
+			zip.finish();
+			zip.flush();
+		}
+	}
+
+	/**
+	 * Writes a POSIX tar archive, the names longer than the ustar header allows and the sizes of 8 GiB and more
+	 * are stored in a pax extended header before the entry
+	 */
+	private static class Tar extends ArchiveWriter {
+		private static final int BLOCK_SIZE = 512;
+		//the largest size written in the 11 octal digits of the ustar header
+		private static final long MAX_USTAR_SIZE = 077777777777L;
+		private static final int MAX_USTAR_NAME = 100;
+
+		private final OutputStream out;
+		private long entryRemaining;
+		private long entrySize;
+
+		private Tar(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		void putEntry(String name, long size, Instant lastModified) throws IOException {
+			boolean folder = S3InterfaceHelper.isFolder(name);
+			long mtime = Math.max(0, (lastModified != null ? lastModified : Instant.now()).getEpochSecond());
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			//the ustar fields are ASCII, anything else goes to the pax header
+			boolean paxName = nameBytes.length > MAX_USTAR_NAME || nameBytes.length != name.length();
+			boolean paxSize = size > MAX_USTAR_SIZE;
+			if (paxName || paxSize) {
+				StringBuilder records = new StringBuilder();
+				if (paxName) {
+					records.append(paxRecord("path", name));
+				}
+				if (paxSize) {
+					records.append(paxRecord("size", Long.toString(size)));
+				}
+				byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+				out.write(header("PaxHeaders/" + Integer.toHexString(name.hashCode()), pax.length, mtime, (byte) 'x'));
+				out.write(pax);
+				pad(pax.length);
+			}
+			out.write(header(name, paxSize ? 0 : size, mtime, folder ? (byte) '5' : (byte) '0'));
+			entrySize = folder ? 0 : size;
+			entryRemaining = entrySize;
+		}
+
+		@Override
+		void write(ByteBuffer content) throws IOException {
+			if (content.remaining() > entryRemaining) {
+				throw new IOException("The content is longer than the size of the entry");
+			}
+			entryRemaining -= content.remaining();
+			out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+			content.position(content.limit());
+		}
+
+		@Override
+		void closeEntry() throws IOException {
+			if (entryRemaining != 0) {
+				throw new IOException("The content is shorter than the size of the entry");
+			}
+			pad(entrySize);
+		}
+
+		@Override
+		void finish() throws IOException {
+			//the end of the archive is two empty blocks
+			out.write(new byte[2 * BLOCK_SIZE]);
+			out.flush();
+		}
+
+		private void pad(long length) throws IOException {
+			int padding = (int) ((BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE);
+			out.write(new byte[padding]);
+		}
+
+		private static byte[] header(String name, long size, long mtime, byte type) {
+			byte[] header = new byte[BLOCK_SIZE];
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, MAX_USTAR_NAME));
+			octal(header, 100, 8, (type == '5') ? 0755 : 0644);
+			octal(header, 108, 8, 0);
+			octal(header, 116, 8, 0);
+			octal(header, 124, 12, size);
+			octal(header, 136, 12, mtime);
+			header[156] = type;
+			System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+			header[263] = '0';
+			header[264] = '0';
+			//the checksum is computed with its own field filled with spaces
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			int checksum = 0;
+			for (byte b : header) {
+				checksum += b & 0xff;
+			}
+			octal(header, 148, 7, checksum);
+			return header;
+		}
+
+		/**
+		 * Writes a number as zero padded octal digits followed by a NUL
+		 */
+		private static void octal(byte[] header, int offset, int length, long value) {
+			String digits = Long.toOctalString(value);
+			int padding = length - 1 - digits.length();
+			for (int i = 0; i < length - 1; i++) {
+				header[offset + i] = (byte) (i < padding ? '0' : digits.charAt(i - padding));
+			}
+			header[offset + length - 1] = 0;
+		}
+
+		/**
+		 * @return a pax record, its length counts the digits of the length itself
+		 */
+		private static String paxRecord(String keyword, String value) {
+			int length = (" " + keyword + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+			int total = length + Integer.toString(length).length();
+			if (Integer.toString(total).length() != Integer.toString(length).length()) {
+				total++;
+			}
+			return total + " " + keyword + "=" + value + "\n";
+		}
+	}
+}
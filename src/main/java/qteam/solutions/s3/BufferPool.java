@@ -0,0 +1,38 @@
+package qteam.solutions.s3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Heap buffers reused by the transfers of the instances sharing the client resources
+ * so no buffer is allocated per file
+ * <br>At most maxIdle buffers are kept between two transfers, a transfer finding none allocates its own
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final BlockingQueue<byte[]> buffers;
+
+	/**
+	 * @param bufferSize the size of the buffers
+	 * @param maxIdle the maximum number of buffers kept while unused
+	 */
+	BufferPool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(maxIdle);
+	}
+
+	/**
+	 * @return a buffer to be given back with release() once the transfer is done
+	 */
+	byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		return (buffer == null) ? new byte[bufferSize] : buffer;
+	}
+
+	/**
+	 * @param buffer a buffer returned by acquire(), dropped if enough buffers are kept already
+	 */
+	void release(byte[] buffer) {
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,45 @@
+package qteam.solutions.s3;
+
+/**
+ * Snapshot of the counters of a cache
+ */
+public class CacheStats {
+	private final long hits;
+	private final long misses;
+	private final long negativeHits;
+	private final long size;
+
+	public CacheStats(long hits, long misses, long negativeHits, long size) {
+		this.hits = hits;
+		this.misses = misses;
+		this.negativeHits = negativeHits;
+		this.size = size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of lookups answered by a cached not found result
+	 */
+	public long getNegativeHits() {
+		return negativeHits;
+	}
+
+	/**
+	 * @return the number of entries in the cache
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "hits: " + hits + ", misses: " + misses + ", negative hits: " + negativeHits + ", size: " + size;
+	}
+}
@@ -0,0 +1,352 @@
+package qteam.solutions.s3;
+
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The S3 clients, executors, concurrency limiter and metrics of a region, and the local stores of its buckets
+ * <br>An S3Interface created with a constructor owns its resources, the instances created by an
+ * S3InterfaceFactory share the resources of their region and leave them open when closed
+ */
+class ClientResources implements AutoCloseable {
+
+	private final S3InterfaceConfig config;
+	private final S3Client s3Client;
+	private final S3AsyncClient s3AsyncClient;
+	private final S3InterfaceMetrics metrics;
+	private final AdaptiveConcurrencyLimiter limiter;
+	private final AdaptiveConcurrencyLimiter asyncLimiter;
+	private final ExecutorService executor;
+	private final ExecutorService rangeExecutor;
+	private final ExecutorService listingExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final BufferPool bufferPool;
+	//the listing indexes opened by the instances, by index file
+	private final Map<Path, ListingIndex> listingIndexes = new ConcurrentHashMap<>();
+	//the download journals opened by the instances, by state folder
+	private final Map<Path, DownloadJournal> journals = new ConcurrentHashMap<>();
+	//the metadata caches of the buckets, by bucket
+	private final Map<String, MetadataCache> metadataCaches = new ConcurrentHashMap<>();
+	//the local object caches of the buckets, by cache folder of the bucket
+	private final Map<Path, ObjectCache> objectCaches = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the clients and the executors of a region
+	 * @param region the region of the buckets
+	 * @param config the tuning options of the instances
+	 */
+	ClientResources(Region region, S3InterfaceConfig config) {
+		this.config = config;
+		this.metrics = new S3InterfaceMetrics(this::getExecutorQueueDepth, this::getConcurrencyLimit);
+		//the requests of the blocking client start at the concurrency of its threads and grow up to its
+		//connection pool, never above it so no request waits for a pooled connection
+		int maxConcurrency = config.getMaxConnections();
+		int concurrency = Math.min(maxConcurrency, 
+			config.getDownloadThreads() + config.getMultipartDownloadThreads() + config.getListingParallelism());
+		this.limiter = new AdaptiveConcurrencyLimiter(concurrency, 1, maxConcurrency, config.isAdaptiveConcurrency());
+		//the GETs of the async engine have their own limit, up to the connections of its client
+		this.asyncLimiter = (config.getEngine() == S3InterfaceConfig.Engine.ASYNC) ?
+			new AdaptiveConcurrencyLimiter(config.getMaxInFlightRequests(), 1, config.getMaxInFlightRequests(), 
+				config.isAdaptiveConcurrency()) : 
+			null;
+		//the throttled requests are retried by S3Interface, each throttle lowering the limit right away,
+		//so the clients retry the other failures only and never hold a slot while backing off
+		RetryPolicy retryPolicy = RetryPolicy.builder()
+			.retryCondition(context -> !AdaptiveConcurrencyLimiter.isThrottled(context.exception()) &&
+				RetryCondition.defaultRetryCondition().shouldRetry(context))
+			.build();
+		ClientOverrideConfiguration overrideConfiguration = ClientOverrideConfiguration.builder()
+			.addMetricPublisher(metrics.sdkMetricPublisher())
+			.retryPolicy(retryPolicy)
+			.build();
+
+		//instantiate the s3 client
+		S3ClientBuilder builder = S3Client.builder()
+			.region(region)
+			.credentialsProvider(DefaultCredentialsProvider.create());
+		builder.overrideConfiguration(overrideConfiguration);
+		builder.httpClientBuilder(httpClientBuilder(config));
+		if (config.getEndpointOverride() != null) {
+			builder.endpointOverride(config.getEndpointOverride());
+			builder.forcePathStyle(true);
+		}
+		this.s3Client = builder.build();
+
+		//instantiate the async s3 client only if the async engine is used
+		if (config.getEngine() == S3InterfaceConfig.Engine.ASYNC) {
+			S3AsyncClientBuilder asyncBuilder = S3AsyncClient.builder()
+				.region(region)
+				.credentialsProvider(DefaultCredentialsProvider.create())
+				.httpClientBuilder(NettyNioAsyncHttpClient.builder()
+					.maxConcurrency(config.getMaxInFlightRequests())
+					.connectionTimeout(config.getConnectionTimeout())
+					.readTimeout(config.getSocketTimeout())
+					.connectionAcquisitionTimeout(config.getConnectionAcquisitionTimeout())
+					.tcpKeepAlive(config.isTcpKeepAlive()));
+			asyncBuilder.overrideConfiguration(overrideConfiguration);
+			if (config.getEndpointOverride() != null) {
+				asyncBuilder.endpointOverride(config.getEndpointOverride());
+				asyncBuilder.forcePathStyle(true);
+			}
+			this.s3AsyncClient = asyncBuilder.build();
+		} else {
+			this.s3AsyncClient = null;
+		}
+
+		//set a executor used for folder downloads
+		//the connection pool is sized on these thread counts, see S3InterfaceConfig.getMaxConnections
+		//with the adaptive concurrency the limiter decides how many transfers run, up to the whole pool,
+		//the threads configured are then the initial concurrency. The async engine does not transfer on
+		//these threads, its GETs are limited by the async limiter
+		boolean adaptive = config.isAdaptiveConcurrency();
+		this.executor = Executors.newFixedThreadPool(adaptive ? maxConcurrency : config.getDownloadThreads());
+		//set a separate executor for the byte-range GETs so the folder downloads waiting on them cannot starve it
+		this.rangeExecutor = Executors.newFixedThreadPool(
+			adaptive ? maxConcurrency : config.getMultipartDownloadThreads());
+		//set a executor prefetching the listing pages
+		this.listingExecutor = Executors.newCachedThreadPool();
+		//set a single scheduler running the periodic tasks of all the instances, e.g. the listing index rebuilds
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		//keep a transfer buffer per connection of the blocking client, the transfers running at once
+		this.bufferPool = new BufferPool(S3Interface.TRANSFER_BUFFER_SIZE, config.getMaxConnections());
+	}
+
+	S3Client getS3Client() {
+		return s3Client;
+	}
+
+	/**
+	 * @return the async client or null if the SYNC engine is used
+	 */
+	S3AsyncClient getS3AsyncClient() {
+		return s3AsyncClient;
+	}
+
+	S3InterfaceMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the limiter of the requests sent by the blocking client
+	 */
+	AdaptiveConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * @return the limiter of the GETs of the async engine or null if the SYNC engine is used
+	 */
+	AdaptiveConcurrencyLimiter getAsyncLimiter() {
+		return asyncLimiter;
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	ExecutorService getRangeExecutor() {
+		return rangeExecutor;
+	}
+
+	ExecutorService getListingExecutor() {
+		return listingExecutor;
+	}
+
+	ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Opens the listing index of a bucket once for all the instances sharing the resources
+	 * <br>The index is rebuilt in the background from the instance opening it, right away if it is missing
+	 * or older than the refresh interval
+	 * @param folder the folder of the index files
+	 * @param bucketName the indexed bucket
+	 * @param refresh rebuilds the index, run by the scheduler
+	 * @param refreshMillis the interval of the rebuilds, 0 to rebuild it on demand only
+	 * @return the index of the bucket
+	 * @throws S3InterfaceException if the index folder cannot be created
+	 */
+	ListingIndex getListingIndex(Path folder, String bucketName, Runnable refresh, long refreshMillis) 
+			throws S3InterfaceException {
+		Path file = folder.resolve(bucketName + ListingIndex.FILE_SUFFIX).toAbsolutePath().normalize();
+		try {
+			return listingIndexes.computeIfAbsent(file, key -> {
+				ListingIndex index;
+				try {
+					index = ListingIndex.open(folder, bucketName);
+				} catch (S3InterfaceException e) {
+					throw new UncheckedS3InterfaceException(e);
+				}
+				if (refreshMillis > 0) {
+					long age = System.currentTimeMillis() - index.getBuiltAt();
+					scheduler.scheduleWithFixedDelay(refresh, Math.max(0, refreshMillis - age), refreshMillis, 
+						TimeUnit.MILLISECONDS);
+				}
+				return index;
+			});
+		} catch (UncheckedS3InterfaceException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @param bucketName the bucket of the resources cached
+	 * @return the getResource metadata cache of a bucket, shared by the instances of the resources,
+	 * null if the cache is disabled
+	 */
+	MetadataCache getMetadataCache(String bucketName) {
+		if (config.getMetadataCacheSize() <= 0) {
+			return null;
+		}
+		return metadataCaches.computeIfAbsent(bucketName, key -> new MetadataCache(config.getMetadataCacheSize(), 
+			config.getMetadataCacheTtl(), config.getNegativeCacheTtl()));
+	}
+
+	/**
+	 * Opens the local object cache of a bucket once for all the instances sharing the resources,
+	 * the files cached are indexed by the first instance only
+	 * @param bucketName the bucket whose objects are cached
+	 * @return the cache, null if the cache is disabled
+	 * @throws S3InterfaceException if the cache folder cannot be created or read
+	 */
+	ObjectCache getObjectCache(String bucketName) throws S3InterfaceException {
+		if (config.getObjectCacheFolder() == null) {
+			return null;
+		}
+		try {
+			return objectCaches.computeIfAbsent(config.getObjectCacheFolder().resolve(bucketName).toAbsolutePath().normalize(), 
+				key -> {
+					try {
+						return ObjectCache.open(config.getObjectCacheFolder(), bucketName, 
+							config.getObjectCacheMaxBytes(), config.getObjectCacheTtl());
+					} catch (S3InterfaceException e) {
+						throw new UncheckedS3InterfaceException(e);
+					}
+				});
+		} catch (UncheckedS3InterfaceException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Opens the download journal of a bucket once for all the instances sharing the resources
+	 * @param stateFolder the folder the journal is stored in
+	 * @return the journal, null if it is used by another process
+	 * @throws S3InterfaceException if the journal file cannot be read or written
+	 */
+	DownloadJournal getJournal(Path stateFolder) throws S3InterfaceException {
+		try {
+			return journals.computeIfAbsent(stateFolder.toAbsolutePath().normalize(), key -> {
+				try {
+					return DownloadJournal.open(stateFolder);
+				} catch (S3InterfaceException e) {
+					throw new UncheckedS3InterfaceException(e);
+				}
+			});
+		} catch (UncheckedS3InterfaceException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Closes the clients and shuts the executors down once their tasks are done
+	 */
+	@Override
+	public void close() {
+		//close the S3 client
+		if (s3Client != null) {
+			s3Client.close();
+		}
+		if (s3AsyncClient != null) {
+			s3AsyncClient.close();
+		}
+		//close the executors
+		shutdownExecutor(executor);
+		shutdownExecutor(rangeExecutor);
+		shutdownExecutor(listingExecutor);
+		scheduler.shutdownNow();
+		//close the journals once no download can write to them
+		for (DownloadJournal journal : journals.values()) {
+			journal.close();
+		}
+		journals.clear();
+	}
+
+	/**
+	 * Creates the HTTP client of the blocking S3Client from the transport options of the config
+	 * @param config the tuning options of the instance
+	 * @return the builder of the HTTP client
+	 */
+	private static SdkHttpClient.Builder<?> httpClientBuilder(S3InterfaceConfig config) {
+		if (config.getHttpClientType() == S3InterfaceConfig.HttpClientType.URL_CONNECTION) {
+			//no connection pool, every thread opens its own connections
+			return UrlConnectionHttpClient.builder()
+				.connectionTimeout(config.getConnectionTimeout())
+				.socketTimeout(config.getSocketTimeout());
+		}
+		return ApacheHttpClient.builder()
+			.maxConnections(config.getMaxConnections())
+			.connectionTimeout(config.getConnectionTimeout())
+			.socketTimeout(config.getSocketTimeout())
+			.connectionAcquisitionTimeout(config.getConnectionAcquisitionTimeout())
+			.tcpKeepAlive(config.isTcpKeepAlive());
+	}
+
+	/**
+	 * @return the number of downloads able to run at once, the limit of the GETs for the async engine,
+	 * else the concurrency limit with the adaptive concurrency or the download threads without it
+	 */
+	int getDownloadCapacity() {
+		if (asyncLimiter != null) {
+			return asyncLimiter.getLimit();
+		}
+		return config.isAdaptiveConcurrency() ? limiter.getLimit() : config.getDownloadThreads();
+	}
+
+	private int getExecutorQueueDepth() {
+		return (executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+	}
+
+	private int getConcurrencyLimit() {
+		return ((limiter == null) ? 0 : limiter.getLimit()) + ((asyncLimiter == null) ? 0 : asyncLimiter.getLimit());
+	}
+
+	private static void shutdownExecutor(ExecutorService executor) {
+		if (executor != null && !executor.isShutdown()) {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+					executor.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package qteam.solutions.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Memory compact list of the resources of a listing, meant for listings of millions of keys
+ * <br>The keys are front coded in a single byte arena: every key is stored as the number of bytes
+ * it shares with the previous key followed by the rest of its UTF-8 bytes, every RESTART_INTERVAL keys
+ * one is stored in full so any key can be decoded without reading the whole arena.
+ * The sizes, last modified times and MD5 ETags are stored in primitive arrays
+ * <br>Resource objects are created on demand by get() and by the iterator, the list itself holds none
+ */
+public class CompactResourceList implements Iterable<Resource> {
+
+	//the number of keys between two keys stored in full
+	private static final int RESTART_INTERVAL = 16;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MD5_LENGTH = 16;
+	//the multipart ETag value of the ETags that are not a quoted MD5 optionally followed by the number of parts
+	private static final int OTHER_ETAG = -1;
+	private static final long UNKNOWN_LAST_MODIFIED = Long.MIN_VALUE;
+
+	private byte[] keys = new byte[INITIAL_CAPACITY * 16];
+	private int keysLength;
+	private int[] restarts = new int[INITIAL_CAPACITY / RESTART_INTERVAL];
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private long[] lastModified = new long[INITIAL_CAPACITY];
+	private byte[] md5s = new byte[INITIAL_CAPACITY * MD5_LENGTH];
+	//0 for a single part ETag, the number of parts for a multipart ETag or OTHER_ETAG
+	private int[] eTagParts = new int[INITIAL_CAPACITY];
+	//the ETags not stored as MD5, e.g. null or the ones of the S3 compatible services
+	private final Map<Integer, String> otherETags = new HashMap<>();
+	private int size;
+	private byte[] previousKey = new byte[0];
+
+	CompactResourceList() {
+	}
+
+	/**
+	 * Adds a resource at the end of the list, the listing order keeps the keys sharing their prefixes
+	 * next to each other
+	 * @param resource the resource to add
+	 */
+	void add(Resource resource) {
+		ensureCapacity(size + 1);
+		byte[] key = resource.getId().getBytes(StandardCharsets.UTF_8);
+		int shared = 0;
+		if (size % RESTART_INTERVAL == 0) {
+			restarts[size / RESTART_INTERVAL] = keysLength;
+		} else {
+			int max = Math.min(key.length, previousKey.length);
+			while (shared < max && key[shared] == previousKey[shared]) {
+				shared++;
+			}
+		}
+		ensureKeysCapacity(keysLength + 10 + key.length - shared);
+		keysLength = writeVarInt(keys, keysLength, shared);
+		keysLength = writeVarInt(keys, keysLength, key.length - shared);
+		System.arraycopy(key, shared, keys, keysLength, key.length - shared);
+		keysLength += key.length - shared;
+		previousKey = key;
+
+		sizes[size] = resource.getSize();
+		lastModified[size] = (resource.getLastModified() == null) ?
+			UNKNOWN_LAST_MODIFIED :
+			resource.getLastModified().toEpochMilli();
+		eTagParts[size] = packETag(resource.getETag(), size);
+		size++;
+	}
+
+	/**
+	 * Releases the memory reserved for the resources not added yet
+	 */
+	void trimToSize() {
+		keys = Arrays.copyOf(keys, keysLength);
+		restarts = Arrays.copyOf(restarts, (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL);
+		sizes = Arrays.copyOf(sizes, size);
+		lastModified = Arrays.copyOf(lastModified, size);
+		md5s = Arrays.copyOf(md5s, size * MD5_LENGTH);
+		eTagParts = Arrays.copyOf(eTagParts, size);
+	}
+
+	/**
+	 * @return the number of resources in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Creates the resource at a position of the list, decoding its key from the closest key stored in full
+	 * @param index the position of the resource
+	 * @return a new Resource instance
+	 * @throws IndexOutOfBoundsException if the index is not within the list
+	 */
+	public Resource get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+		Decoder decoder = new Decoder(index - index % RESTART_INTERVAL);
+		while (decoder.index < index) {
+			decoder.next();
+		}
+		return decoder.next();
+	}
+
+	/**
+	 * @return an iterator creating the resources in the order they were listed, decoding every key once
+	 */
+	@Override
+	public Iterator<Resource> iterator() {
+		return new Iterator<Resource>() {
+			private final Decoder decoder = new Decoder(0);
+
+			@Override
+			public boolean hasNext() {
+				return decoder.index < size;
+			}
+
+			@Override
+			public Resource next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return decoder.next();
+			}
+		};
+	}
+
+	/**
+	 * @return a sequential Stream creating the resources in the order they were listed
+	 */
+	public Stream<Resource> stream() {
+		return StreamSupport.stream(Spliterators.spliterator(iterator(), size,
+			Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED), false);
+	}
+
+	/**
+	 * @return the approximate number of bytes used by the list
+	 */
+	public long getMemoryUsage() {
+		return keys.length + 4L * restarts.length + 8L * sizes.length + 8L * lastModified.length +
+			md5s.length + 4L * eTagParts.length + 64L * otherETags.size();
+	}
+
+	private Resource createResource(String key, int index) {
+		Resource keyResource = S3InterfaceHelper.createResourceFromKey(key);
+		return new Resource(key, keyResource.getName(), keyResource.getType(), sizes[index], unpackETag(index),
+			lastModified[index] == UNKNOWN_LAST_MODIFIED ? null : Instant.ofEpochMilli(lastModified[index]));
+	}
+
+	/**
+	 * Stores the ETag of a resource as its MD5 bytes and its number of parts if it has the usual format
+	 */
+	private int packETag(String eTag, int index) {
+		//the usual ETag is a quoted MD5 in hex, optionally followed by a dash and the number of parts
+		if (eTag != null && eTag.length() >= 2 + 2 * MD5_LENGTH && eTag.charAt(0) == '"' &&
+			eTag.charAt(eTag.length() - 1) == '"') {
+			String hex = eTag.substring(1, 1 + 2 * MD5_LENGTH);
+			String suffix = eTag.substring(1 + 2 * MD5_LENGTH, eTag.length() - 1);
+			int parts = 0;
+			if (!suffix.isEmpty()) {
+				parts = suffix.matches("-[1-9][0-9]{0,8}") ? Integer.parseInt(suffix.substring(1)) : OTHER_ETAG;
+			}
+			if (parts != OTHER_ETAG && hex.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				for (int i = 0; i < MD5_LENGTH; i++) {
+					md5s[index * MD5_LENGTH + i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+				}
+				return parts;
+			}
+		}
+		if (eTag != null) {
+			otherETags.put(index, eTag);
+		}
+		return OTHER_ETAG;
+	}
+
+	private String unpackETag(int index) {
+		int parts = eTagParts[index];
+		if (parts == OTHER_ETAG) {
+			return otherETags.get(index);
+		}
+		StringBuilder eTag = new StringBuilder(2 * MD5_LENGTH + 12).append('"');
+		for (int i = 0; i < MD5_LENGTH; i++) {
+			int value = md5s[index * MD5_LENGTH + i] & 0xff;
+			eTag.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xf, 16));
+		}
+		if (parts > 0) {
+			eTag.append('-').append(parts);
+		}
+		return eTag.append('"').toString();
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= sizes.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, sizes.length + (sizes.length >> 1));
+		sizes = Arrays.copyOf(sizes, newCapacity);
+		lastModified = Arrays.copyOf(lastModified, newCapacity);
+		md5s = Arrays.copyOf(md5s, newCapacity * MD5_LENGTH);
+		eTagParts = Arrays.copyOf(eTagParts, newCapacity);
+		restarts = Arrays.copyOf(restarts, (newCapacity + RESTART_INTERVAL - 1) / RESTART_INTERVAL);
+	}
+
+	private void ensureKeysCapacity(int capacity) {
+		if (capacity > keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(capacity, keys.length + (keys.length >> 1)));
+		}
+	}
+
+	private static int writeVarInt(byte[] buffer, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Decodes the keys sequentially from a key stored in full
+	 */
+	private class Decoder {
+		private int index;
+		private int position;
+		private byte[] key = new byte[64];
+
+		private Decoder(int restartIndex) {
+			this.index = restartIndex;
+			this.position = (restartIndex < size) ? restarts[restartIndex / RESTART_INTERVAL] : keysLength;
+		}
+
+		private Resource next() {
+			int shared = readVarInt();
+			int suffixLength = readVarInt();
+			if (shared + suffixLength > key.length) {
+				key = Arrays.copyOf(key, Math.max(shared + suffixLength, 2 * key.length));
+			}
+			System.arraycopy(keys, position, key, shared, suffixLength);
+			position += suffixLength;
+			return createResource(new String(key, 0, shared + suffixLength, StandardCharsets.UTF_8), index++);
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = keys[position++];
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package qteam.solutions.s3;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the local folders already created during a download session
+ * so every distinct folder touches the file system only once
+ */
+class DirectoryCache {
+	private final Set<Path> existing = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger countFolders;
+
+	/**
+	 * @param countFolders counter incremented for every folder actually created
+	 */
+	DirectoryCache(AtomicInteger countFolders) {
+		this.countFolders = countFolders;
+	}
+
+	/**
+	 * Creates the folder and its parents unless it is already known to exist
+	 * @param folder the folder to be created
+	 * @throws S3InterfaceException if the folder cannot be created
+	 */
+	void ensure(Path folder) throws S3InterfaceException {
+		if (existing.contains(folder)) {
+			return;
+		}
+		S3InterfaceHelper.createFolder(folder, Optional.of(countFolders));
+		
+		//the parents exist as well, stop at the first one already known
+		for (Path path = folder; path != null && existing.add(path); path = path.getParent());
+	}
+}
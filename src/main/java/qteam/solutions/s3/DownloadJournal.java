@@ -0,0 +1,454 @@
+package qteam.solutions.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checkpoint journal of the downloads of a bucket, used to resume the downloads interrupted by a restart
+ * <br>It records the objects completely downloaded and, for the objects being downloaded, their ETag,
+ * their length, the name of their partial file and the byte ranges already written to it
+ * <br>The journal is an append only text file in the state folder of the bucket, one record per line,
+ * compacted when it is opened and once its obsolete records outnumber the live ones. It is kept outside of the
+ * download folder so it never mixes with the downloaded keys
+ * <br>The byte ranges are recorded once written to the storage device, the record is then forced to it as well.
+ * The completed downloads are kept only while a folder download including them is not finished, so an
+ * interrupted folder download skips them
+ * <br>A journal is used by one process at a time, held by a lock on the file, and shared by the instances
+ * of the process through their client resources
+ */
+class DownloadJournal implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(DownloadJournal.class);
+
+	static final String FILE_NAME = ".s3interface-journal";
+	private static final String LOCK_SUFFIX = ".lock";
+	//the journal is compacted once it has this many records more than its live ones, at the least
+	private static final int COMPACT_MIN_RECORDS = 10000;
+
+	//record types, every line is the type followed by its fields and the URL encoded key separated by tabs
+	private static final String COMPLETED = "D";
+	private static final String STARTED = "P";
+	private static final String RANGE = "R";
+	private static final String DISCARDED = "X";
+
+	private final Path file;
+	private final FileChannel lockChannel;
+	private final Map<String, String> completed = new HashMap<>();
+	private final Map<String, Partial> partials = new HashMap<>();
+	//the prefixes of the folder downloads in progress mapped to their number
+	private final Map<String, Integer> folders = new HashMap<>();
+	private FileChannel channel;
+	private BufferedWriter writer;
+	//the number of records appended since the last compaction
+	private long appended;
+
+	private DownloadJournal(Path stateFolder, FileChannel lockChannel) {
+		this.file = stateFolder.resolve(FILE_NAME);
+		this.lockChannel = lockChannel;
+	}
+
+	/**
+	 * Opens the journal of a bucket, replaying the records of the previous runs
+	 * @param stateFolder the folder the journal is stored in
+	 * @return the journal, null if it is used by another process or another set of client resources
+	 * @throws S3InterfaceException if the journal file cannot be read or written
+	 */
+	static DownloadJournal open(Path stateFolder) throws S3InterfaceException {
+		Path lockFile = stateFolder.resolve(FILE_NAME + LOCK_SUFFIX);
+		FileChannel lockChannel = null;
+		try {
+			Files.createDirectories(stateFolder);
+			lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				//held by another journal of the process
+				lock = null;
+			}
+			if (lock == null) {
+				lockChannel.close();
+				logger.warn("The journal is used by another process, the downloads are not resumable: {}", 
+					stateFolder.resolve(FILE_NAME));
+				return null;
+			}
+		} catch (IOException e) {
+			closeQuietly(lockChannel);
+			logger.error("Error locking journal: {}", lockFile);
+			throw new S3InterfaceException("Error locking journal: " + lockFile, e);
+		}
+		DownloadJournal journal = new DownloadJournal(stateFolder, lockChannel);
+		if (Files.exists(journal.file)) {
+			try (BufferedReader reader = Files.newBufferedReader(journal.file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					journal.replay(line);
+				}
+				logger.info("Loaded {} completed and {} partial downloads from journal: {}",
+					journal.completed.size(), journal.partials.size(), journal.file);
+			} catch (IOException e) {
+				closeQuietly(lockChannel);
+				logger.error("Error reading journal: {}", journal.file);
+				throw new S3InterfaceException("Error reading journal: " + journal.file, e);
+			}
+		}
+		journal.compact();
+		return journal;
+	}
+
+	/**
+	 * Checks if an object was completely downloaded by a previous run
+	 * @param key the key of the object
+	 * @param eTag the current ETag of the object
+	 * @return true if the object was downloaded with the same ETag
+	 */
+	synchronized boolean isCompleted(String key, String eTag) {
+		return eTag != null && eTag.equals(completed.get(key));
+	}
+
+	/**
+	 * @param key the key of the object
+	 * @return a copy of the state of the partial download of the object, null if none
+	 */
+	synchronized Partial getPartial(String key) {
+		Partial partial = partials.get(key);
+		return (partial == null) ? null : new Partial(partial);
+	}
+
+	/**
+	 * Records the start of the download of an object, replacing any previous state
+	 * @param key the key of the object
+	 * @param eTag the ETag of the object version being downloaded
+	 * @param length the length of the object
+	 * @param fileName the name of the partial file the object is written to, in the folder of the object
+	 */
+	synchronized void start(String key, String eTag, long length, String fileName) {
+		completed.remove(key);
+		partials.put(key, new Partial(eTag, length, fileName));
+		append(STARTED + "\t" + eTag + "\t" + length + "\t" + URLEncoder.encode(fileName, StandardCharsets.UTF_8), key,
+			false);
+	}
+
+	/**
+	 * Records a byte range as written to the partial file of an object, the record is forced to the storage device
+	 * <br>The range must be forced to the storage device before being recorded
+	 * @param key the key of the object
+	 * @param start the offset of the first byte of the range
+	 * @param end the offset following the last byte of the range
+	 */
+	synchronized void addRange(String key, long start, long end) {
+		Partial partial = partials.get(key);
+		if (partial != null) {
+			partial.addRange(start, end);
+			append(RANGE + "\t" + start + "\t" + end, key, true);
+		}
+	}
+
+	/**
+	 * Records an object as completely downloaded, it is remembered only while a folder download including it
+	 * is in progress
+	 * @param key the key of the object
+	 * @param eTag the ETag of the downloaded version, may be null
+	 */
+	synchronized void complete(String key, String eTag) {
+		boolean started = partials.remove(key) != null;
+		if (eTag != null && isInFolder(key)) {
+			completed.put(key, eTag);
+			append(COMPLETED + "\t" + eTag, key, false);
+		} else if (completed.remove(key) != null || started) {
+			append(DISCARDED, key, false);
+		}
+	}
+
+	/**
+	 * Forgets the partial download of an object, e.g. because the object changed in the bucket
+	 * @param key the key of the object
+	 */
+	synchronized void discard(String key) {
+		if (partials.remove(key) != null) {
+			append(DISCARDED, key, false);
+		}
+	}
+
+	/**
+	 * Records the start of a folder download, its files completed are remembered until it finishes
+	 * @param prefix the prefix of the keys of the folder, null for the whole bucket
+	 */
+	synchronized void startFolder(String prefix) {
+		folders.merge(prefix == null ? "" : prefix, 1, Integer::sum);
+	}
+
+	/**
+	 * Records the end of a folder download
+	 * @param prefix the prefix of the keys of the folder, null for the whole bucket
+	 * @param finished if true every file of the folder was downloaded, its completed downloads are forgotten.
+	 * Else they are kept so the next download of the folder skips them, the partial downloads are kept in any case
+	 */
+	synchronized void finishFolder(String prefix, boolean finished) {
+		String folder = (prefix == null) ? "" : prefix;
+		folders.computeIfPresent(folder, (key, count) -> (count == 1) ? null : count - 1);
+		if (finished) {
+			completed.keySet().removeIf(key -> key.startsWith(folder) && !isInFolder(key));
+			compact();
+		}
+	}
+
+	/**
+	 * Closes the journal and releases its lock
+	 */
+	@Override
+	public synchronized void close() {
+		closeWriter();
+		closeQuietly(lockChannel);
+	}
+
+	private void closeWriter() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.warn("Error closing journal: {}", file);
+			}
+			writer = null;
+			channel = null;
+		}
+	}
+
+	private boolean isInFolder(String key) {
+		for (String folder : folders.keySet()) {
+			if (key.startsWith(folder)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Error closing journal lock", e);
+			}
+		}
+	}
+
+	private void replay(String line) {
+		String[] fields = line.split("\t");
+		try {
+			String key = URLDecoder.decode(fields[fields.length - 1], StandardCharsets.UTF_8);
+			switch (fields[0]) {
+				case COMPLETED:
+					partials.remove(key);
+					completed.put(key, fields[1]);
+					break;
+				case STARTED:
+					completed.remove(key);
+					if (fields.length != 5) {
+						//without the name of its partial file the download cannot be resumed
+						partials.remove(key);
+						break;
+					}
+					partials.put(key, new Partial(fields[1], Long.parseLong(fields[2]), 
+						URLDecoder.decode(fields[3], StandardCharsets.UTF_8)));
+					break;
+				case RANGE:
+					Partial partial = partials.get(key);
+					if (partial != null) {
+						partial.addRange(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+					}
+					break;
+				case DISCARDED:
+					partials.remove(key);
+					completed.remove(key);
+					break;
+				default:
+					logger.warn("Skipping malformed journal line: {}", line);
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			//the last line may be truncated by a crash
+			logger.warn("Skipping malformed journal line: {}", line);
+		}
+	}
+
+	/**
+	 * @param durable if true the record and the ones before it are forced to the storage device
+	 */
+	private void append(String record, String key, boolean durable) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write(record + "\t" + URLEncoder.encode(key, StandardCharsets.UTF_8));
+			writer.newLine();
+			writer.flush();
+			if (durable) {
+				channel.force(false);
+			}
+		} catch (IOException e) {
+			//the journal only speeds up the next run, the download itself is not affected
+			logger.error("Error writing journal: {}", file, e);
+			return;
+		}
+		//rewrite the journal once most of its records are obsolete
+		if (++appended > COMPACT_MIN_RECORDS && appended > 2 * liveRecords()) {
+			compact();
+		}
+	}
+
+	/**
+	 * @return the number of records written by a compaction
+	 */
+	private long liveRecords() {
+		long count = completed.size();
+		for (Partial partial : partials.values()) {
+			count += 1 + partial.ranges.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Rewrites the journal with one record per known state, forced to the storage device,
+	 * then reopens it for appending
+	 */
+	private void compact() {
+		closeWriter();
+		appended = 0;
+		Path tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				BufferedWriter tempWriter = new BufferedWriter(Channels.newWriter(tempChannel, StandardCharsets.UTF_8));
+				for (Map.Entry<String, String> entry : completed.entrySet()) {
+					tempWriter.write(COMPLETED + "\t" + entry.getValue() + "\t" +
+						URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8));
+					tempWriter.newLine();
+				}
+				for (Map.Entry<String, Partial> entry : partials.entrySet()) {
+					String key = URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8);
+					Partial partial = entry.getValue();
+					tempWriter.write(STARTED + "\t" + partial.eTag + "\t" + partial.length + "\t" + 
+						URLEncoder.encode(partial.fileName, StandardCharsets.UTF_8) + "\t" + key);
+					tempWriter.newLine();
+					for (Map.Entry<Long, Long> range : partial.ranges.entrySet()) {
+						tempWriter.write(RANGE + "\t" + range.getKey() + "\t" + range.getValue() + "\t" + key);
+						tempWriter.newLine();
+					}
+				}
+				tempWriter.flush();
+				tempChannel.force(false);
+			}
+			try {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.APPEND);
+			writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			//without a journal the downloads still work but cannot be resumed
+			logger.error("Error writing journal: {}", file, e);
+		}
+	}
+
+	/**
+	 * The state of a partially downloaded object
+	 */
+	static class Partial {
+		private final String eTag;
+		private final long length;
+		private final String fileName;
+		//the written ranges, merged and sorted by start offset, mapped to their end offset
+		private final TreeMap<Long, Long> ranges;
+
+		private Partial(String eTag, long length, String fileName) {
+			this.eTag = eTag;
+			this.length = length;
+			this.fileName = fileName;
+			this.ranges = new TreeMap<>();
+		}
+
+		private Partial(Partial other) {
+			this.eTag = other.eTag;
+			this.length = other.length;
+			this.fileName = other.fileName;
+			this.ranges = new TreeMap<>(other.ranges);
+		}
+
+		String getETag() {
+			return eTag;
+		}
+
+		long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the name of the partial file, in the folder of the object
+		 */
+		String getFileName() {
+			return fileName;
+		}
+
+		private void addRange(long start, long end) {
+			//merge with the overlapping or adjacent ranges
+			Map.Entry<Long, Long> before = ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+			}
+			Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+			while (after != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				ranges.remove(after.getKey());
+				after = ranges.ceilingEntry(start);
+			}
+			ranges.put(start, end);
+		}
+
+		/**
+		 * @param maxSize the maximum size of a returned range
+		 * @return the byte ranges not yet written as start and end offset pairs,
+		 * split so no range is larger than maxSize
+		 */
+		List<long[]> getMissingRanges(long maxSize) {
+			List<long[]> missing = new ArrayList<>();
+			long position = 0;
+			for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+				addMissing(missing, position, Math.min(range.getKey(), length), maxSize);
+				position = Math.max(position, range.getValue());
+			}
+			addMissing(missing, position, length, maxSize);
+			return missing;
+		}
+
+		private static void addMissing(List<long[]> missing, long start, long end, long maxSize) {
+			for (long position = start; position < end; position += maxSize) {
+				missing.add(new long[] {position, Math.min(end, position + maxSize)});
+			}
+		}
+	}
+}
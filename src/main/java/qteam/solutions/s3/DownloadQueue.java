@@ -0,0 +1,108 @@
+package qteam.solutions.s3;
+
+import java.util.PriorityQueue;
+import java.util.function.IntSupplier;
+
+/**
+ * Holds the files listed ahead of a folder download and releases them in the order of a scheduling policy
+ * <br>A file is released as soon as fewer downloads run than the capacity, the files listed while the downloads
+ * are busy are held and ordered until a download completes or more than lookahead files are held
+ * <br>The files are released by the listing thread only, the completed downloads just free their capacity
+ */
+class DownloadQueue {
+	//the capacity may change without any download completing, e.g. the adaptive limit shared with other transfers
+	private static final long CAPACITY_POLL_MILLIS = 50;
+
+	private final DownloadSchedulingPolicy policy;
+	private final int lookahead;
+	private final IntSupplier capacity;
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+	private long sequence;
+	private int running;
+
+	/**
+	 * @param policy the order in which the files are released
+	 * @param lookahead the highest number of files held while the downloads are busy
+	 * @param capacity the number of downloads able to run at once
+	 */
+	DownloadQueue(DownloadSchedulingPolicy policy, int lookahead, IntSupplier capacity) {
+		this.policy = policy;
+		this.lookahead = lookahead;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds a listed file to the queue
+	 * @param file the file listed
+	 */
+	synchronized void offer(Resource file) {
+		queue.add(new Entry(file, policy.priority(file), sequence++));
+	}
+
+	/**
+	 * @return true if more than lookahead files are held, the listing then waits for the downloads
+	 */
+	synchronized boolean isFull() {
+		return queue.size() > lookahead;
+	}
+
+	/**
+	 * @return true if no file is held
+	 */
+	synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Releases the next file if the downloads have free capacity, the file is counted as running
+	 * @return the file to download next, null if the queue is empty or the downloads are busy
+	 */
+	synchronized Resource poll() {
+		if (queue.isEmpty() || running >= capacity.getAsInt()) {
+			return null;
+		}
+		running++;
+		return queue.poll().file;
+	}
+
+	/**
+	 * Waits for free capacity then releases the next file, the file is counted as running
+	 * @return the file to download next, null if the queue is empty
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized Resource take() throws InterruptedException {
+		while (!queue.isEmpty() && running >= capacity.getAsInt()) {
+			wait(CAPACITY_POLL_MILLIS);
+		}
+		return poll();
+	}
+
+	/**
+	 * Frees the capacity of a released file whose download completed
+	 */
+	synchronized void completed() {
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * A file with its priority, the files of the same priority are ordered by their position in the listing
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private final Resource file;
+		private final long priority;
+		private final long sequence;
+
+		private Entry(Resource file, long priority, long sequence) {
+			this.file = file;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int result = Long.compare(other.priority, priority);
+			return (result != 0) ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+}
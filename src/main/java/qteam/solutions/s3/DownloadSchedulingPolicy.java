@@ -0,0 +1,30 @@
+package qteam.solutions.s3;
+
+/**
+ * Decides the order in which the files of a folder download are started
+ * <br>A file is started as soon as it is listed if the downloads have free capacity, the files listed while
+ * they are busy, up to the scheduling lookahead of the config, are started highest priority first as the
+ * downloads complete, the files of the same priority in the listing order.
+ * The files above the multipart download threshold are downloaded as concurrent byte ranges
+ * whatever their priority
+ */
+@FunctionalInterface
+public interface DownloadSchedulingPolicy {
+
+	/**
+	 * Downloads the files in the listing order
+	 */
+	DownloadSchedulingPolicy FIFO = file -> 0;
+
+	/**
+	 * Starts the largest files first so they do not finish last, the small files fill the download threads
+	 * around them. Shortens the download of folders mixing a few very large files with many small ones
+	 */
+	DownloadSchedulingPolicy LARGEST_FIRST = Resource::getSize;
+
+	/**
+	 * @param file a file listed by a folder download
+	 * @return the priority of the file, the files of highest priority are started first
+	 */
+	long priority(Resource file);
+}
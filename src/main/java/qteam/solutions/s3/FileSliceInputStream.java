@@ -0,0 +1,73 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a slice of a file with positional reads, so the parts of a multipart upload
+ * are streamed from the file without being loaded in memory
+ */
+class FileSliceInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private long position;
+	private long remaining;
+
+	/**
+	 * @param file the file to read
+	 * @param offset the offset of the first byte of the slice
+	 * @param length the length of the slice
+	 * @throws IOException if the file cannot be opened
+	 */
+	FileSliceInputStream(Path file, long offset, long length) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.position = offset;
+		this.remaining = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining <= 0) {
+			return -1;
+		}
+		int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+		if (read < 0) {
+			//the file was truncated while being uploaded
+			throw new IOException("Unexpected end of file at offset " + position);
+		}
+		position += read;
+		remaining -= read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, remaining));
+		position += skipped;
+		remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,192 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes the files of a listing to an archive, their parts being fetched concurrently ahead of the writing
+ * <br>Every file is split in parts fetched with byte-range GETs. The next parts are requested while the previous
+ * ones are written, as long as the parts fetched and not yet written fit in the buffer. The files are written
+ * in the listing order, so the memory used is bounded whatever the number and the size of the files
+ */
+class FolderArchiver {
+
+	/**
+	 * Loads a byte range of a file
+	 */
+	@FunctionalInterface
+	interface PartLoader {
+		ByteBuffer load(Resource file, long offset, int length) throws S3InterfaceException;
+	}
+
+	private final PartLoader loader;
+	private final Executor executor;
+	private final int partSize;
+	private final long bufferBytes;
+	private final int maxParts;
+
+	/**
+	 * @param loader the function loading a byte range of a file
+	 * @param executor the executor fetching the parts
+	 * @param partSize the maximum size of a part
+	 * @param bufferBytes the maximum number of bytes fetched and not yet written, a larger part is fetched alone
+	 * @param maxParts the maximum number of parts fetched and not yet written
+	 */
+	FolderArchiver(PartLoader loader, Executor executor, int partSize, long bufferBytes, int maxParts) {
+		this.loader = loader;
+		this.executor = executor;
+		this.partSize = partSize;
+		this.bufferBytes = bufferBytes;
+		this.maxParts = maxParts;
+	}
+
+	/**
+	 * Writes the files to the archive, the end of the archive is not written
+	 * @param files the files to write, in the order of the archive
+	 * @param nameStart the number of characters of the keys removed from the names of the entries,
+	 * the files having no name left are skipped
+	 * @param writer the archive to write to
+	 * @return the number of files written, the folder entries not included
+	 * @throws S3InterfaceException if a file cannot be fetched, its size is unknown or it changed while written
+	 * @throws IOException if the archive cannot be written
+	 */
+	int write(Iterator<Resource> files, int nameStart, ArchiveWriter writer) throws S3InterfaceException, IOException {
+		Iterator<Part> parts = new PartIterator(files, nameStart);
+		Deque<Part> window = new ArrayDeque<>();
+		long buffered = 0;
+		int count = 0;
+		try {
+			Part next = parts.hasNext() ? parts.next() : null;
+			while (next != null || !window.isEmpty()) {
+				//fetch the next parts while they fit in the buffer, at least one is fetched
+				while (next != null && window.size() < maxParts &&
+					(window.isEmpty() || buffered + next.length <= bufferBytes)) {
+					next.content = fetch(next);
+					buffered += next.length;
+					window.add(next);
+					next = parts.hasNext() ? parts.next() : null;
+				}
+
+				Part part = window.poll();
+				ByteBuffer content = part.content.join();
+				buffered -= part.length;
+				Resource file = part.file;
+				long size = (file.getType() == 0) ? file.getSize() : 0;
+				if (part.offset == 0) {
+					writer.putEntry(part.name, size, file.getLastModified());
+				}
+				if (content.remaining() != part.length) {
+					throw new S3InterfaceException("The file changed while archived: " + file.getId());
+				}
+				writer.write(content);
+				if (part.offset + part.length >= size) {
+					writer.closeEntry();
+					if (file.getType() == 0) {
+						count++;
+					}
+				}
+			}
+			return count;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedS3InterfaceException) {
+				throw ((UncheckedS3InterfaceException) e.getCause()).getCause();
+			}
+			throw new S3InterfaceException("Failed to fetch a file of the archive", e.getCause());
+		} catch (UncheckedS3InterfaceException e) {
+			throw e.getCause();
+		} finally {
+			//the parts still being fetched are not needed anymore
+			for (Part part : window) {
+				part.content.cancel(false);
+			}
+		}
+	}
+
+	private CompletableFuture<ByteBuffer> fetch(Part part) {
+		if (part.length == 0) {
+			return CompletableFuture.completedFuture(ByteBuffer.allocate(0));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return loader.load(part.file, part.offset, part.length);
+			} catch (S3InterfaceException e) {
+				throw new UncheckedS3InterfaceException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Splits the files in parts lazily, every file has at least one part, empty for an empty file or a folder
+	 */
+	private class PartIterator implements Iterator<Part> {
+		private final Iterator<Resource> files;
+		private final int nameStart;
+		private Resource file;
+		private String name;
+		private long offset;
+
+		private PartIterator(Iterator<Resource> files, int nameStart) {
+			this.files = files;
+			this.nameStart = nameStart;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (file == null) {
+				if (!files.hasNext()) {
+					return false;
+				}
+				Resource candidate = files.next();
+				if (candidate.getId().length() <= nameStart) {
+					//the folder marker of the archived folder itself
+					continue;
+				}
+				if (candidate.getType() == 0 && candidate.getSize() < 0) {
+					throw new UncheckedS3InterfaceException(
+						new S3InterfaceException("The size of the file is unknown: " + candidate.getId()));
+				}
+				file = candidate;
+				name = candidate.getId().substring(nameStart);
+				offset = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public Part next() {
+			hasNext();
+			long size = (file.getType() == 0) ? file.getSize() : 0;
+			int length = (int) Math.min(partSize, size - offset);
+			Part part = new Part(file, name, offset, length);
+			offset += length;
+			if (offset >= size) {
+				file = null;
+			}
+			return part;
+		}
+	}
+
+	/**
+	 * A byte range of a file and its content once fetched
+	 */
+	private static class Part {
+		private final Resource file;
+		private final String name;
+		private final long offset;
+		private final int length;
+		private CompletableFuture<ByteBuffer> content;
+
+		private Part(Resource file, String name, long offset, int length) {
+			this.file = file;
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package qteam.solutions.s3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with fixed buckets growing roughly exponentially from 1ms to 60s
+ * <br>The percentiles are approximated by the upper bound of the bucket they fall in
+ */
+class LatencyHistogram {
+	private static final long[] BOUNDS_MILLIS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 30_000, 60_000
+	};
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long nanos, boolean failed) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int idx = 0;
+		while (idx < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[idx]) {
+			idx++;
+		}
+		buckets[idx].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+		if (failed) {
+			errors.increment();
+		}
+	}
+
+	long getErrors() {
+		return errors.sum();
+	}
+
+	LatencySnapshot snapshot() {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		double mean = (total == 0) ? 0 : totalNanos.sum() / 1_000_000.0 / total;
+		double max = maxNanos.get() / 1_000_000.0;
+
+		return new LatencySnapshot(total, errors.sum(), mean,
+			percentile(counts, total, 0.50, max),
+			percentile(counts, total, 0.90, max),
+			percentile(counts, total, 0.99, max),
+			max);
+	}
+
+	private static double percentile(long[] counts, long total, double quantile, double max) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * quantile);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				//the upper bound of the bucket, never above the highest recorded latency
+				return (i < BOUNDS_MILLIS.length) ? Math.min(BOUNDS_MILLIS[i], max) : max;
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,59 @@
+package qteam.solutions.s3;
+
+/**
+ * Latency statistics of one type of S3 request, the times are in milliseconds
+ */
+public class LatencySnapshot {
+	private final long count;
+	private final long errors;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p90Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	public LatencySnapshot(long count, long errors, double meanMillis, double p50Millis, 
+			double p90Millis, double p99Millis, double maxMillis) {
+		this.count = count;
+		this.errors = errors;
+		this.meanMillis = meanMillis;
+		this.p50Millis = p50Millis;
+		this.p90Millis = p90Millis;
+		this.p99Millis = p99Millis;
+		this.maxMillis = maxMillis;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP90Millis() {
+		return p90Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count: %d, errors: %d, mean: %.1fms, p50: %.1fms, p90: %.1fms, p99: %.1fms, max: %.1fms",
+			count, errors, meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+	}
+}
@@ -0,0 +1,592 @@
+package qteam.solutions.s3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local index of the listing of a bucket, used to answer the listings and the existence checks without S3
+ * <br>The index is a file sorted by key in the order of the S3 listings (UTF-8 bytes), memory mapped
+ * and searched with binary searches. It starts with a header, followed by one record per object
+ * (key, size, last modified time and ETag) and ends with the table of the offsets of the records
+ * <br>The index is rebuilt from a full listing of the bucket and replaced atomically, the objects uploaded
+ * through the instances sharing the index since the listing started are kept in memory so they are found and
+ * listed in the meantime. The changes made by the other clients of the bucket are seen only once the index is rebuilt
+ * <br>The rebuilds of the instances and processes sharing the index file are serialized by a lock on the file,
+ * one of them lists the bucket and the others load the index it built
+ */
+class ListingIndex {
+	private static final Logger logger = LoggerFactory.getLogger(ListingIndex.class);
+
+	static final String FILE_SUFFIX = ".s3index";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String TEMP_SUFFIX = ".tmp";
+	//the cursors of the listings answered by the index start with this prefix, the S3 ones never do
+	static final String CURSOR_PREFIX = "index:";
+	//the number of resources of a listing page, as S3 does
+	static final int PAGE_SIZE = 1000;
+
+	private static final int MAGIC = 0x53334958;
+	private static final int VERSION = 1;
+	//magic, version, build time, number of records and offset of the offset table
+	private static final int HEADER_SIZE = 32;
+	//the file is mapped in segments, no record and no offset spans two segments
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final AtomicLong generations = new AtomicLong();
+	//the file locks are held by the process, the rebuilds of the process are serialized on these monitors
+	private static final Map<Path, Object> rebuildMonitors = new ConcurrentHashMap<>();
+
+	private final Path file;
+	private volatile Snapshot snapshot;
+	//the objects uploaded through the instances sharing the index mapped to the time of their upload
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+	private ListingIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens the index of a bucket, loading the index built by a previous run if any
+	 * @param folder the folder of the index files
+	 * @param bucketName the indexed bucket
+	 * @return the index, not ready until built if no previous index could be loaded
+	 * @throws S3InterfaceException if the index folder cannot be created
+	 */
+	static ListingIndex open(Path folder, String bucketName) throws S3InterfaceException {
+		ListingIndex index = new ListingIndex(folder.resolve(bucketName + FILE_SUFFIX));
+		try {
+			Files.createDirectories(folder);
+		} catch (IOException e) {
+			logger.error("Error creating listing index folder: {}", folder);
+			throw new S3InterfaceException("Error creating listing index folder: " + folder, e);
+		}
+		if (Files.exists(index.file)) {
+			try {
+				index.snapshot = Snapshot.map(index.file);
+				logger.info("Loaded listing index of {} keys built at {}: {}", index.snapshot.count,
+					Instant.ofEpochMilli(index.snapshot.builtAt), index.file);
+			} catch (IOException e) {
+				//the index is rebuilt by the next refresh
+				logger.warn("Ignoring invalid listing index: {}", index.file, e);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return true once the index was built or loaded
+	 */
+	boolean isReady() {
+		return snapshot != null;
+	}
+
+	/**
+	 * @return the time the listing of the current index started, 0 if not ready
+	 */
+	long getBuiltAt() {
+		Snapshot current = snapshot;
+		return (current == null) ? 0 : current.builtAt;
+	}
+
+	/**
+	 * @return the number of keys of the current index
+	 */
+	long size() {
+		Snapshot current = snapshot;
+		return (current == null) ? 0 : current.count;
+	}
+
+	/**
+	 * Rebuilds the index from a full listing of the bucket then replaces the current one
+	 * <br>An index built by another instance or process since the given time is loaded instead
+	 * @param listing opens the listing of the files of the bucket in the S3 listing order
+	 * @param minBuiltAt the time the listing of an index must have started at the earliest to be loaded
+	 * instead of listing the bucket again
+	 * @return true if the bucket was listed, false if a recent enough index was loaded
+	 * @throws IOException if the index cannot be written or the listing is not sorted
+	 */
+	boolean rebuild(Supplier<Iterator<Resource>> listing, long minBuiltAt) throws IOException {
+		synchronized (rebuildMonitors.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new Object())) {
+			Path lockFile = file.resolveSibling(file.getFileName() + LOCK_SUFFIX);
+			try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				 FileLock lock = lockChannel.lock()) {
+				//the index may have been rebuilt while waiting for the lock
+				Snapshot current = snapshot;
+				if (current != null && current.builtAt >= minBuiltAt) {
+					return false;
+				}
+				if (Files.exists(file)) {
+					Snapshot built = Snapshot.map(file);
+					if (built.builtAt >= minBuiltAt) {
+						replace(built);
+						logger.info("Loaded listing index of {} keys built at {}: {}", built.count,
+							Instant.ofEpochMilli(built.builtAt), file);
+						return false;
+					}
+				}
+				write(listing.get());
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to uniquely named temporary files then moves it into place, under the lock of the file
+	 * @param files the files of the bucket in the S3 listing order
+	 * @throws IOException if the index cannot be written or the listing is not sorted
+	 */
+	private void write(Iterator<Resource> files) throws IOException {
+		long startedAt = System.currentTimeMillis();
+		Path tempFile = createTempFile(TEMP_SUFFIX);
+		Path offsetsFile = null;
+		long count = 0;
+		try {
+			offsetsFile = createTempFile(".offsets" + TEMP_SUFFIX);
+			long position;
+			//the records are written first, their offsets are kept in a side file appended at the end
+			try (CountingOutputStream records = new CountingOutputStream(Files.newOutputStream(tempFile));
+				 DataOutputStream recordsData = new DataOutputStream(records);
+				 DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(
+					 Files.newOutputStream(offsetsFile)))) {
+				recordsData.write(new byte[HEADER_SIZE]);
+				byte[] previous = null;
+				while (files.hasNext()) {
+					Resource resource = files.next();
+					byte[] key = resource.getId().getBytes(StandardCharsets.UTF_8);
+					if (previous != null && Arrays.compareUnsigned(previous, key) >= 0) {
+						throw new IOException("The listing is not sorted at key: " + resource.getId());
+					}
+					previous = key;
+					byte[] eTag = (resource.getETag() == null) ? null : resource.getETag().getBytes(StandardCharsets.UTF_8);
+					int recordSize = 4 + key.length + 8 + 8 + 2 + (eTag == null ? 0 : eTag.length);
+					if (recordSize > SEGMENT_SIZE) {
+						throw new IOException("Key too long: " + resource.getId());
+					}
+					//pad to the next segment if the record does not fit in the current one
+					long remaining = SEGMENT_SIZE - records.count % SEGMENT_SIZE;
+					if (recordSize > remaining) {
+						recordsData.write(new byte[(int) remaining]);
+					}
+					offsets.writeLong(records.count);
+					recordsData.writeInt(key.length);
+					recordsData.write(key);
+					recordsData.writeLong(resource.getSize());
+					recordsData.writeLong(resource.getLastModified() == null ?
+						Long.MIN_VALUE : resource.getLastModified().toEpochMilli());
+					recordsData.writeShort(eTag == null ? -1 : eTag.length);
+					if (eTag != null) {
+						recordsData.write(eTag);
+					}
+					count++;
+				}
+				//align the offset table so no offset spans two segments
+				recordsData.write(new byte[(int) ((8 - records.count % 8) % 8)]);
+				recordsData.flush();
+				position = records.count;
+			}
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				try (FileChannel offsetsChannel = FileChannel.open(offsetsFile, StandardOpenOption.READ)) {
+					long size = offsetsChannel.size();
+					for (long transferred = 0; transferred < size; ) {
+						transferred += offsetsChannel.transferTo(transferred, size - transferred,
+							channel.position(position + transferred));
+					}
+				}
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+					.putInt(MAGIC)
+					.putInt(VERSION)
+					.putLong(startedAt)
+					.putLong(count)
+					.putLong(position)
+					.flip();
+				channel.write(header, 0);
+				channel.force(true);
+			}
+			try {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			if (offsetsFile != null) {
+				Files.deleteIfExists(offsetsFile);
+			}
+			Files.deleteIfExists(tempFile);
+		}
+		replace(Snapshot.map(file));
+		logger.info("Successfully built listing index of {} keys: {}", count, file);
+	}
+
+	/**
+	 * Uses a new index
+	 * @param built the index built
+	 */
+	private void replace(Snapshot built) {
+		snapshot = built;
+		//the uploads done before the listing started are in the new index
+		uploads.values().removeIf(upload -> upload.time < built.builtAt);
+	}
+
+	private Path createTempFile(String suffix) throws IOException {
+		while (true) {
+			Path tempFile = file.resolveSibling(file.getFileName() + "." + 
+				Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + suffix);
+			try {
+				return Files.createFile(tempFile);
+			} catch (FileAlreadyExistsException e) {
+				//try another name
+			}
+		}
+	}
+
+	/**
+	 * Records an object uploaded through an instance sharing the index, so it is found before the next rebuild
+	 * @param resource the uploaded resource
+	 */
+	void recordUpload(Resource resource) {
+		uploads.put(resource.getId(), new Upload(resource, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Looks a key up in the index
+	 * @param id the key of a file or of a folder, a folder exists if any key starts with it
+	 * @return the resource or null if it is not in the index
+	 */
+	Resource find(String id) {
+		Snapshot current = snapshot;
+		Upload upload = uploads.get(id);
+		if (upload != null) {
+			return upload.resource;
+		}
+		byte[] key = id.getBytes(StandardCharsets.UTF_8);
+		if (S3InterfaceHelper.isFolder(id)) {
+			long position = current.lowerBound(key);
+			if ((position < current.count && startsWith(current.key(position), key)) ||
+				uploads.keySet().stream().anyMatch(uploaded -> uploaded.startsWith(id))) {
+				return S3InterfaceHelper.createResourceFromKey(id);
+			}
+			return null;
+		}
+		long position = current.lowerBound(key);
+		if (position < current.count && Arrays.equals(current.key(position), key)) {
+			return current.resource(position);
+		}
+		return null;
+	}
+
+	/**
+	 * Lists a page of the keys starting with a prefix, with the same results as the S3 listing
+	 * @param prefix the prefix of the keys, null for the whole bucket
+	 * @param cursor the cursor returned by the previous page, null for the first page
+	 * @param recursive if false the keys below the next delimiter are grouped as folder resources
+	 * @param startAfter the key the listing starts after, null to start at the prefix
+	 * @return the page of resources along with the cursor of the next page if any
+	 */
+	ListResult<Resource> list(String prefix, String cursor, boolean recursive, String startAfter) {
+		Snapshot current = snapshot;
+		byte[] prefixBytes = (prefix == null) ? new byte[0] : prefix.getBytes(StandardCharsets.UTF_8);
+		long position = (cursor == null) ? current.lowerBound(prefixBytes) : current.seek(cursor);
+		//the lowest key of the page, the uploads from it to the next page belong to the page
+		byte[] lower = (cursor == null) ? prefixBytes : Snapshot.cursorKey(cursor);
+		if (cursor == null && startAfter != null) {
+			//the first key greater than the start after key is the first key greater or equal to its successor
+			byte[] successor = Arrays.copyOf(startAfter.getBytes(StandardCharsets.UTF_8), 
+				startAfter.getBytes(StandardCharsets.UTF_8).length + 1);
+			position = Math.max(position, current.lowerBound(successor));
+			if (Arrays.compareUnsigned(successor, lower) > 0) {
+				lower = successor;
+			}
+		}
+
+		List<Resource> resources = new ArrayList<>();
+		while (position < current.count && resources.size() < PAGE_SIZE) {
+			byte[] key = current.key(position);
+			if (!startsWith(key, prefixBytes)) {
+				//the keys are sorted, the prefix range is over
+				position = current.count;
+				break;
+			}
+			if (!recursive) {
+				int delimiter = indexOf(key, (byte) '/', prefixBytes.length);
+				if (delimiter >= 0) {
+					//a sub folder, continue after its last key
+					byte[] folder = Arrays.copyOf(key, delimiter + 1);
+					resources.add(S3InterfaceHelper.createResourceFromKey(new String(folder, StandardCharsets.UTF_8)));
+					folder[delimiter]++;
+					position = current.lowerBound(folder);
+					continue;
+				}
+				if (key.length == prefixBytes.length) {
+					//the folder marker itself
+					position++;
+					continue;
+				}
+			}
+			resources.add(current.resource(position));
+			position++;
+		}
+
+		String nextCursor = null;
+		byte[] upper = null;
+		if (position < current.count && startsWith(current.key(position), prefixBytes)) {
+			nextCursor = current.cursor(position);
+			upper = current.key(position);
+		}
+		if (!uploads.isEmpty()) {
+			resources = mergeUploads(current, resources, prefixBytes, recursive, lower, upper);
+		}
+		return new ListResult<>(resources, nextCursor);
+	}
+
+	/**
+	 * Adds the objects uploaded since the listing of the index started to the page they belong to
+	 * @param current the index the page was listed from
+	 * @param resources the page listed from the index
+	 * @param prefix the prefix of the keys listed
+	 * @param recursive if false the keys below the next delimiter are grouped as folder resources
+	 * @param lower the lowest key of the page
+	 * @param upper the first key of the next page, null if the page is the last one
+	 * @return the page with the uploads, in the order of the keys
+	 */
+	private List<Resource> mergeUploads(Snapshot current, List<Resource> resources, byte[] prefix, boolean recursive,
+			byte[] lower, byte[] upper) {
+		Map<byte[], Resource> merged = new TreeMap<>(Arrays::compareUnsigned);
+		for (Resource resource : resources) {
+			merged.put(resource.getId().getBytes(StandardCharsets.UTF_8), resource);
+		}
+		for (Upload upload : uploads.values()) {
+			byte[] key = upload.resource.getId().getBytes(StandardCharsets.UTF_8);
+			Resource resource = upload.resource;
+			if (!startsWith(key, prefix)) {
+				continue;
+			}
+			if (!recursive) {
+				int delimiter = indexOf(key, (byte) '/', prefix.length);
+				if (delimiter >= 0) {
+					//a sub folder, listed by the index already if it has any key in it
+					key = Arrays.copyOf(key, delimiter + 1);
+					long position = current.lowerBound(key);
+					if (position < current.count && startsWith(current.key(position), key)) {
+						continue;
+					}
+					resource = S3InterfaceHelper.createResourceFromKey(new String(key, StandardCharsets.UTF_8));
+				} else if (key.length == prefix.length) {
+					//the folder marker itself
+					continue;
+				}
+			}
+			if (Arrays.compareUnsigned(key, lower) >= 0 && (upper == null || Arrays.compareUnsigned(key, upper) < 0)) {
+				merged.put(key, resource);
+			}
+		}
+		return new ArrayList<>(merged.values());
+	}
+
+	/**
+	 * @param cursor a listing cursor
+	 * @return true if the cursor was returned by a listing of the index
+	 */
+	static boolean isIndexCursor(String cursor) {
+		return cursor != null && cursor.startsWith(CURSOR_PREFIX);
+	}
+
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		return key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+	}
+
+	private static int indexOf(byte[] key, byte value, int from) {
+		for (int i = from; i < key.length; i++) {
+			if (key[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * An object uploaded through this instance
+	 */
+	private static class Upload {
+		private final Resource resource;
+		private final long time;
+
+		private Upload(Resource resource, long time) {
+			this.resource = resource;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * A memory mapped index file, immutable
+	 */
+	private static class Snapshot {
+		private final MappedByteBuffer[] segments;
+		private final long generation;
+		private final long builtAt;
+		private final long count;
+		private final long offsetsPosition;
+
+		private Snapshot(MappedByteBuffer[] segments, long builtAt, long count, long offsetsPosition) {
+			this.segments = segments;
+			this.generation = generations.incrementAndGet();
+			this.builtAt = builtAt;
+			this.count = count;
+			this.offsetsPosition = offsetsPosition;
+		}
+
+		private static Snapshot map(Path file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size < HEADER_SIZE) {
+					throw new IOException("Truncated listing index: " + file);
+				}
+				MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+				for (int i = 0; i < segments.length; i++) {
+					long start = i * SEGMENT_SIZE;
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+				}
+				ByteBuffer header = segments[0];
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+					throw new IOException("Unknown listing index format: " + file);
+				}
+				long count = header.getLong(16);
+				long offsetsPosition = header.getLong(24);
+				if (offsetsPosition + 8 * count != size) {
+					throw new IOException("Truncated listing index: " + file);
+				}
+				return new Snapshot(segments, header.getLong(8), count, offsetsPosition);
+			}
+		}
+
+		/**
+		 * @param key a key in UTF-8
+		 * @return the position of the first key greater than or equal to the given key
+		 */
+		private long lowerBound(byte[] key) {
+			long low = 0;
+			long high = count;
+			while (low < high) {
+				long middle = (low + high) >>> 1;
+				if (Arrays.compareUnsigned(key(middle), key) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		private byte[] key(long position) {
+			long offset = getLong(offsetsPosition + 8 * position);
+			ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+			int index = (int) (offset % SEGMENT_SIZE);
+			byte[] key = new byte[segment.getInt(index)];
+			segment.get(index + 4, key);
+			return key;
+		}
+
+		private Resource resource(long position) {
+			long offset = getLong(offsetsPosition + 8 * position);
+			ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+			int index = (int) (offset % SEGMENT_SIZE);
+			byte[] key = new byte[segment.getInt(index)];
+			segment.get(index + 4, key);
+			index += 4 + key.length;
+			long size = segment.getLong(index);
+			long lastModified = segment.getLong(index + 8);
+			int eTagLength = segment.getShort(index + 16);
+			String eTag = null;
+			if (eTagLength >= 0) {
+				byte[] eTagBytes = new byte[eTagLength];
+				segment.get(index + 18, eTagBytes);
+				eTag = new String(eTagBytes, StandardCharsets.UTF_8);
+			}
+			String id = new String(key, StandardCharsets.UTF_8);
+			Resource keyResource = S3InterfaceHelper.createResourceFromKey(id);
+			return new Resource(id, keyResource.getName(), keyResource.getType(), size, eTag,
+				lastModified == Long.MIN_VALUE ? null : Instant.ofEpochMilli(lastModified));
+		}
+
+		private long getLong(long offset) {
+			return segments[(int) (offset / SEGMENT_SIZE)].getLong((int) (offset % SEGMENT_SIZE));
+		}
+
+		/**
+		 * @param position the position of the next key to list
+		 * @return a cursor holding the position and the key, so it can be used on a rebuilt index
+		 */
+		private String cursor(long position) {
+			return CURSOR_PREFIX + generation + ":" + position + ":" +
+				URLEncoder.encode(new String(key(position), StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+		}
+
+		private long seek(String cursor) {
+			String[] fields = cursor.substring(CURSOR_PREFIX.length()).split(":", 3);
+			if (Long.parseLong(fields[0]) == generation) {
+				return Long.parseLong(fields[1]);
+			}
+			//the index was rebuilt since the previous page, continue from the next key
+			return lowerBound(cursorKey(cursor));
+		}
+
+		/**
+		 * @param cursor a cursor returned by a listing of the index
+		 * @return the key of the first resource of the page of the cursor, in UTF-8
+		 */
+		private static byte[] cursorKey(String cursor) {
+			String[] fields = cursor.substring(CURSOR_PREFIX.length()).split(":", 3);
+			return URLDecoder.decode(fields[2], StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Keeps track of the number of bytes written to a stream
+	 */
+	private static class CountingOutputStream extends BufferedOutputStream {
+		private long count;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out, 1 << 16);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			count++;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package qteam.solutions.s3;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Lazily iterates over all the pages of a folder listing
+ * <br>While a page is consumed the next one is already requested in the background,
+ * so the listing round trips overlap with the processing of the resources
+ */
+class ListingIterator implements Iterator<Resource> {
+
+	/**
+	 * Loads one page of the listing
+	 */
+	@FunctionalInterface
+	interface PageLoader {
+		ListResult<Resource> load(String cursor) throws S3InterfaceException;
+	}
+
+	private final PageLoader loader;
+	private final Executor executor;
+
+	private Iterator<Resource> current;
+	private CompletableFuture<ListResult<Resource>> nextPage;
+
+	private ListingIterator(PageLoader loader, Executor executor) {
+		this.loader = loader;
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates the iterator, the first page is loaded synchronously so a missing folder is reported right away
+	 * @param loader the function loading a page for a cursor
+	 * @param executor the executor used to prefetch the next pages
+	 * @return the iterator positioned before the first resource
+	 * @throws S3InterfaceException if the first page cannot be loaded
+	 */
+	static ListingIterator open(PageLoader loader, Executor executor) throws S3InterfaceException {
+		ListingIterator iterator = new ListingIterator(loader, executor);
+		iterator.setPage(loader.load(null));
+		return iterator;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			if (nextPage == null) {
+				return false;
+			}
+			setPage(awaitNextPage());
+		}
+		return true;
+	}
+
+	@Override
+	public Resource next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	private void setPage(ListResult<Resource> page) {
+		current = page.getResources().iterator();
+		
+		//request the next page while this one is consumed
+		String cursor = page.getCursor();
+		nextPage = (cursor == null) ? null : CompletableFuture.supplyAsync(() -> {
+			try {
+				return loader.load(cursor);
+			} catch (S3InterfaceException e) {
+				throw new UncheckedS3InterfaceException(e);
+			}
+		}, executor);
+	}
+
+	private ListResult<Resource> awaitNextPage() {
+		try {
+			return nextPage.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
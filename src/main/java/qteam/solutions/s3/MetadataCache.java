@@ -0,0 +1,161 @@
+package qteam.solutions.s3;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the resources returned by getResource
+ * <br>Entries expire after a fixed time to live and an approximately least recently used entry is evicted
+ * when the cache is full: the eldest of a few entries sampled in turn over the whole cache
+ * <br>Keys found missing in the bucket are cached as negative entries with their own time to live
+ * <br>The lookups and insertions take no lock, only the evictions are serialized
+ */
+class MetadataCache {
+	//the number of entries compared to pick the one to evict
+	private static final int EVICTION_SAMPLES = 8;
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	//the evictions resume sampling where the previous one stopped so every entry is sampled in turn
+	private Iterator<Map.Entry<String, Entry>> evictionCursor;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+
+	/**
+	 * @param maxSize the maximum number of cached keys
+	 * @param ttl the time a found resource is kept
+	 * @param negativeTtl the time a missing key is kept
+	 */
+	MetadataCache(int maxSize, Duration ttl, Duration negativeTtl) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+		this.negativeTtlNanos = negativeTtl.toNanos();
+	}
+
+	/**
+	 * Looks up a key
+	 * @param id the key of the resource
+	 * @return null on a miss, otherwise the cached entry which is negative if the key is known to be missing
+	 */
+	Entry get(String id) {
+		long now = System.nanoTime();
+		Entry entry = entries.get(id);
+		if (entry != null && entry.expiresAt - now <= 0) {
+			entries.remove(id, entry);
+			entry = null;
+		}
+
+		if (entry == null) {
+			misses.increment();
+		} else {
+			entry.accessedAt = now;
+			if (entry.isNegative()) {
+				negativeHits.increment();
+			} else {
+				hits.increment();
+			}
+		}
+		return entry;
+	}
+
+	void put(Resource resource) {
+		long now = System.nanoTime();
+		add(resource.getId(), new Entry(resource, now, now + ttlNanos));
+	}
+
+	void putMissing(String id) {
+		if (negativeTtlNanos <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		add(id, new Entry(null, now, now + negativeTtlNanos));
+	}
+
+	void invalidate(String id) {
+		entries.remove(id);
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private void add(String id, Entry entry) {
+		entries.put(id, entry);
+		if (entries.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Removes entries until the cache is within its size, each time the expired or least recently used entry
+	 * of a sample
+	 */
+	private synchronized void evict() {
+		long now = System.nanoTime();
+		while (entries.size() > maxSize) {
+			Map.Entry<String, Entry> eldest = null;
+			for (int i = 0; i < EVICTION_SAMPLES; i++) {
+				if (evictionCursor == null || !evictionCursor.hasNext()) {
+					//the iterators of the concurrent map are weakly consistent, a new one starts a new round
+					evictionCursor = entries.entrySet().iterator();
+					if (!evictionCursor.hasNext()) {
+						return;
+					}
+				}
+				Map.Entry<String, Entry> sampled = evictionCursor.next();
+				if (sampled.getValue().expiresAt - now <= 0) {
+					eldest = sampled;
+					break;
+				}
+				if (eldest == null || sampled.getValue().accessedAt - eldest.getValue().accessedAt < 0) {
+					eldest = sampled;
+				}
+			}
+			entries.remove(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getNegativeHits() {
+		return negativeHits.sum();
+	}
+
+	static class Entry {
+		private final Resource resource;
+		private final long expiresAt;
+		//written without synchronization, a stale value only makes the eviction less accurate
+		private volatile long accessedAt;
+
+		private Entry(Resource resource, long accessedAt, long expiresAt) {
+			this.resource = resource;
+			this.accessedAt = accessedAt;
+			this.expiresAt = expiresAt;
+		}
+
+		Resource getResource() {
+			return resource;
+		}
+
+		boolean isNegative() {
+			return resource == null;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local disk cache of the objects of a bucket shared by all the processes of a host
+ * <br>Every object version is stored as {@code <cache folder>/<bucket>/<SHA-256 of the key>/<ETag>},
+ * the last modified time of the file is the last time the version was validated against S3
+ * and its last access time the last time it was served
+ * <br>The total size of the cached files is bounded, the least recently used files are evicted first.
+ * The usage of the cache is recorded in {@code <cache folder>/<bucket>/.usage} and updated under a file lock,
+ * so the bound holds for all the processes together
+ * <br>The versions are copied to and from the downloaded files, so the downloaded files can be modified
+ * without altering the cache
+ */
+class ObjectCache {
+	private static final Logger logger = LoggerFactory.getLogger(ObjectCache.class);
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String USAGE_FILE = ".usage";
+	//the caches of the same folder opened in the process share a monitor since the file locks are held per process
+	private static final Map<Path, Object> usageMonitors = new ConcurrentHashMap<>();
+
+	private final Path folder;
+	private final Path usageFile;
+	private final Object usageMonitor;
+	private final long maxBytes;
+	private final Duration ttl;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private ObjectCache(Path folder, long maxBytes, Duration ttl) {
+		this.folder = folder;
+		this.usageFile = folder.resolve(USAGE_FILE);
+		this.usageMonitor = usageMonitors.computeIfAbsent(folder.toAbsolutePath().normalize(), path -> new Object());
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Opens the cache of a bucket, recounting the files cached by the previous runs
+	 * @param cacheFolder the root folder of the cache
+	 * @param bucketName the bucket whose objects are cached
+	 * @param maxBytes the maximum total size of the cached files
+	 * @param ttl the time a cached version is trusted without asking S3
+	 * @return the cache
+	 * @throws S3InterfaceException if the cache folder cannot be created or read
+	 */
+	static ObjectCache open(Path cacheFolder, String bucketName, long maxBytes, Duration ttl) throws S3InterfaceException {
+		ObjectCache cache = new ObjectCache(cacheFolder.resolve(bucketName), maxBytes, ttl);
+		try {
+			Files.createDirectories(cache.folder);
+			Usage usage = cache.updateUsage(0, 0, null, true);
+			logger.info("Loaded {} files, {} bytes from object cache: {}", usage.files, usage.bytes, cache.folder);
+			return cache;
+		} catch (IOException e) {
+			logger.error("Error reading object cache: {}", cache.folder);
+			throw new S3InterfaceException("Error reading object cache: " + cache.folder, e);
+		}
+	}
+
+	/**
+	 * Looks up the cached version of an object, counting a miss if none
+	 * @param key the key of the object
+	 * @return the most recently cached version or null if none
+	 */
+	Entry get(String key) {
+		Entry newest = find(key);
+		if (newest == null) {
+			misses.increment();
+		}
+		return newest;
+	}
+
+	/**
+	 * Counts a miss for a cached version found out of date by S3
+	 */
+	void recordMiss() {
+		misses.increment();
+	}
+
+	private Entry find(String key) {
+		Path keyFolder = folder.resolve(hash(key));
+		if (!Files.isDirectory(keyFolder)) {
+			return null;
+		}
+		//the folder may hold a version written by another process
+		Entry newest = null;
+		try (DirectoryStream<Path> versions = Files.newDirectoryStream(keyFolder)) {
+			for (Path path : versions) {
+				String name = path.getFileName().toString();
+				if (name.endsWith(TEMP_SUFFIX)) {
+					continue;
+				}
+				FileTime validated = Files.getLastModifiedTime(path);
+				if (newest == null || validated.compareTo(newest.validated) > 0) {
+					newest = new Entry(path, "\"" + name + "\"", validated);
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return newest;
+	}
+
+	/**
+	 * @param entry a cached version
+	 * @return true if the version was validated within the time to live
+	 */
+	boolean isFresh(Entry entry) {
+		return System.currentTimeMillis() - entry.validated.toMillis() < ttl.toMillis();
+	}
+
+	/**
+	 * Records that S3 confirmed the cached version is still the current one
+	 * @param entry the cached version
+	 */
+	void revalidated(Entry entry) {
+		try {
+			Files.setLastModifiedTime(entry.path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			logger.warn("Failed to update object cache file: {}", entry.path);
+		}
+	}
+
+	/**
+	 * Copies a cached version to a local file
+	 * @param entry the cached version
+	 * @param target the file to write
+	 * @return false if the version was evicted in the meantime
+	 * @throws IOException if the file cannot be written
+	 */
+	boolean copyTo(Entry entry, Path target) throws IOException {
+		try {
+			Files.copy(entry.path, target, StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			if (!Files.exists(entry.path)) {
+				//evicted, possibly by another process
+				return false;
+			}
+			throw e;
+		}
+		touch(entry.path);
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * Adds a downloaded object to the cache, replacing its previous versions
+	 * @param key the key of the object
+	 * @param eTag the ETag of the downloaded version, the object is not cached if null
+	 * @param source the downloaded file
+	 */
+	void put(String key, String eTag, Path source) {
+		if (eTag == null) {
+			return;
+		}
+		Path keyFolder = folder.resolve(hash(key));
+		Path path = keyFolder.resolve(fileName(eTag));
+		Path tempFile = null;
+		try {
+			long size = Files.size(source);
+			if (size > maxBytes) {
+				return;
+			}
+			//copy to a temporary file first so the other processes never read a partial version
+			Files.createDirectories(keyFolder);
+			tempFile = Files.createTempFile(keyFolder, path.getFileName().toString(), TEMP_SUFFIX);
+			Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+			touch(tempFile);
+			long replacedBytes = sizeOrZero(path);
+			try {
+				Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tempFile = null;
+			long addedBytes = size - replacedBytes;
+			long addedFiles = (replacedBytes > 0) ? 0 : 1;
+
+			//the previous versions of the object are not needed anymore
+			List<Path> previous = new ArrayList<>();
+			try (DirectoryStream<Path> versions = Files.newDirectoryStream(keyFolder)) {
+				for (Path version : versions) {
+					if (!version.equals(path) && !version.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+						previous.add(version);
+					}
+				}
+			}
+			for (Path version : previous) {
+				long versionBytes = sizeOrZero(version);
+				//only the process deleting the version accounts for it
+				if (Files.deleteIfExists(version)) {
+					addedBytes -= versionBytes;
+					addedFiles--;
+				}
+			}
+
+			updateUsage(addedBytes, addedFiles, path, false);
+		} catch (IOException e) {
+			//the object is downloaded anyway, it is only not cached
+			logger.warn("Failed to add file {} to the object cache", key, e);
+			if (tempFile != null) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException deleteException) {
+					logger.warn("Failed to delete object cache file: {}", tempFile);
+				}
+			}
+		}
+	}
+
+	CacheStats getStats() {
+		return new CacheStats(hits.sum(), misses.sum(), 0, readUsage().files);
+	}
+
+	long getTotalBytes() {
+		return readUsage().bytes;
+	}
+
+	private Usage readUsage() {
+		try {
+			return updateUsage(0, 0, null, false);
+		} catch (IOException e) {
+			logger.warn("Failed to read object cache usage: {}", usageFile);
+			return new Usage(0, 0);
+		}
+	}
+
+	/**
+	 * Adds to the usage recorded on disk under the file lock, then evicts the least recently used files
+	 * if the cache is over its quota
+	 * @param bytes the size added to the cache, negative if removed
+	 * @param files the number of files added to the cache, negative if removed
+	 * @param keep a file not to be evicted, null if none
+	 * @param recount true to recount the cached files even if the cache is within its quota
+	 * @return the usage after the update
+	 * @throws IOException if the usage file cannot be read or written
+	 */
+	private Usage updateUsage(long bytes, long files, Path keep, boolean recount) throws IOException {
+		synchronized (usageMonitor) {
+			try (FileChannel channel = FileChannel.open(usageFile, StandardOpenOption.CREATE, 
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+				 FileLock lock = channel.lock()) {
+				ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+				int read = 0;
+				while (buffer.hasRemaining() && read >= 0) {
+					read = channel.read(buffer, buffer.position());
+				}
+				Usage usage;
+				if (buffer.hasRemaining()) {
+					//new or damaged record
+					usage = evict(null);
+				} else {
+					buffer.flip();
+					usage = new Usage(buffer.getLong() + bytes, buffer.getLong() + files);
+					if (recount || usage.bytes > maxBytes) {
+						//the recorded usage drifts when the processes race on the same files, the folder is recounted
+						usage = evict(keep);
+					} else if (bytes == 0 && files == 0) {
+						return usage;
+					}
+				}
+				buffer.clear();
+				buffer.putLong(usage.bytes).putLong(usage.files).flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, buffer.position());
+				}
+				return usage;
+			}
+		}
+	}
+
+	/**
+	 * Recounts the cached files and deletes the least recently used ones until the cache is within its quota,
+	 * must hold the lock
+	 * @param keep a file not to be evicted, null if none
+	 * @return the usage of the remaining files
+	 * @throws IOException if the cache folder cannot be read
+	 */
+	private Usage evict(Path keep) throws IOException {
+		List<CachedFile> cached;
+		try (Stream<Path> paths = Files.walk(folder, 2)) {
+			cached = paths
+				.filter(path -> !path.getParent().equals(folder) && !path.getFileName().toString().endsWith(TEMP_SUFFIX))
+				.map(CachedFile::read)
+				.filter(file -> file != null)
+				.sorted(Comparator.comparing(file -> file.accessed))
+				.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			//a folder was deleted while walking the cache
+			throw e.getCause();
+		}
+		long totalBytes = cached.stream().mapToLong(file -> file.size).sum();
+		long totalFiles = cached.size();
+		for (CachedFile eldest : cached) {
+			if (totalBytes <= maxBytes) {
+				break;
+			}
+			if (eldest.path.equals(keep)) {
+				continue;
+			}
+			try {
+				Files.deleteIfExists(eldest.path);
+				deleteIfEmpty(eldest.path.getParent());
+			} catch (IOException e) {
+				logger.warn("Failed to evict object cache file: {}", eldest.path);
+				continue;
+			}
+			totalBytes -= eldest.size;
+			totalFiles--;
+		}
+		return new Usage(totalBytes, totalFiles);
+	}
+
+	/**
+	 * Records that a cached file was used, the eviction order follows the last access times
+	 * @param path the cached file
+	 */
+	private static void touch(Path path) {
+		try {
+			Files.getFileAttributeView(path, BasicFileAttributeView.class)
+				.setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+		} catch (IOException e) {
+			logger.warn("Failed to update object cache file: {}", path);
+		}
+	}
+
+	private static long sizeOrZero(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static void deleteIfEmpty(Path keyFolder) {
+		try {
+			Files.deleteIfExists(keyFolder);
+		} catch (DirectoryNotEmptyException e) {
+			//another version or a file being written by another process
+		} catch (IOException e) {
+			logger.warn("Failed to delete object cache folder: {}", keyFolder);
+		}
+	}
+
+	private static String hash(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String fileName(String eTag) {
+		//the S3 ETags are quoted hex strings, optionally followed by the number of parts
+		return eTag.replace("\"", "").replaceAll("[^A-Za-z0-9-]", "_");
+	}
+
+	/**
+	 * A cached version of an object
+	 */
+	static class Entry {
+		private final Path path;
+		private final String eTag;
+		private final FileTime validated;
+
+		private Entry(Path path, String eTag, FileTime validated) {
+			this.path = path;
+			this.eTag = eTag;
+			this.validated = validated;
+		}
+
+		String getETag() {
+			return eTag;
+		}
+	}
+	/**
+	 * The total size and number of the cached files
+	 */
+	private static class Usage {
+		private final long bytes;
+		private final long files;
+
+		private Usage(long bytes, long files) {
+			this.bytes = bytes;
+			this.files = files;
+		}
+	}
+
+	/**
+	 * A cached file found when recounting the cache
+	 */
+	private static class CachedFile {
+		private final Path path;
+		private final long size;
+		private final FileTime accessed;
+
+		private CachedFile(Path path, long size, FileTime accessed) {
+			this.path = path;
+			this.size = size;
+			this.accessed = accessed;
+		}
+
+		private static CachedFile read(Path path) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				return attributes.isRegularFile() ? new CachedFile(path, attributes.size(), attributes.lastAccessTime()) : null;
+			} catch (IOException e) {
+				//deleted in the meantime
+				return null;
+			}
+		}
+	}
+}
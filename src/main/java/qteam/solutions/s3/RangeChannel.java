@@ -0,0 +1,135 @@
+package qteam.solutions.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read only channel over an S3 object, the content is fetched lazily with byte-range GETs
+ * <br>Only the blocks actually read are requested: a reader seeking to the footer of an object
+ * downloads the footer only. The block size starts small and doubles while the reads are sequential,
+ * so random reads stay cheap and sequential reads need few requests
+ */
+class RangeChannel implements SeekableByteChannel {
+
+	/**
+	 * Loads a byte range of the object
+	 */
+	@FunctionalInterface
+	interface RangeLoader {
+		ByteBuffer load(long offset, int length) throws S3InterfaceException;
+	}
+
+	static final int MIN_BLOCK_SIZE = 64 * 1024;
+
+	private final RangeLoader loader;
+	private final long size;
+	private final int maxBlockSize;
+
+	private long position;
+	private boolean open = true;
+	//the last loaded block and the offset of its first byte in the object
+	private ByteBuffer block;
+	private long blockOffset;
+	private int blockSize = MIN_BLOCK_SIZE;
+
+	/**
+	 * @param loader the function loading a byte range of the object
+	 * @param size the size of the object
+	 * @param maxBlockSize the maximum size of a single range request
+	 */
+	RangeChannel(RangeLoader loader, long size, int maxBlockSize) {
+		this.loader = loader;
+		this.size = size;
+		this.maxBlockSize = Math.max(MIN_BLOCK_SIZE, maxBlockSize);
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (position >= size) {
+			return -1;
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		if (block == null || position < blockOffset || position >= blockOffset + block.limit()) {
+			//grow the block while the reads continue where the previous block ended
+			boolean sequential = block != null && position == blockOffset + block.limit();
+			blockSize = sequential ? Math.min(maxBlockSize, blockSize * 2) : MIN_BLOCK_SIZE;
+			int length = (int) Math.min(size - position, Math.max(blockSize, Math.min(dst.remaining(), maxBlockSize)));
+			try {
+				block = loader.load(position, length);
+			} catch (S3InterfaceException e) {
+				block = null;
+				throw new IOException(e.getMessage(), e);
+			}
+			blockOffset = position;
+			if (!block.hasRemaining()) {
+				block = null;
+				return -1;
+			}
+		}
+
+		//copy from the block starting at the current position
+		ByteBuffer source = block.duplicate();
+		source.position((int) (position - blockOffset));
+		int count = Math.min(source.remaining(), dst.remaining());
+		source.limit(source.position() + count);
+		dst.put(source);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() {
+		open = false;
+		block = null;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+}
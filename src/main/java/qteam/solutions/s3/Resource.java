@@ -1,14 +1,26 @@
 package qteam.solutions.s3;
 
+import java.time.Instant;
+
 public class Resource {
     private String id;
     private String name;
     private int type;
+    private long size;
+    private String eTag;
+    private Instant lastModified;
 
     public Resource(String id, String name, int type) {
+        this(id, name, type, -1, null, null);
+    }
+
+    public Resource(String id, String name, int type, long size, String eTag, Instant lastModified) {
         this.id = id;
         this.name = name;
         this.type = type;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
     }
 
     public String getId() {
@@ -22,9 +34,30 @@ public class Resource {
     public int getType() {
         return type;
     }
+
+    /**
+     * @return the size in bytes of the object or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the ETag of the object or null if unknown
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the last modified time of the object or null if unknown
+     */
+    public Instant getLastModified() {
+        return lastModified;
+    }
     
     @Override
     public String toString() {
     	return id + " - " + (type == 1 ? "folder" : "file");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,256 @@
+package qteam.solutions.s3;
+
+import java.time.Instant;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects the files of a listing or of a folder download by key, last modified time and size
+ * <br>Use ResourceFilter.builder() to create one, every criterion not set selects all the files.
+ * The filter is applied to every page as it is listed, so the files excluded are never downloaded.
+ * The start after key and the literal prefix of a glob are sent to S3 so the keys before them are not listed at all
+ * <br>The folders returned by the listings of a single level are not filtered
+ */
+public class ResourceFilter implements Predicate<Resource> {
+
+	private final String glob;
+	private final Pattern keyPattern;
+	private final boolean matchName;
+	private final String keyPrefix;
+	private final Instant modifiedAfter;
+	private final Instant modifiedBefore;
+	private final long minSize;
+	private final long maxSize;
+	private final String startAfter;
+
+	private ResourceFilter(Builder builder) {
+		this.glob = builder.glob;
+		this.startAfter = builder.startAfter;
+		this.modifiedAfter = builder.modifiedAfter;
+		this.modifiedBefore = builder.modifiedBefore;
+		this.minSize = builder.minSize;
+		this.maxSize = builder.maxSize;
+		if (builder.glob != null) {
+			//a glob without slash is matched against the name of the files, like in .gitignore
+			this.matchName = builder.glob.indexOf('/') < 0;
+			this.keyPattern = Pattern.compile(globToRegex(builder.glob));
+			this.keyPrefix = matchName ? null : literalPrefix(builder.glob);
+		} else {
+			this.matchName = false;
+			this.keyPattern = (builder.regex != null) ? Pattern.compile(builder.regex) : null;
+			this.keyPrefix = null;
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @param resource a listed resource
+	 * @return true if the resource is a folder or a file matching all the criteria
+	 */
+	@Override
+	public boolean test(Resource resource) {
+		if (resource.getType() == 1) {
+			return true;
+		}
+		String key = resource.getId();
+		if (startAfter != null && S3InterfaceHelper.compareKeys(key, startAfter) <= 0) {
+			return false;
+		}
+		if (keyPattern != null &&
+			!keyPattern.matcher(matchName ? key.substring(key.lastIndexOf('/') + 1) : key).matches()) {
+			return false;
+		}
+		if ((minSize > 0 || maxSize < Long.MAX_VALUE) && (resource.getSize() < minSize || resource.getSize() > maxSize)) {
+			return false;
+		}
+		if (modifiedAfter != null || modifiedBefore != null) {
+			Instant lastModified = resource.getLastModified();
+			if (lastModified == null ||
+				(modifiedAfter != null && !lastModified.isAfter(modifiedAfter)) ||
+				(modifiedBefore != null && !lastModified.isBefore(modifiedBefore))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getGlob() {
+		return glob;
+	}
+
+	/**
+	 * @return the part of the glob before its first wildcard, the common prefix of all the keys it matches,
+	 * null if the glob is matched against the names of the files or if there is no glob
+	 */
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	public String getStartAfter() {
+		return startAfter;
+	}
+
+	/**
+	 * Converts a glob to a regex, * and ? do not match a slash, ** matches any number of folders,
+	 * {a,b} matches any of the alternatives and [...] any character of the class
+	 */
+	private static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int groups = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+				case '*':
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						i++;
+						//**/ also matches no folder at all
+						if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+							i++;
+							regex.append("(?:.*/)?");
+						} else {
+							regex.append(".*");
+						}
+					} else {
+						regex.append("[^/]*");
+					}
+					break;
+				case '?':
+					regex.append("[^/]");
+					break;
+				case '{':
+					regex.append("(?:");
+					groups++;
+					break;
+				case '}':
+					regex.append(groups > 0 ? ")" : "\\}");
+					groups = Math.max(0, groups - 1);
+					break;
+				case ',':
+					regex.append(groups > 0 ? "|" : ",");
+					break;
+				case '[': {
+					int end = glob.indexOf(']', i + 2);
+					if (end < 0) {
+						regex.append("\\[");
+					} else {
+						String set = glob.substring(i + 1, end);
+						regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+						i = end;
+					}
+					break;
+				}
+				default:
+					regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		if (groups > 0) {
+			throw new IllegalArgumentException("Unclosed group in glob: " + glob);
+		}
+		return regex.toString();
+	}
+
+	private static String literalPrefix(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			if ("*?{[".indexOf(glob.charAt(i)) >= 0) {
+				return glob.substring(0, i);
+			}
+		}
+		return glob;
+	}
+
+	public static class Builder {
+		private String glob;
+		private String regex;
+		private Instant modifiedAfter;
+		private Instant modifiedBefore;
+		private long minSize = 0;
+		private long maxSize = Long.MAX_VALUE;
+		private String startAfter;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param glob the glob the files must match, against their name if it has no slash,
+		 * e.g. *.parquet, else against their whole key, e.g. data/2024-??/*.csv
+		 */
+		public Builder glob(String glob) {
+			this.glob = glob;
+			return this;
+		}
+
+		/**
+		 * @param regex the regular expression the whole key of the files must match
+		 */
+		public Builder regex(String regex) {
+			this.regex = regex;
+			return this;
+		}
+
+		/**
+		 * @param modifiedAfter the files modified at or before this time are excluded
+		 */
+		public Builder modifiedAfter(Instant modifiedAfter) {
+			this.modifiedAfter = modifiedAfter;
+			return this;
+		}
+
+		/**
+		 * @param modifiedBefore the files modified at or after this time are excluded
+		 */
+		public Builder modifiedBefore(Instant modifiedBefore) {
+			this.modifiedBefore = modifiedBefore;
+			return this;
+		}
+
+		/**
+		 * @param minSize the smallest size in bytes of the files selected
+		 */
+		public Builder minSize(long minSize) {
+			this.minSize = minSize;
+			return this;
+		}
+
+		/**
+		 * @param maxSize the largest size in bytes of the files selected
+		 */
+		public Builder maxSize(long maxSize) {
+			this.maxSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * @param startAfter only the keys after this one are listed, e.g. the last key processed by a previous run
+		 */
+		public Builder startAfter(String startAfter) {
+			this.startAfter = startAfter;
+			return this;
+		}
+
+		/**
+		 * @return the filter instance
+		 * @throws IllegalArgumentException if both a glob and a regex are set, if the glob or the regex is invalid
+		 * or if the bounds are not consistent
+		 */
+		public ResourceFilter build() {
+			if (glob != null && regex != null) {
+				throw new IllegalArgumentException("Only one of the glob and the regex can be set");
+			}
+			if (minSize < 0 || maxSize < minSize) {
+				throw new IllegalArgumentException("The size bounds are not valid");
+			}
+			if (modifiedAfter != null && modifiedBefore != null && !modifiedAfter.isBefore(modifiedBefore)) {
+				throw new IllegalArgumentException("The last modified window is empty");
+			}
+			try {
+				return new ResourceFilter(this);
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid key pattern: " + e.getMessage(), e);
+			}
+		}
+	}
+}
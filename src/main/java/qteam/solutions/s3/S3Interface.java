@@ -1,27 +1,70 @@
 package qteam.solutions.s3;
 
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.FileTransformerConfiguration;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.utils.StringUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,53 +76,152 @@ import org.slf4j.LoggerFactory;
  */
 public class S3Interface implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(S3Interface.class);
+    private static final AtomicInteger instanceIds = new AtomicInteger();
+    //the maximum number of parts of a multipart upload accepted by S3
+    private static final int MAX_UPLOAD_PARTS = 10000;
+    //a LIST request costs about as much as this number of HEAD requests
+    private static final int LIST_COST_IN_HEADS = 10;
+    //suffix of the files being downloaded, they are renamed to their final name only once complete
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    //the state of the downloads of a bucket is kept next to its download folder, never inside it
+    private static final String STATE_FOLDER_SUFFIX = ".s3interface";
+    //the size of the buffers of the transfers, reused from the buffer pool of the client resources
+    static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    //the backoff of the requests throttled by S3 is random between zero and a doubling bound up to the maximum
+    private static final long THROTTLE_BACKOFF_BASE_MILLIS = 100;
+    private static final long THROTTLE_BACKOFF_MAX_MILLIS = 20000;
     
+    private final ClientResources resources;
+    private final boolean ownsResources;
     private final S3Client s3Client;
+    private final S3AsyncClient s3AsyncClient;
     private final String bucketName;
     private final Path downloadFolder;
+    private final Path stateFolder;
+    private final S3InterfaceConfig config;
+    private final MetadataCache metadataCache;
+    private final S3InterfaceMetrics metrics;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final AdaptiveConcurrencyLimiter asyncLimiter;
+    private final DownloadJournal journal;
+    private final ObjectCache objectCache;
+    private final ListingIndex listingIndex;
+    private ObjectName metricsName;
     
     private final ExecutorService executor;
+    private final ExecutorService rangeExecutor;
+    private final ExecutorService listingExecutor;
+    private final BufferPool bufferPool;
 
     /**
-     * Creates a new S3Interface for the specified bucket and region
+     * Creates a new S3Interface for the specified bucket and region using the default config
      * @param bucketName the bucket to operate on
      * @param region the region of the bucket
      * @throws S3InterfaceException if the bucket is empty or does not exist or if any S3 connection error occurs
      */
     public S3Interface(String bucketName, Region region) throws S3InterfaceException {
+    	this(bucketName, region, S3InterfaceConfig.defaults());
+    }
+
+    /**
+     * Creates a new S3Interface for the specified bucket and region
+     * @param bucketName the bucket to operate on
+     * @param region the region of the bucket
+     * @param config the tuning options of the instance
+     * @throws S3InterfaceException if the bucket is empty or does not exist or if any S3 connection error occurs
+     */
+    public S3Interface(String bucketName, Region region, S3InterfaceConfig config) throws S3InterfaceException {
+    	this(bucketName, region, config, null, true);
+    }
+
+    /**
+     * Creates a new S3Interface for the specified bucket
+     * @param bucketName the bucket to operate on
+     * @param region the region of the bucket
+     * @param config the tuning options of the instance
+     * @param sharedResources the clients and executors shared with other instances, left open by close(),
+     * null to create the ones of the instance
+     * @param validate if false the bucket is not checked, it was already validated
+     * @throws S3InterfaceException if the bucket is empty or does not exist or if any S3 connection error occurs
+     */
+    S3Interface(String bucketName, Region region, S3InterfaceConfig config, ClientResources sharedResources,
+    		boolean validate) throws S3InterfaceException {
+    	ClientResources resources = sharedResources;
         try {
-        	//instantiate the s3 client
-            this.s3Client = S3Client.builder()
-                .region(region)
-                .credentialsProvider(DefaultCredentialsProvider.create())
-                .build();
+        	this.config = config;
+        	
+        	//instantiate the s3 clients and the executors unless shared with other instances
+        	if (resources == null) {
+        		resources = new ClientResources(region, config);
+        	}
+        	this.resources = resources;
+        	this.ownsResources = (sharedResources == null);
+        	this.metrics = resources.getMetrics();
+        	this.limiter = resources.getLimiter();
+        	this.asyncLimiter = resources.getAsyncLimiter();
+        	this.s3Client = resources.getS3Client();
+        	this.s3AsyncClient = resources.getS3AsyncClient();
+        	this.executor = resources.getExecutor();
+        	this.rangeExecutor = resources.getRangeExecutor();
+        	this.listingExecutor = resources.getListingExecutor();
+        	this.bufferPool = resources.getBufferPool();
             
             //validate the bucket
             this.bucketName = bucketName;
-            validateBucket();
+            if (validate) {
+            	validateBucket();
+            }
             
             //set the download folder and create it
-            this.downloadFolder = Paths.get(S3InterfaceHelper.getBaseDownloadFolder().toString(), 
-            	bucketName);
+            Path baseFolder = (config.getDownloadFolder() != null) ? 
+            	config.getDownloadFolder() : 
+            	S3InterfaceHelper.getBaseDownloadFolder();
+            this.downloadFolder = Paths.get(baseFolder.toString(), bucketName);
             S3InterfaceHelper.createFolder(downloadFolder, Optional.empty());
+            this.stateFolder = Paths.get(baseFolder.toString(), bucketName + STATE_FOLDER_SUFFIX);
+            //in resumable mode open the journal of the downloads interrupted by a previous run
+            //the journal is shared with the other instances of the resources
+            this.journal = config.isResumableDownloads() ? resources.getJournal(stateFolder) : null;
+            //the caches of the bucket are opened once and shared with the other instances of the resources
+            this.metadataCache = resources.getMetadataCache(bucketName);
+            //open the local cache of the objects shared with the other instances of the host
+            this.objectCache = resources.getObjectCache(bucketName);
+            //open the local index of the listing, the index of a previous run is used until rebuilt
+            //the index is shared with the other instances of the resources, rebuilt in the background
+            //by the scheduler of the resources from the first instance opening it
+            this.listingIndex = (config.getListingIndexFolder() != null) ?
+            	resources.getListingIndex(config.getListingIndexFolder(), bucketName, 
+            		this::refreshListingIndexInBackground, config.getListingIndexRefreshInterval().toMillis()) :
+            	null;
             
-            //set a executor used for folder downloads
-            this.executor = Executors.newFixedThreadPool(11);
+            //expose the metrics through JMX, the shared ones are exposed by their factory
+            if (config.isJmxEnabled() && ownsResources) {
+            	registerMetrics();
+            }
 
             logger.info("Successfully initialized S3Interface for bucket: {}", bucketName);
         } catch (S3Exception e) {
             logger.error("Error initializing S3Interface", e);
+            closeOwnedResources(resources, sharedResources);
             throw new S3InterfaceException("Error initializing S3Interface", e);
         } catch (S3InterfaceException e) {
+        	closeOwnedResources(resources, sharedResources);
         	throw e;
         } catch (Exception e) {
         	logger.error("Error initializing S3Interface", e);
+        	closeOwnedResources(resources, sharedResources);
             throw new S3InterfaceException("Error initializing S3Interface", e);
         }
     }
     
+    private static void closeOwnedResources(ClientResources resources, ClientResources sharedResources) {
+    	if (resources != null && resources != sharedResources) {
+    		resources.close();
+    	}
+    }
+    
     /**
-     * Lists the files in the specified folder resource at the specified cursor
+     * Lists all the files in the subtree of the specified folder resource at the specified cursor
      * @param parent the folder resource to be listed
      * @param cursor used in case of paginated calls, the cursor keeps track of the listFolder calls
      * <br>use null for first time call
@@ -89,6 +231,45 @@ public class S3Interface implements AutoCloseable {
      * or if any S3 connection error occurs 
      */
     public ListResult<Resource> listFolder(Resource parent, String cursor) throws S3InterfaceException {
+    	return listFolder(parent, cursor, true);
+    }
+
+    /**
+     * Lists the resources in the specified folder resource at the specified cursor
+     * @param parent the folder resource to be listed
+     * @param cursor used in case of paginated calls, the cursor keeps track of the listFolder calls
+     * <br>use null for first time call
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @return A ListResult containing the list of resources from the folder along with the cursor if exists
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public ListResult<Resource> listFolder(Resource parent, String cursor, boolean recursive) throws S3InterfaceException {
+    	return listFolder(parent, cursor, recursive, null);
+    }
+
+    /**
+     * Lists the resources in the specified folder resource matching a filter at the specified cursor
+     * <br>The start after key and the literal prefix of the glob of the filter narrow the LIST requests,
+     * the other criteria are applied to every page as it is received, so a page can be empty and have a cursor
+     * <br>Once the listing index is built the folders are listed from it: the uploads through this instance
+     * are listed right away, the changes made by the other clients only after the next refresh of the index,
+     * see S3InterfaceConfig.Builder.listingIndexRefreshInterval and refreshListingIndex()
+     * @param parent the folder resource to be listed
+     * @param cursor used in case of paginated calls, the cursor keeps track of the listFolder calls
+     * <br>use null for first time call
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @param filter the files to be listed, null to list all of them
+     * @return A ListResult containing the list of resources from the folder along with the cursor if exists
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public ListResult<Resource> listFolder(Resource parent, String cursor, boolean recursive, ResourceFilter filter) 
+    		throws S3InterfaceException {
     	//check the input to be a folder
     	if (parent != null && parent.getType() == 0) {
     		logger.error("The provided resource is not a folder");
@@ -102,29 +283,99 @@ public class S3Interface implements AutoCloseable {
     		parent = null;
     	}
     	String folderName = (parent == null ? "/" : parent.getId());
+    	String prefix = (parent == null ? null : parent.getId());
     	
+        if (!recursive) {
+        	//list a single level, the keys below it are grouped in common prefixes
+        	if (prefix != null && !S3InterfaceHelper.isFolder(prefix)) {
+        		prefix = prefix + "/";
+        	}
+        }
+        
+        //narrow the listing to the keys the filter can match, the folder may then look empty
+        String startAfter = null;
+        boolean narrowed = false;
+        if (filter != null) {
+        	String keyPrefix = filter.getKeyPrefix();
+        	if (recursive && keyPrefix != null && (prefix == null || keyPrefix.startsWith(prefix))) {
+        		narrowed = !keyPrefix.equals(prefix);
+        		prefix = keyPrefix;
+        	}
+        	if (filter.getStartAfter() != null && 
+        		(prefix == null || S3InterfaceHelper.compareKeys(filter.getStartAfter(), prefix) >= 0)) {
+        		startAfter = filter.getStartAfter();
+        		narrowed = true;
+        	}
+        }
+        
+        ListResult<Resource> result;
+        //answer from the local index once built, the listings started on S3 continue on S3
+        if (cursor == null ? isListingIndexReady() : ListingIndex.isIndexCursor(cursor)) {
+        	result = listingIndex.list(prefix, cursor, recursive, startAfter);
+        	if (cursor == null && !narrowed && result.getResources().isEmpty()) {
+        		logger.error("The folder is empty or does not exist: {}", folderName);
+    			throw new S3InterfaceException("The folder is empty or does not exist: " + folderName);
+        	}
+        	logger.info("Successfully retrieved folder contents from the listing index : {}", folderName);
+        } else {
+        	result = listFromS3(prefix, folderName, cursor, recursive, startAfter, !narrowed);
+        }
+        
+        //drop the files excluded by the filter before they reach the caller
+        if (filter != null) {
+        	result = new ListResult<>(result.getResources().stream().filter(filter).collect(Collectors.toList()), 
+        		result.getCursor());
+        }
+        return result;
+    }
+    
+    /**
+     * Lists a page of the resources of a folder with a LIST request
+     * @param prefix the prefix of the listed keys, ending with a slash if not recursive, null for the whole bucket
+     * @param folderName the name of the folder for the logs
+     * @param cursor the continuation token returned by the previous page, null for the first page
+     * @param recursive if false the keys below the next delimiter are returned as folder resources
+     * @param startAfter the key the listing starts after, null to start at the prefix
+     * @param required if true an empty listing means the folder does not exist
+     * @return A ListResult containing the list of resources from the folder along with the cursor if exists
+     * @throws S3InterfaceException if the folder does not exist in the bucket, or if any S3 connection error occurs
+     */
+    private ListResult<Resource> listFromS3(String prefix, String folderName, String cursor, boolean recursive,
+    		String startAfter, boolean required) throws S3InterfaceException {
     	//create the request setting bucket, prefix and cursor if necessary
         ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
         	.bucket(bucketName);
-        if (parent != null) {
-            requestBuilder.prefix(parent.getId());
+        if (!recursive) {
+        	requestBuilder.delimiter("/");
+        }
+        if (prefix != null) {
+            requestBuilder.prefix(prefix);
         }
         if (cursor != null) {
             requestBuilder.continuationToken(cursor);
+        } else if (startAfter != null) {
+        	requestBuilder.startAfter(startAfter);
         }
         
         try {
         	//send the list request to S3 and throw exception if empty response
-	        ListObjectsV2Response response = s3Client.listObjectsV2(requestBuilder.build());
+	        ListObjectsV2Request request = requestBuilder.build();
+	        ListObjectsV2Response response = measure(S3InterfaceMetrics.Operation.LIST, 
+	        	() -> s3Client.listObjectsV2(request));
 
-	        if (response.contents().size() == 0) {
-	        	logger.error("The folder is empty or does not exist: {}", parent.getId());
+	        if (required && response.contents().size() == 0 && response.commonPrefixes().size() == 0) {
+	        	logger.error("The folder is empty or does not exist: {}", folderName);
     			throw new S3InterfaceException("The folder is empty or does not exist: " + folderName);
 	        }
 
-	        //transfer the content to a ListResult and return it
-	        List<Resource> resources = response.contents().stream()
-	        	.map(s3Object -> S3InterfaceHelper.createResourceFromKey(s3Object.key()))
+	        //transfer the sub folders and the content to a ListResult and return it, skipping the folder marker itself
+	        String folderKey = prefix;
+	        List<Resource> resources = Stream.concat(
+	        		response.commonPrefixes().stream()
+	        			.map(commonPrefix -> S3InterfaceHelper.createResourceFromKey(commonPrefix.prefix())),
+	        		response.contents().stream()
+	        			.filter(s3Object -> recursive || !s3Object.key().equals(folderKey))
+	        			.map(S3InterfaceHelper::createResourceFromObject))
 	        	.collect(Collectors.toList());
 
 	        logger.info("Successfully retrieved folder contents : {}", folderName);
@@ -136,6 +387,335 @@ public class S3Interface implements AutoCloseable {
         }
     }
 
+    /**
+     * Lazily iterates over all the files in the subtree of the specified folder resource
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @return an Iterator over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Iterator<Resource> iterateFolder(Resource parent) throws S3InterfaceException {
+    	return iterateFolder(parent, true);
+    }
+
+    /**
+     * Lazily iterates over the resources of the specified folder resource
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @return an Iterator over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Iterator<Resource> iterateFolder(Resource parent, boolean recursive) throws S3InterfaceException {
+    	return iterateFolder(parent, recursive, null);
+    }
+
+    /**
+     * Lazily iterates over the resources of the specified folder resource matching a filter
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @param filter the files to be listed, null to list all of them
+     * @return an Iterator over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Iterator<Resource> iterateFolder(Resource parent, boolean recursive, ResourceFilter filter) 
+    		throws S3InterfaceException {
+    	//list the key ranges of the folder concurrently when configured, the order of the keys is not kept
+    	if (recursive && config.getListingParallelism() > 1 && !isListingIndexReady()) {
+    		return iterateShards(parent, filter);
+    	}
+    	return ListingIterator.open(cursor -> listFolder(parent, cursor, recursive, filter), listingExecutor);
+    }
+
+    /**
+     * Lazily streams all the files in the subtree of the specified folder resource
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @return a sequential Stream over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Stream<Resource> streamFolder(Resource parent) throws S3InterfaceException {
+    	return streamFolder(parent, true);
+    }
+
+    /**
+     * Lazily streams the resources of the specified folder resource
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @return a sequential Stream over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Stream<Resource> streamFolder(Resource parent, boolean recursive) throws S3InterfaceException {
+    	return streamFolder(parent, recursive, null);
+    }
+
+    /**
+     * Lazily streams the resources of the specified folder resource matching a filter
+     * <br>The pages of the listing are requested in the background while the previous one is consumed
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @param recursive if true all the files in the subtree of the folder are listed,
+     * <br>if false only the direct children are listed, the sub folders being returned as folder resources
+     * @param filter the files to be listed, null to list all of them
+     * @return a sequential Stream over the resources of the folder, 
+     * it throws UncheckedS3InterfaceException if a page after the first one cannot be listed
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public Stream<Resource> streamFolder(Resource parent, boolean recursive, ResourceFilter filter) 
+    		throws S3InterfaceException {
+    	Iterator<Resource> iterator = iterateFolder(parent, recursive, filter);
+    	return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 
+    		Spliterator.ORDERED | Spliterator.NONNULL), false)
+    		.onClose(() -> closeListing(iterator));
+    }
+
+    /**
+     * Lists all the files in the subtree of the specified folder resource in a memory compact list
+     * <br>The list stores the keys front coded and the metadata in primitive arrays, the Resource instances
+     * are only created while the list is read, so listings of millions of keys fit in a small heap
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @return the resources of the folder in the listing order
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    public CompactResourceList listAll(Resource parent) throws S3InterfaceException {
+    	//only the page being read is held as Resource instances
+    	Iterator<Resource> iterator = iterateFolder(parent, true);
+    	CompactResourceList resources = new CompactResourceList();
+    	try {
+    		while (iterator.hasNext()) {
+    			resources.add(iterator.next());
+    		}
+    	} catch (UncheckedS3InterfaceException e) {
+    		throw e.getCause();
+    	} finally {
+    		closeListing(iterator);
+    	}
+    	resources.trimToSize();
+    	logger.info("Successfully listed {} resources in {} bytes", resources.size(), resources.getMemoryUsage());
+    	return resources;
+    }
+
+    /**
+     * Lists the subtree of a folder as several key ranges listed concurrently on the listing executor
+     * <br>The ranges are delimited by the configured split points within the folder or, if none, 
+     * they are the sub folders of the folder
+     * @param parent the folder resource to be listed, if null all the resources in the bucket are listed
+     * @param filter the files to be listed, null to list all of them
+     * @return an Iterator over the resources of the folder, in no particular order
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * or if any S3 connection error occurs 
+     */
+    private Iterator<Resource> iterateShards(Resource parent, ResourceFilter filter) throws S3InterfaceException {
+    	//check the input to be a folder
+    	if (parent != null && parent.getType() == 0) {
+    		logger.error("The provided resource is not a folder");
+    		throw new S3InterfaceException("The provided resource is not a folder");
+    	}
+    	String prefix = (parent == null || parent.getId().equals("/") || StringUtils.isBlank(parent.getId())) ?
+    		null :
+    		parent.getId();
+    	String folderName = (prefix == null ? "/" : prefix);
+    	
+    	//narrow the listing to the keys the filter can match as listFolder does, the folder may then look empty
+    	String listPrefix = prefix;
+    	String startAfter = null;
+    	boolean narrowed = false;
+    	if (filter != null) {
+    		String keyPrefix = filter.getKeyPrefix();
+    		if (keyPrefix != null && (prefix == null || keyPrefix.startsWith(prefix))) {
+    			narrowed = !keyPrefix.equals(prefix);
+    			listPrefix = keyPrefix;
+    		}
+    		if (filter.getStartAfter() != null && 
+    			(listPrefix == null || S3InterfaceHelper.compareKeys(filter.getStartAfter(), listPrefix) >= 0)) {
+    			startAfter = filter.getStartAfter();
+    			narrowed = true;
+    		}
+    	}
+    	//the lowest key listed, the keys are compared in the order of S3
+    	String from = (startAfter == null) ? null : startAfter + '\0';
+    	
+    	List<Resource> initial = new ArrayList<>();
+    	List<ShardedListingIterator.Shard> shards = new ArrayList<>();
+    	String shardPrefix = listPrefix;
+    	List<String> splitPoints = config.getListingSplitPoints().stream()
+    		.filter(key -> shardPrefix == null ? !key.isEmpty() : 
+    			key.startsWith(shardPrefix) && key.length() > shardPrefix.length())
+    		.sorted(S3InterfaceHelper::compareKeys)
+    		.distinct()
+    		.collect(Collectors.toList());
+    	if (!splitPoints.isEmpty()) {
+    		//one shard per range between two consecutive split points, the ranges before the start after are skipped
+    		String start = from;
+    		for (String splitPoint : splitPoints) {
+    			if (start == null || S3InterfaceHelper.compareKeys(splitPoint, start) > 0) {
+    				shards.add(new ShardedListingIterator.Shard(listPrefix, start, splitPoint));
+    				start = splitPoint;
+    			}
+    		}
+    		shards.add(new ShardedListingIterator.Shard(listPrefix, start, null));
+    	} else {
+    		//one shard per sub folder, the files at the top of the folder are listed while discovering them
+    		discoverShards(listPrefix, startAfter, folderName, initial, shards);
+    	}
+    	
+    	//the folder exists if any key is listed, the ones excluded by the filter included
+    	AtomicBoolean found = new AtomicBoolean(!initial.isEmpty() || (splitPoints.isEmpty() && !shards.isEmpty()));
+    	//the shards are filtered page by page, a filter matching no file gives an empty listing
+    	if (filter != null) {
+    		initial.removeIf(filter.negate());
+    	}
+    	ShardedListingIterator iterator = ShardedListingIterator.open(initial, shards, 
+    		(shard, cursor) -> listShard(shard, cursor, filter, found), listingExecutor, 
+    		config.getListingParallelism());
+    	try {
+    		if (!narrowed && !iterator.hasNext() && !found.get()) {
+    			logger.error("The folder is empty or does not exist: {}", folderName);
+    			throw new S3InterfaceException("The folder is empty or does not exist: " + folderName);
+    		}
+    	} catch (UncheckedS3InterfaceException e) {
+    		logger.error("Error listing folder {} for bucket: {}", folderName, bucketName);
+    		throw e.getCause();
+    	}
+    	logger.info("Listing folder {} as {} shards", folderName, shards.size());
+    	return iterator;
+    }
+
+    /**
+     * Lists a folder with the delimiter to split its subtree on the sub folders
+     * @param prefix the prefix of the folder, null for the whole bucket
+     * @param startAfter the key the listing starts after, null to start at the prefix
+     * @param folderName the name of the folder used in the messages
+     * @param files the list the files at the top of the folder are added to
+     * @param shards the list the shard of every sub folder is added to
+     * @throws S3InterfaceException if any S3 connection error occurs
+     */
+    private void discoverShards(String prefix, String startAfter, String folderName, List<Resource> files, 
+    		List<ShardedListingIterator.Shard> shards) throws S3InterfaceException {
+    	//a sub folder holding the start after key is listed from the key following it
+    	String from = (startAfter == null) ? null : startAfter + '\0';
+    	String cursor = null;
+    	try {
+    		do {
+    			ListObjectsV2Request request = ListObjectsV2Request.builder()
+    				.bucket(bucketName)
+    				.prefix(prefix)
+    				.delimiter("/")
+    				.startAfter(cursor == null ? startAfter : null)
+    				.continuationToken(cursor)
+    				.build();
+    			ListObjectsV2Response response = measure(S3InterfaceMetrics.Operation.LIST, 
+    				() -> s3Client.listObjectsV2(request));
+    			for (CommonPrefix commonPrefix : response.commonPrefixes()) {
+    				String start = (from != null && S3InterfaceHelper.compareKeys(from, commonPrefix.prefix()) > 0) ? 
+    					from : null;
+    				shards.add(new ShardedListingIterator.Shard(commonPrefix.prefix(), start, null));
+    			}
+    			for (S3Object object : response.contents()) {
+    				files.add(S3InterfaceHelper.createResourceFromObject(object));
+    			}
+    			cursor = response.nextContinuationToken();
+    		} while (cursor != null);
+    	} catch (SdkException e) {
+    		logger.error("Error listing folder {} for bucket: {}", folderName, bucketName, e);
+    		throw new S3InterfaceException("Error listing folder " + folderName + " for bucket: " + bucketName, e);
+    	}
+    }
+
+    /**
+     * Lists a page of the keys of a shard
+     * @param shard the range of keys to list
+     * @param cursor the cursor returned by the previous page, null for the first page
+     * @param filter the files to be listed, null to list all of them
+     * @param found set once a key of the shard is listed, whether the filter excludes it or not
+     * @return the files of the page within the shard, with a null cursor once the end of the shard is passed
+     * @throws S3InterfaceException if any S3 connection error occurs
+     */
+    private ListResult<Resource> listShard(ShardedListingIterator.Shard shard, String cursor, ResourceFilter filter,
+    		AtomicBoolean found) throws S3InterfaceException {
+    	ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
+    		.bucket(bucketName)
+    		.prefix(shard.getPrefix());
+    	if (cursor != null) {
+    		requestBuilder.continuationToken(cursor);
+    	} else if (shard.getStart() != null) {
+    		requestBuilder.startAfter(keyBefore(shard.getStart()));
+    	}
+    	
+    	try {
+    		ListObjectsV2Request request = requestBuilder.build();
+    		ListObjectsV2Response response = measure(S3InterfaceMetrics.Operation.LIST, 
+    			() -> s3Client.listObjectsV2(request));
+    		List<Resource> resources = new ArrayList<>(response.contents().size());
+    		for (S3Object object : response.contents()) {
+    			if (shard.contains(object.key())) {
+    				found.set(true);
+    				Resource resource = S3InterfaceHelper.createResourceFromObject(object);
+    				if (filter == null || filter.test(resource)) {
+    					resources.add(resource);
+    				}
+    			} else if (shard.getEnd() != null && S3InterfaceHelper.compareKeys(object.key(), shard.getEnd()) >= 0) {
+    				//the keys are listed in order, the rest of the page belongs to the next shard
+    				return new ListResult<>(resources, null);
+    			}
+    		}
+    		return new ListResult<>(resources, response.nextContinuationToken());
+    	} catch (SdkException e) {
+    		logger.error("Error listing shard {} for bucket: {}", shard, bucketName, e);
+    		throw new S3InterfaceException("Error listing shard " + shard + " for bucket: " + bucketName, e);
+    	}
+    }
+
+    /**
+     * Stops the background listing of an iterator returned by iterateFolder
+     * @param iterator the iterator
+     */
+    private static void closeListing(Iterator<Resource> iterator) {
+    	if (iterator instanceof ShardedListingIterator) {
+    		((ShardedListingIterator) iterator).close();
+    	}
+    }
+
+    /**
+     * @param key a non empty key
+     * @return a key sorting before the given key, used as start after to list from the given key included
+     */
+    private static String keyBefore(String key) {
+    	//the last code point is lowered, never to a lone surrogate which has no UTF-8 encoding
+    	int last = key.codePointBefore(key.length());
+    	String head = key.substring(0, key.length() - Character.charCount(last));
+    	if (last == 0) {
+    		return head;
+    	}
+    	int before = (last - 1 >= Character.MIN_SURROGATE && last - 1 <= Character.MAX_SURROGATE) ? 
+    		Character.MIN_SURROGATE - 1 : last - 1;
+    	return new StringBuilder(head).appendCodePoint(before).toString();
+    }
+
     /**
      * Gets a resource (file or folder) from the bucket
      * @param id the key of the resource
@@ -150,8 +730,131 @@ public class S3Interface implements AutoCloseable {
     		logger.error("The id of the resource cannot be empty");
     		throw new S3InterfaceException("The id of the resource cannot be empty");
     	}
+    	
+    	Resource resource = findResource(id);
+    	if (resource == null) {
+    		logger.error("Resource with ID: {} not found", id);
+    		throw new S3InterfaceException("Resource with ID: " + id + " not found");
+    	}
+    	logger.info("Successfully retrieved resource with ID : {}", id);
+    	return resource;
+    }
+    
+    /**
+     * Gets many resources (files or folders) from the bucket in a few requests
+     * <br>The file keys sharing a folder are resolved together by listing the range of the folder they span,
+     * as long as the listing needs fewer requests than the keys would need HEAD requests.
+     * The other keys are resolved with concurrent HEAD requests
+     * @param ids the keys of the resources
+     * @return a map from every distinct key, in input order, to its resource or to an empty Optional if it is missing
+     * @throws S3InterfaceException if any input key is blank
+     * or if any S3 connection error occurs
+     */
+    public Map<String, Optional<Resource>> getResources(Collection<String> ids) throws S3InterfaceException {
+    	//check the input is valid
+    	if (ids == null || ids.stream().anyMatch(StringUtils::isBlank)) {
+    		logger.error("The id of the resource cannot be empty");
+    		throw new S3InterfaceException("The id of the resource cannot be empty");
+    	}
+    	
+    	Map<String, Optional<Resource>> results = new LinkedHashMap<>();
+    	Map<String, TreeSet<String>> groups = new HashMap<>();
+    	List<String> singles = new ArrayList<>();
+    	for (String id : ids) {
+    		if (results.containsKey(id)) {
+    			continue;
+    		}
+    		results.put(id, null);
+    		
+    		//answer from the cache if the resource or its absence was recently checked
+    		MetadataCache.Entry cached = (metadataCache == null) ? null : metadataCache.get(id);
+    		if (cached != null) {
+    			results.put(id, Optional.ofNullable(cached.getResource()));
+    		} else if (isListingIndexReady()) {
+    			//the local index answers every key without any request
+    			results.put(id, Optional.ofNullable(listingIndex.find(id)));
+    		} else if (S3InterfaceHelper.isFolder(id)) {
+    			singles.add(id);
+    		} else {
+    			//group the files by their folder
+    			String folder = id.substring(0, id.lastIndexOf('/') + 1);
+    			groups.computeIfAbsent(folder, key -> new TreeSet<>(S3InterfaceHelper::compareKeys)).add(id);
+    		}
+    	}
+    	
+    	//scan the groups large enough to be cheaper to list, the small ones are checked one by one
+    	List<CompletableFuture<Map<String, Optional<Resource>>>> scans = new ArrayList<>();
+    	for (TreeSet<String> group : groups.values()) {
+    		if (group.size() < LIST_COST_IN_HEADS) {
+    			singles.addAll(group);
+    		} else {
+    			scans.add(CompletableFuture.supplyAsync(() -> scanGroup(group), executor));
+    		}
+    	}
+    	List<CompletableFuture<Void>> lookups = new ArrayList<>();
+    	for (String id : singles) {
+    		lookups.add(CompletableFuture.supplyAsync(() -> findResourceUnchecked(id), executor)
+    			.thenAccept(resource -> {
+    				synchronized (results) {
+    					results.put(id, Optional.ofNullable(resource));
+    				}
+    			}));
+    	}
+    	
+    	try {
+    		//the keys the scans could not reach within their budget are checked one by one too
+    		for (CompletableFuture<Map<String, Optional<Resource>>> scan : scans) {
+    			for (Map.Entry<String, Optional<Resource>> entry : scan.join().entrySet()) {
+    				if (entry.getValue() != null) {
+    					synchronized (results) {
+    						results.put(entry.getKey(), entry.getValue());
+    					}
+    				} else {
+    					String id = entry.getKey();
+    					lookups.add(CompletableFuture.supplyAsync(() -> findResourceUnchecked(id), executor)
+    		    			.thenAccept(resource -> {
+    		    				synchronized (results) {
+    		    					results.put(id, Optional.ofNullable(resource));
+    		    				}
+    		    			}));
+    				}
+    			}
+    		}
+    		CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).join();
+    	} catch (CompletionException e) {
+    		if (e.getCause() instanceof UncheckedS3InterfaceException) {
+    			throw ((UncheckedS3InterfaceException) e.getCause()).getCause();
+    		}
+    		logger.error("Failed to check resources");
+    		throw new S3InterfaceException("Failed to check resources", e.getCause());
+    	}
+    	
+    	logger.info("Successfully checked {} resources, {} scans and {} single lookups", 
+    		results.size(), scans.size(), lookups.size());
+    	return results;
+    }
+    
+    /**
+     * Looks a resource up in the metadata cache then in the bucket
+     * @param id the key of the resource
+     * @return the resource or null if it is not present in the bucket
+     * @throws S3InterfaceException if any S3 connection error occurs
+     */
+    private Resource findResource(String id) throws S3InterfaceException {
+    	//answer from the cache if the resource or its absence was recently checked
+    	if (metadataCache != null) {
+    		MetadataCache.Entry cached = metadataCache.get(id);
+    		if (cached != null) {
+    			return cached.getResource();
+    		}
+    	}
+    	//answer from the local index once built, as of its last refresh
+    	if (isListingIndexReady()) {
+    		return listingIndex.find(id);
+    	}
         
         try {
+        	Resource resource;
         	if (S3InterfaceHelper.isFolder(id)) {
         		//in case we are checking a folder create a list request and check is not empty
         		ListObjectsV2Request request = ListObjectsV2Request.builder()
@@ -159,30 +862,144 @@ public class S3Interface implements AutoCloseable {
         	        .prefix(id)
         	        .maxKeys(1)
         	        .build();
-        		if (s3Client.listObjectsV2(request).contents().size() == 0) {
-        			logger.error("Resource with ID: {} not found", id);
-        			throw new S3InterfaceException("Resource with ID: " + id + " not found");
+        		if (measure(S3InterfaceMetrics.Operation.LIST, () -> s3Client.listObjectsV2(request))
+        				.contents().size() == 0) {
+        			if (metadataCache != null) {
+        				metadataCache.putMissing(id);
+        			}
+        			return null;
         		}
+        		resource = S3InterfaceHelper.createResourceFromKey(id);
         	} else {
         		//in case we are a checking a file create a head request and check no exception is thrown
         		HeadObjectRequest request = HeadObjectRequest.builder()
                     .bucket(bucketName)
                     .key(id)
                     .build();
-        		s3Client.headObject(request);
+        		HeadObjectResponse response = measure(S3InterfaceMetrics.Operation.HEAD, 
+        			() -> s3Client.headObject(request));
+        		
+        		//convert the key to a resource keeping the metadata returned by S3
+        		Resource keyResource = S3InterfaceHelper.createResourceFromKey(id);
+        		resource = (response == null) ? keyResource :
+        			new Resource(id, keyResource.getName(), keyResource.getType(),
+        				response.contentLength() == null ? -1 : response.contentLength(),
+        				response.eTag(), response.lastModified());
         	}
-        	logger.info("Successfully retrieved resource with ID : {}", id);
         	
-        	//convert the key to a resource and return it
-            return S3InterfaceHelper.createResourceFromKey(id);
+        	if (metadataCache != null) {
+        		metadataCache.put(resource);
+        	}
+            return resource;
         } catch (NoSuchKeyException e) {
-        	logger.error("Resource with ID: {} not found", id);
-        	throw new S3InterfaceException("Resource with ID: " + id + " not found", e);
+        	if (metadataCache != null) {
+        		metadataCache.putMissing(id);
+        	}
+        	return null;
         } catch (S3Exception e) {
         	logger.error("Failed to check resource with ID: {}", id);
             throw new S3InterfaceException("Failed to check resource with ID: " + id, e);
         }
     }
+    
+    private Resource findResourceUnchecked(String id) {
+    	try {
+    		return findResource(id);
+    	} catch (S3InterfaceException e) {
+    		throw new UncheckedS3InterfaceException(e);
+    	}
+    }
+    
+    /**
+     * Resolves a group of file keys of the same folder by listing the range of keys they span
+     * @param group the keys of the group sorted in the order of S3
+     * @return the result of every key of the group, null for the keys not reached within the request budget
+     */
+    private Map<String, Optional<Resource>> scanGroup(TreeSet<String> group) {
+    	//list from just before the first key, limited to the longest prefix shared by the keys
+    	String first = group.first();
+    	String last = group.last();
+    	int prefixLength = 0;
+    	while (prefixLength < first.length() && prefixLength < last.length() && 
+    		first.charAt(prefixLength) == last.charAt(prefixLength)) {
+    		prefixLength++;
+    	}
+    	if (prefixLength > 0 && Character.isHighSurrogate(first.charAt(prefixLength - 1))) {
+    		//never split a surrogate pair, the prefix would not be valid UTF-8
+    		prefixLength--;
+    	}
+    	String prefix = first.substring(0, prefixLength);
+    	//any key lower than the first one is a valid start after
+    	String startAfter = keyBefore(first);
+    	
+    	Map<String, Optional<Resource>> results = new HashMap<>();
+    	int budget = Math.max(1, group.size() / LIST_COST_IN_HEADS);
+    	String lastListed = null;
+    	String cursor = null;
+    	boolean complete = false;
+    	try {
+    		for (int page = 0; page < budget && !complete; page++) {
+    			ListObjectsV2Request request = ListObjectsV2Request.builder()
+    				.bucket(bucketName)
+    				.prefix(prefix)
+    				.delimiter("/")
+    				.startAfter(cursor == null ? startAfter : null)
+    				.continuationToken(cursor)
+    				.build();
+    			ListObjectsV2Response response = measure(S3InterfaceMetrics.Operation.LIST, 
+    				() -> s3Client.listObjectsV2(request));
+    			
+    			for (S3Object object : response.contents()) {
+    				if (group.contains(object.key())) {
+    					Resource resource = S3InterfaceHelper.createResourceFromObject(object);
+    					results.put(object.key(), Optional.of(resource));
+    					if (metadataCache != null) {
+    						metadataCache.put(resource);
+    					}
+    				}
+    				lastListed = object.key();
+    			}
+    			cursor = response.nextContinuationToken();
+    			//the scan ends once the last key of the group is passed or the folder is exhausted
+    			complete = cursor == null || (lastListed != null && S3InterfaceHelper.compareKeys(lastListed, last) >= 0);
+    		}
+    	} catch (SdkException e) {
+    		logger.error("Failed to list resources with prefix: {}", prefix);
+    		throw new UncheckedS3InterfaceException(
+    			new S3InterfaceException("Failed to list resources with prefix: " + prefix, e));
+    	}
+    	
+    	//the keys within the listed range and not listed are missing
+    	for (String id : group) {
+    		if (!results.containsKey(id)) {
+    			boolean listed = complete || (lastListed != null && S3InterfaceHelper.compareKeys(id, lastListed) <= 0);
+    			results.put(id, listed ? Optional.empty() : null);
+    			if (listed && metadataCache != null) {
+    				metadataCache.putMissing(id);
+    			}
+    		}
+    	}
+    	return results;
+    }
+
+    /**
+     * @return the counters of the getResource metadata cache of the bucket, shared by the instances of a factory,
+     * or null if the cache is disabled
+     */
+    public CacheStats getMetadataCacheStats() {
+    	if (metadataCache == null) {
+    		return null;
+    	}
+    	return new CacheStats(metadataCache.getHits(), metadataCache.getMisses(), 
+    		metadataCache.getNegativeHits(), metadataCache.size());
+    }
+
+    /**
+     * @return the counters of the local object cache or null if the cache is disabled
+     */
+    public CacheStats getObjectCacheStats() {
+    	return (objectCache == null) ? null : objectCache.getStats();
+    }
 
     /**
      * Downloads a specified resource (file or folder) from the S3 bucket in the download folder
@@ -193,6 +1010,22 @@ public class S3Interface implements AutoCloseable {
      * or if any S3 connection error occurs
      */
     public File getAsFile(Resource resource) throws S3InterfaceException {
+    	return getAsFile(resource, null);
+    }
+
+    /**
+     * Downloads a specified resource (file or folder) from the S3 bucket in the download folder,
+     * only the files of a folder matching the filter are downloaded
+     * <br>The files excluded by the filter are not removed from the download folder, even when pruning
+     * @param resource the resource to be downloaded, if null it will download all the contents in the bucket
+     * @param filter the files of the folder to be downloaded, null to download all of them, 
+     * a file resource is downloaded whatever the filter
+     * @return a File instance pointing to the downloaded resource
+     * @throws S3InterfaceException if the resource does not exist, 
+     * if any IO exception occurs 
+     * or if any S3 connection error occurs
+     */
+    public File getAsFile(Resource resource, ResourceFilter filter) throws S3InterfaceException {
     	//if the resource id is blank set the resource to null so all the bucket will be downloaded
     	if (resource != null && 
     		(resource.getId().equals("/") || 
@@ -201,46 +1034,532 @@ public class S3Interface implements AutoCloseable {
     	}
     	//if the resource is null or folder call downloadFolder else call downloadFile
     	if (resource == null || resource.getType() == 1) {
-    		return downloadFolder(resource);
+    		return downloadFolder(resource, filter);
     	} else {
+    		//create the folder of the file if not exists
+    		String folderName = S3InterfaceHelper.extractFolderName(resource);
+    		if (folderName != null) {
+    			S3InterfaceHelper.createFolder(Paths.get(downloadFolder.toString(), folderName), Optional.empty());
+    		}
     		return downloadFile(resource);
     	}
     }
     
-    @Override
-	public void close() throws Exception {
-    	//close the S3 client
-		if (s3Client != null) {
-			s3Client.close();
-		}
-		//close the executor
-		if (executor != null && !executor.isShutdown()) {
-	        executor.shutdown();
-	        try {
-	            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-	                executor.shutdownNow();
-	            }
-	        } catch (InterruptedException e) {
-	            executor.shutdownNow();
-	            Thread.currentThread().interrupt();
-	        }
-	    }
-	}
-    
-    private void validateBucket() throws S3InterfaceException {
-        try {
-        	//to validate a bucket first send a head request to check that no exception is thrown
-            HeadBucketRequest request = HeadBucketRequest.builder()
-                .bucket(bucketName)
+    /**
+     * Opens a stream over the content of a file resource without writing it to the download folder
+     * <br>The caller must close the stream to release the connection
+     * @param resource the file resource to be read
+     * @return an InputStream reading the whole object
+     * @throws S3InterfaceException if the resource is not a file,
+     * if the resource is not present in the bucket
+     * or if any S3 connection error occurs
+     */
+    public InputStream getAsStream(Resource resource) throws S3InterfaceException {
+    	checkFile(resource);
+    	
+    	GetObjectRequest request = GetObjectRequest.builder()
+    		.bucket(bucketName)
+    		.key(resource.getId())
+    		.build();
+    	try {
+    		//the latency of the GET covers the time to the first byte only, the content is read by the caller
+    		//the stream is held by the caller for an unknown time, so it does not keep a slot of the limiter
+    		return measure(S3InterfaceMetrics.Operation.GET, () -> s3Client.getObject(request));
+    	} catch (NoSuchKeyException e) {
+    		logger.error("Resource with ID: {} not found", resource.getId());
+    		throw new S3InterfaceException("Resource with ID: " + resource.getId() + " not found", e);
+    	} catch (SdkException e) {
+    		logger.error("Failed to read file: {}", resource.getId());
+    		throw new S3InterfaceException("Failed to read file: " + resource.getId(), e);
+    	}
+    }
+    
+    /**
+     * Opens a seekable channel over the content of a file resource
+     * <br>The content is fetched lazily with byte-range GETs pinned to the current version of the object,
+     * so only the parts actually read are transferred, e.g. the footer of a Parquet or ZIP file
+     * @param resource the file resource to be read
+     * @return a read only SeekableByteChannel over the object
+     * @throws S3InterfaceException if the resource is not a file,
+     * if the resource is not present in the bucket
+     * or if any S3 connection error occurs
+     */
+    public SeekableByteChannel getAsChannel(Resource resource) throws S3InterfaceException {
+    	checkFile(resource);
+    	
+    	//the size and the ETag are needed up front, ask S3 only if the resource does not carry them
+    	Resource file = (resource.getSize() < 0 || resource.getETag() == null) ? 
+    		getResource(resource.getId()) : 
+    		resource;
+    	return new RangeChannel((offset, length) -> fetchRange(file.getId(), file.getETag(), offset, length),
+    		file.getSize(), (int) Math.min(Integer.MAX_VALUE, config.getMultipartDownloadPartSize()));
+    }
+    
+    /**
+     * Reads a byte range of a file without writing it to the download folder
+     * @param id the key of the file
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return a ByteBuffer holding the bytes read, shorter than length if the file ends before
+     * @throws S3InterfaceException if the input key is blank, if the offset or the length are not valid,
+     * if the resource is not present in the bucket
+     * or if any S3 connection error occurs
+     */
+    public ByteBuffer readRange(String id, long offset, int length) throws S3InterfaceException {
+    	//check the input is valid
+    	if (StringUtils.isBlank(id)) {
+    		logger.error("The id of the resource cannot be empty");
+    		throw new S3InterfaceException("The id of the resource cannot be empty");
+    	}
+    	if (offset < 0 || length <= 0) {
+    		logger.error("Invalid range of {} bytes at offset {}", length, offset);
+    		throw new S3InterfaceException("Invalid range of " + length + " bytes at offset " + offset);
+    	}
+    	return fetchRange(id, null, offset, length);
+    }
+    
+    /**
+     * Writes all the files in the subtree of a folder resource to a stream as a single archive,
+     * without writing them to the download folder
+     * <br>The files are fetched concurrently in parts of the multipart download part size and written
+     * in the listing order, at most archiveBufferBytes being fetched ahead of the stream.
+     * The entries are named after the keys relative to the folder
+     * @param parent the folder resource to be archived, if null all the files in the bucket are archived
+     * @param out the stream the archive is written to, it is not closed
+     * @param format the format of the archive
+     * @return the number of files written to the archive
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * if a file changed while archived,
+     * if the stream cannot be written
+     * or if any S3 connection error occurs
+     */
+    public int writeFolderAsArchive(Resource parent, OutputStream out, ArchiveFormat format) throws S3InterfaceException {
+    	//check the input is valid
+    	if (out == null || format == null) {
+    		logger.error("The output stream and the archive format cannot be null");
+    		throw new S3InterfaceException("The output stream and the archive format cannot be null");
+    	}
+    	if (parent != null && 
+    		(parent.getId().equals("/") || 
+    		 StringUtils.isBlank(parent.getId()))) {
+    		parent = null;
+    	}
+    	String folderName = (parent == null ? "/" : parent.getId());
+    	//the entries are relative to the last folder of the prefix
+    	int nameStart = (parent == null) ? 0 : parent.getId().lastIndexOf('/') + 1;
+    	
+    	int partSize = (int) Math.min(Integer.MAX_VALUE, 
+    		Math.min(config.getMultipartDownloadPartSize(), config.getArchiveBufferBytes()));
+    	FolderArchiver archiver = new FolderArchiver((file, offset, length) -> fetchRange(file.getId(), file.getETag(), 
+    		offset, length), executor, partSize, config.getArchiveBufferBytes(), 2 * config.getDownloadThreads());
+    	try (Stream<Resource> files = streamFolder(parent)) {
+    		//the archive formats write many small blocks
+    		ArchiveWriter writer = ArchiveWriter.create(format, new BufferedOutputStream(out, TRANSFER_BUFFER_SIZE));
+    		int count = archiver.write(files.iterator(), nameStart, writer);
+    		writer.finish();
+    		logger.info("Successfully archived {} files of folder: {}", count, folderName);
+    		return count;
+    	} catch (IOException e) {
+    		logger.error("Failed to write the archive of folder: {}", folderName);
+    		throw new S3InterfaceException("Failed to write the archive of folder: " + folderName, e);
+    	}
+    }
+    
+    /**
+     * Writes all the files in the subtree of a folder resource to a channel as a single archive
+     * @param parent the folder resource to be archived, if null all the files in the bucket are archived
+     * @param channel the channel the archive is written to, it is not closed
+     * @param format the format of the archive
+     * @return the number of files written to the archive
+     * @throws S3InterfaceException if the provided resource is not a folder,
+     * if the folder does not exist in the bucket,
+     * if a file changed while archived,
+     * if the channel cannot be written
+     * or if any S3 connection error occurs
+     * @see #writeFolderAsArchive(Resource, OutputStream, ArchiveFormat)
+     */
+    public int writeFolderAsArchive(Resource parent, WritableByteChannel channel, ArchiveFormat format) 
+    		throws S3InterfaceException {
+    	if (channel == null) {
+    		logger.error("The output channel cannot be null");
+    		throw new S3InterfaceException("The output channel cannot be null");
+    	}
+    	return writeFolderAsArchive(parent, Channels.newOutputStream(channel), format);
+    }
+    
+    /**
+     * Uploads a local file to the bucket
+     * <br>Files larger than the multipart upload threshold are sent as a multipart upload 
+     * with the parts uploaded in parallel
+     * @param file the local file to be uploaded
+     * @param key the key of the uploaded object
+     * @return the Resource of the uploaded object
+     * @throws S3InterfaceException if the file does not exist, if the key is blank or is a folder key,
+     * if any IO exception occurs 
+     * or if any S3 connection error occurs
+     */
+    public Resource putFile(Path file, String key) throws S3InterfaceException {
+    	//check the input is valid
+    	if (StringUtils.isBlank(key) || S3InterfaceHelper.isFolder(key)) {
+    		logger.error("The key of the uploaded file is not valid: {}", key);
+    		throw new S3InterfaceException("The key of the uploaded file is not valid: " + key);
+    	}
+    	if (file == null || !Files.isRegularFile(file)) {
+    		logger.error("The file to upload does not exist: {}", file);
+    		throw new S3InterfaceException("The file to upload does not exist: " + file);
+    	}
+    	return uploadFile(file, key);
+    }
+    
+    /**
+     * Uploads all the files in the subtree of a local folder to the bucket
+     * <br>The files are uploaded concurrently by the executor of the instance, 
+     * with at most maxPendingDownloads files scheduled at a time
+     * @param folder the local folder to be uploaded
+     * @param prefix the folder key the files are uploaded under, null or blank to upload them to the root of the bucket
+     * @return the number of uploaded files
+     * @throws S3InterfaceException if the folder does not exist, 
+     * if any file fails to upload once all the others are uploaded,
+     * if any IO exception occurs 
+     * or if any S3 connection error occurs
+     */
+    public int putFolder(Path folder, String prefix) throws S3InterfaceException {
+    	//check the input is valid
+    	if (folder == null || !Files.isDirectory(folder)) {
+    		logger.error("The folder to upload does not exist: {}", folder);
+    		throw new S3InterfaceException("The folder to upload does not exist: " + folder);
+    	}
+    	String keyPrefix = StringUtils.isBlank(prefix) ? "" : (S3InterfaceHelper.isFolder(prefix) ? prefix : prefix + "/");
+    	logger.info("Started uploading folder {} to: {}", folder, keyPrefix.isEmpty() ? "/" : keyPrefix);
+    	
+    	//init counters
+    	int countTotal = 0;
+    	AtomicInteger countUploaded = new AtomicInteger();
+    	AtomicInteger countFailed = new AtomicInteger();
+    	
+    	//bounds the uploads scheduled and not yet completed, the folder walk pauses while the limit is reached
+    	int maxPending = config.getMaxPendingDownloads();
+    	Semaphore pending = new Semaphore(maxPending);
+    	IOException walkError = null;
+    	
+    	try (Stream<Path> paths = Files.walk(folder)) {
+    		Iterator<Path> files = paths.filter(Files::isRegularFile).iterator();
+    		while (files.hasNext()) {
+    			Path file = files.next();
+    			String key = keyPrefix + folder.relativize(file).toString().replace(File.separatorChar, '/');
+    			countTotal++;
+    			
+    			//wait for a free slot then upload the file on the executor
+    			acquirePermits(pending, 1, folder.toString());
+    			try {
+    				CompletableFuture.runAsync(() -> handleAsyncUpload(file, key, countUploaded, countFailed), executor)
+    					.whenComplete((result, e) -> pending.release());
+    			} catch (RuntimeException e) {
+    				pending.release();
+    				throw e;
+    			}
+    		}
+    	} catch (IOException e) {
+    		walkError = e;
+    	} catch (UncheckedIOException e) {
+    		walkError = e.getCause();
+    	}
+    	
+    	//wait for all the async calls to complete, that is when all the permits are released
+    	acquirePermits(pending, maxPending, folder.toString());
+    	pending.release(maxPending);
+    	
+    	if (walkError != null) {
+    		logger.error("Failed to read folder: {}", folder);
+    		throw new S3InterfaceException("Failed to read folder: " + folder, walkError);
+    	}
+    	logger.info("{} of {} files uploaded, {} failed", countUploaded.get(), countTotal, countFailed.get());
+    	if (countFailed.get() > 0) {
+    		logger.error("{} files of folder {} failed to upload", countFailed.get(), folder);
+    		throw new S3InterfaceException(countFailed.get() + " files of folder " + folder + " failed to upload");
+    	}
+    	logger.info("Successfully uploaded folder: {}", folder);
+    	return countUploaded.get();
+    }
+    
+    @Override
+	public void close() throws Exception {
+    	//close the S3 clients, the executors and the journal, the shared ones are closed by their factory
+    	//a listing index rebuild interrupted is discarded
+		if (ownsResources) {
+			resources.close();
+		}
+		//remove the metrics from JMX
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+			} catch (JMException e) {
+				logger.warn("Failed to unregister the metrics of bucket: {}", bucketName, e);
+			}
+			metricsName = null;
+		}
+	}
+    
+    /**
+     * Rebuilds the local listing index from a full listing of the bucket, e.g. after the bucket was changed
+     * by another client. The listings and the existence checks are answered from the new index once done
+     * <br>An index rebuilt meanwhile by another instance or process sharing the index folder is loaded instead
+     * @throws S3InterfaceException if the listing index is disabled, 
+     * if the index cannot be written 
+     * or if any S3 connection error occurs
+     */
+    public void refreshListingIndex() throws S3InterfaceException {
+    	if (listingIndex == null) {
+    		logger.error("The listing index is disabled for bucket: {}", bucketName);
+    		throw new S3InterfaceException("The listing index is disabled for bucket: " + bucketName);
+    	}
+    	refreshListingIndex(System.currentTimeMillis());
+    }
+    
+    /**
+     * Rebuilds the local listing index unless it was rebuilt by another instance or process meanwhile
+     * @param minBuiltAt the time the listing of the index on disk must have started at the earliest to be used
+     * @throws S3InterfaceException if the index cannot be written or if any S3 connection error occurs
+     */
+    private void refreshListingIndex(long minBuiltAt) throws S3InterfaceException {
+    	try {
+    		//the serial listing returns the keys in the order of the index
+    		listingIndex.rebuild(() -> {
+    			try {
+    				return ListingIterator.open(cursor -> listFromS3(null, "/", cursor, true, null, true), listingExecutor);
+    			} catch (S3InterfaceException e) {
+    				throw new UncheckedS3InterfaceException(e);
+    			}
+    		}, minBuiltAt);
+    	} catch (UncheckedS3InterfaceException e) {
+    		throw e.getCause();
+    	} catch (IOException e) {
+    		logger.error("Failed to build the listing index of bucket: {}", bucketName, e);
+    		throw new S3InterfaceException("Failed to build the listing index of bucket: " + bucketName, e);
+    	}
+    }
+    
+    private void refreshListingIndexInBackground() {
+    	try {
+    		refreshListingIndex(System.currentTimeMillis() - config.getListingIndexRefreshInterval().toMillis());
+    	} catch (S3InterfaceException | RuntimeException e) {
+    		//the previous index keeps being used until the next refresh
+    		logger.warn("Failed to refresh the listing index of bucket: {}", bucketName, e);
+    	}
+    }
+    
+    private boolean isListingIndexReady() {
+    	return listingIndex != null && listingIndex.isReady();
+    }
+    
+    /**
+     * Gets the operation metrics of the instance
+     * <br>Latency histograms and error counts of the LIST, HEAD and GET requests, retries, 
+     * downloaded bytes and throughput, in-flight requests and executor queue depth
+     * @return the metrics of the instance
+     */
+    public S3InterfaceMetrics getMetrics() {
+    	return metrics;
+    }
+    
+    private void registerMetrics() {
+    	try {
+    		ObjectName name = new ObjectName("qteam.solutions.s3:type=S3Interface,bucket=" + 
+    			ObjectName.quote(bucketName) + ",id=" + instanceIds.incrementAndGet());
+    		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+    		metricsName = name;
+    	} catch (JMException e) {
+    		//the metrics are still available through getMetrics()
+    		logger.warn("Failed to register the metrics of bucket: {}", bucketName, e);
+    	}
+    }
+    
+    private <T> T measure(S3InterfaceMetrics.Operation operation, Supplier<T> request) {
+    	return sendRequest(operation, () -> {
+    		long start = metrics.start();
+    		boolean failed = true;
+    		try {
+    			T result = request.get();
+    			failed = false;
+    			return result;
+    		} finally {
+    			metrics.end(operation, start, failed);
+    		}
+    	});
+    }
+    
+    /**
+     * Sends a request within the concurrency limit, retrying it with a random backoff while S3 throttles it
+     * @param operation the type of the request, null if the call covers the transfer of a body of any size
+     * so its latency is not compared to the other requests
+     * @param request the call sending the request, invoked again for every attempt
+     * @return the result of the call
+     * @throws SdkException if the request fails, is still throttled after the retries or the thread is interrupted
+     */
+    private <T> T sendRequest(S3InterfaceMetrics.Operation operation, Supplier<T> request) {
+    	for (int attempt = 0; ; attempt++) {
+    		long start = acquireRequestSlot();
+    		try {
+    			T result = request.get();
+    			limiter.succeeded(operation, start);
+    			return result;
+    		} catch (RuntimeException e) {
+    			retryThrottled(e, start, attempt);
+    		}
+    	}
+    }
+    
+    /**
+     * Sends a GET within the concurrency limit, retrying it with a random backoff while S3 throttles it
+     * <br>The request keeps its slot until its body is closed or aborted, so the transfers are limited
+     * and not only the requests. The latency compared by the limiter and recorded in the metrics as a GET
+     * is the time to the response, as for the other requests
+     * @param request the GET request
+     * @return the response, its body must be closed to release the slot
+     * @throws SdkException if the request fails, is still throttled after the retries or the thread is interrupted
+     */
+    private ResponseInputStream<GetObjectResponse> sendTransfer(GetObjectRequest request) {
+    	long requestStart = metrics.start();
+    	boolean requestFailed = true;
+    	try {
+    		for (int attempt = 0; ; attempt++) {
+    			long start = acquireRequestSlot();
+    			ResponseInputStream<GetObjectResponse> response;
+    			try {
+    				response = s3Client.getObject(request);
+    			} catch (RuntimeException e) {
+    				retryThrottled(e, start, attempt);
+    				continue;
+    			}
+    			long responded = System.nanoTime();
+    			AtomicBoolean released = new AtomicBoolean();
+    			Runnable release = () -> {
+    				if (released.compareAndSet(false, true)) {
+    					limiter.succeeded(S3InterfaceMetrics.Operation.GET, start, responded);
+    				}
+    			};
+    			InputStream body = new FilterInputStream(response) {
+    				@Override
+    				public void close() throws IOException {
+    					try {
+    						super.close();
+    					} finally {
+    						release.run();
+    					}
+    				}
+    			};
+    			requestFailed = false;
+    			return new ResponseInputStream<>(response.response(), AbortableInputStream.create(body, () -> {
+    				try {
+    					response.abort();
+    				} finally {
+    					release.run();
+    				}
+    			}));
+    		}
+    	} finally {
+    		metrics.end(S3InterfaceMetrics.Operation.GET, requestStart, requestFailed);
+    	}
+    }
+    
+    /**
+     * Releases the slot of a failed request and waits before the next attempt if it was throttled
+     * @param e the failure of the request
+     * @param start the value returned by acquireRequestSlot() for the request
+     * @param attempt the number of attempts already failed before this one
+     * @throws RuntimeException the failure if the request is not to be retried
+     */
+    private void retryThrottled(RuntimeException e, long start, int attempt) {
+    	if (!AdaptiveConcurrencyLimiter.isThrottled(e)) {
+    		limiter.failed();
+    		throw e;
+    	}
+    	limiter.throttled(start);
+    	metrics.addThrottle();
+    	if (attempt >= config.getMaxThrottleRetries()) {
+    		throw e;
+    	}
+    	//wait before retrying so the throttled requests of all the threads do not come back together
+    	try {
+    		Thread.sleep(throttleBackoff(attempt));
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		throw SdkClientException.create("Interrupted while waiting to retry a throttled request", ie);
+    	}
+    }
+    
+    private long acquireRequestSlot() {
+    	try {
+    		return limiter.acquire();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw SdkClientException.create("Interrupted while waiting to send a request", e);
+    	}
+    }
+    
+    private static long throttleBackoff(int attempt) {
+    	long bound = Math.min(THROTTLE_BACKOFF_MAX_MILLIS, THROTTLE_BACKOFF_BASE_MILLIS << Math.min(attempt, 20));
+    	return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+    
+    private void checkFile(Resource resource) throws S3InterfaceException {
+    	if (resource == null || resource.getType() == 1 || StringUtils.isBlank(resource.getId())) {
+    		logger.error("The provided resource is not a file");
+    		throw new S3InterfaceException("The provided resource is not a file");
+    	}
+    }
+    
+    private ByteBuffer fetchRange(String id, String eTag, long offset, int length) throws S3InterfaceException {
+    	GetObjectRequest request = GetObjectRequest.builder()
+    		.bucket(bucketName)
+    		.key(id)
+    		.range("bytes=" + offset + "-" + (offset + length - 1))
+    		.ifMatch(eTag)
+    		.build();
+    	
+    	try (ResponseInputStream<GetObjectResponse> inputStream = 
+    			sendTransfer(request)) {
+    		//read the range in a buffer of the length sent, S3 sends less than requested at the end of the object
+    		Long contentLength = inputStream.response().contentLength();
+    		int size = (contentLength == null) ? length : (int) Math.max(0, Math.min(length, contentLength));
+    		byte[] content = new byte[size];
+    		int read = inputStream.readNBytes(content, 0, size);
+    		metrics.addBytesDownloaded(read);
+    		return ByteBuffer.wrap(content, 0, read).slice();
+    	} catch (NoSuchKeyException e) {
+    		logger.error("Resource with ID: {} not found", id);
+    		throw new S3InterfaceException("Resource with ID: " + id + " not found", e);
+    	} catch (S3Exception e) {
+    		if (e.statusCode() == 416) {
+    			//the range starts after the end of the object
+    			return ByteBuffer.allocate(0);
+    		}
+    		logger.error("Failed to read {} bytes at offset {} of file: {}", length, offset, id);
+    		throw new S3InterfaceException("Failed to read " + length + " bytes at offset " + offset + 
+    			" of file: " + id, e);
+    	} catch (IOException | SdkException e) {
+    		logger.error("Failed to read {} bytes at offset {} of file: {}", length, offset, id);
+    		throw new S3InterfaceException("Failed to read " + length + " bytes at offset " + offset + 
+    			" of file: " + id, e);
+    	}
+    }
+    
+    private void validateBucket() throws S3InterfaceException {
+        try {
+        	//to validate a bucket first send a head request to check that no exception is thrown
+            HeadBucketRequest request = HeadBucketRequest.builder()
+                .bucket(bucketName)
                 .build();
-            s3Client.headBucket(request);
+            measure(S3InterfaceMetrics.Operation.HEAD, () -> s3Client.headBucket(request));
             
             //second send a dummy list request to check the bucket is not empty
             ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
                 .bucket(bucketName)
                 .maxKeys(1)
                 .build();
-            if (s3Client.listObjectsV2(listRequest).contents().size() == 0) {
+            if (measure(S3InterfaceMetrics.Operation.LIST, () -> s3Client.listObjectsV2(listRequest))
+            		.contents().size() == 0) {
             	logger.error("The bucket is empty: {}", bucketName);
             	throw new S3InterfaceException("The bucket is empty: " + bucketName);
             }
@@ -256,29 +1575,408 @@ public class S3Interface implements AutoCloseable {
     }
     
     private File downloadFile(Resource resource) throws S3InterfaceException {
-    	//create the output path
+    	//create the output path, the object is written to a temporary file next to it
     	Path filePath = Paths.get(downloadFolder.toString(), resource.getId());
     	
-    	//create a get object request
+    	//continue the download interrupted by a previous run if the object did not change since
+    	DownloadJournal.Partial partial = (journal == null) ? null : journal.getPartial(resource.getId());
+    	if (partial != null) {
+    		Path previousPath = filePath.resolveSibling(partial.getFileName());
+    		if (Files.exists(previousPath) && resumeDownload(resource, partial, previousPath)) {
+    			logger.info("Successfully resumed download of file: {}", filePath);
+    			return filePath.toFile();
+    		}
+    		//the download starts over in a new partial file
+    		deletePartialFile(previousPath);
+    	}
+    	
+    	//serve the object from the local cache if the cached version is known to be the current one
+    	ObjectCache.Entry cached = (objectCache == null) ? null : objectCache.get(resource.getId());
+    	if (cached != null && (objectCache.isFresh(cached) || cached.getETag().equals(resource.getETag())) &&
+    		copyFromCache(resource, cached, filePath)) {
+    		return filePath.toFile();
+    	}
+    	
+    	//create a get object request, S3 answers not modified if the cached version is the current one
+    	//an object not known to be small is requested from its first part, S3 tells its size in the Content-Range
+    	//and answers the whole object if it fits in the part
+    	boolean small = resource.getETag() != null && resource.getSize() >= 0 && 
+    		resource.getSize() <= config.getMultipartDownloadThreshold();
     	GetObjectRequest request = GetObjectRequest.builder()
                 .bucket(bucketName)
                 .key(resource.getId())
+                .ifNoneMatch(cached == null ? null : cached.getETag())
+                .range(small ? null : "bytes=0-" + (config.getMultipartDownloadPartSize() - 1))
                 .build();
 
-        try (var inputStream = s3Client.getObject(request)) {
-        	//copy contents from S3 to local file
-            Files.copy(inputStream, filePath, StandardCopyOption.REPLACE_EXISTING);
+        //the download covers the whole transfer of the object, its GET requests are measured to their response
+        long start = System.nanoTime();
+        boolean failed = true;
+        Path partialPath = null;
+        try (ResponseInputStream<GetObjectResponse> inputStream = 
+        		sendFirstPart(request)) {
+        	GetObjectResponse response = inputStream.response();
+        	partialPath = createPartialFile(filePath);
+        	Long length = (response == null) ? null : objectSize(response);
+        	String eTag = (response == null) ? null : response.eTag();
+        	if (cached != null) {
+        		//the cached version is out of date
+        		objectCache.recordMiss();
+        	}
+        	//record the object version so the download can be resumed if interrupted
+        	boolean checkpoint = journal != null && length != null && eTag != null;
+        	if (checkpoint) {
+        		journal.start(resource.getId(), eTag, length, partialPath.getFileName().toString());
+        	}
+        	
+        	if (length != null && response.contentLength() != null && length > response.contentLength()) {
+        		//large object, only its first part was returned, the other ones are downloaded in parallel
+        		downloadRanges(resource, inputStream, response.contentLength(), eTag, length, partialPath);
+        	} else {
+	        	//stream contents from S3 to the temporary file
+	        	try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.CREATE, 
+	        			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	        		if (checkpoint) {
+	        			//write the object one part at a time, recording each part once written
+	        			long partSize = config.getMultipartDownloadPartSize();
+	        			for (long position = 0; position < length; position += partSize) {
+	        				long count = Math.min(partSize, length - position);
+	        				writeAt(inputStream, channel, position, count);
+	        				checkpointRange(resource.getId(), channel, position, position + count);
+	        			}
+	        		} else {
+	        			writeAt(inputStream, channel, 0, -1);
+	        		}
+	        		if (config.isFsyncDownloads()) {
+	        			channel.force(true);
+	        		}
+	        	}
+        	}
+        	//make the complete file visible under its final name
+        	moveIntoPlace(partialPath, filePath);
+        	if (journal != null) {
+        		journal.complete(resource.getId(), eTag);
+        	}
+        	if (objectCache != null) {
+        		objectCache.put(resource.getId(), eTag, filePath);
+        	}
+        	failed = false;
             logger.info("Successfully downloaded file: {}", filePath);
             
             //return the file
             return filePath.toFile();
-        } catch (IOException e) {
-        	logger.error("Failed to download file: {}", resource.getId());
-            throw new S3InterfaceException("Failed to download file: " + resource.getId(), e);
+        } catch (S3Exception e) {
+        	if (e.statusCode() == 304 && cached != null) {
+        		//not modified, the cached version is still the current one
+        		failed = false;
+        		objectCache.revalidated(cached);
+        		//download it again if it was evicted in the meantime
+        		return copyFromCache(resource, cached, filePath) ? filePath.toFile() : downloadFile(resource);
+        	}
+        	throw downloadFailure(resource, partialPath, e);
+        } catch (IOException | SdkException | CompletionException e) {
+        	throw downloadFailure(resource, partialPath, e instanceof CompletionException ? e.getCause() : e);
+        } finally {
+        	metrics.record(S3InterfaceMetrics.Operation.DOWNLOAD, start, failed);
         }
     }
     
-    private File downloadFolder(Resource resource) throws S3InterfaceException {
+    private S3InterfaceException downloadFailure(Resource resource, Path partialPath, Throwable e) {
+    	//in resumable mode the partial file recorded in the journal is kept for the next attempt
+    	DownloadJournal.Partial partial = (journal == null) ? null : journal.getPartial(resource.getId());
+    	if (partial == null || partialPath == null || !partialPath.getFileName().toString().equals(partial.getFileName())) {
+    		deletePartialFile(partialPath);
+    	}
+    	logger.error("Failed to download file: {}", resource.getId());
+        return new S3InterfaceException("Failed to download file: " + resource.getId(), e);
+    }
+    
+    private boolean copyFromCache(Resource resource, ObjectCache.Entry cached, Path filePath) throws S3InterfaceException {
+    	Path partialPath = null;
+    	try {
+    		partialPath = createPartialFile(filePath);
+    		if (!objectCache.copyTo(cached, partialPath)) {
+    			deletePartialFile(partialPath);
+    			return false;
+    		}
+    		moveIntoPlace(partialPath, filePath);
+    		logger.info("Successfully copied file {} from the object cache", filePath);
+    		return true;
+    	} catch (IOException e) {
+    		deletePartialFile(partialPath);
+    		logger.error("Failed to copy file {} from the object cache", resource.getId());
+    		throw new S3InterfaceException("Failed to copy file " + resource.getId() + " from the object cache", e);
+    	}
+    }
+    
+    /**
+     * Sends the first GET of a download, an empty object has no byte to range so it is then requested whole
+     * @param request the request, ranged to the first part if the object may be large
+     * @return the response stream
+     */
+    private ResponseInputStream<GetObjectResponse> sendFirstPart(GetObjectRequest request) {
+    	try {
+    		return sendTransfer(request);
+    	} catch (S3Exception e) {
+    		if (e.statusCode() != 416 || request.range() == null) {
+    			throw e;
+    		}
+    		return sendTransfer(request.toBuilder().range(null).build());
+    	}
+    }
+    
+    /**
+     * @param response the response of a GET
+     * @return the size of the object, read from the Content-Range of a ranged response
+     * else the length of the whole object returned, null if unknown
+     */
+    private static Long objectSize(GetObjectResponse response) {
+    	//the Content-Range of S3 is "bytes <first>-<last>/<size>"
+    	String contentRange = response.contentRange();
+    	int slash = (contentRange == null) ? -1 : contentRange.lastIndexOf('/');
+    	if (slash >= 0 && !contentRange.endsWith("*")) {
+    		return Long.parseLong(contentRange.substring(slash + 1).trim());
+    	}
+    	return response.contentLength();
+    }
+    
+    private void downloadRanges(Resource resource, ResponseInputStream<GetObjectResponse> firstPart, long firstLength,
+    		String eTag, long length, Path filePath) throws IOException {
+    	long partSize = config.getMultipartDownloadPartSize();
+    	long parts = 1 + (length - firstLength + partSize - 1) / partSize;
+    	logger.info("Downloading file {} as {} parts of {} bytes", resource.getId(), parts, partSize);
+    	
+    	try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, 
+    			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+    		//preallocate the file so every part can be written at its own offset
+    		channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+    		
+    		//request the remaining parts in parallel, pinned to the same object version by its ETag
+    		List<CompletableFuture<Void>> futures = new ArrayList<>();
+    		AtomicBoolean cancelled = new AtomicBoolean();
+    		for (long start = firstLength; start < length; start += partSize) {
+    			long end = Math.min(length, start + partSize);
+    			futures.add(submitRange(resource.getId(), eTag, channel, start, end, cancelled));
+    		}
+    		
+    		try {
+    			//the first part is the body of the ranged response that told the size of the object
+    			writeAt(firstPart, channel, 0, firstLength);
+    			checkpointRange(resource.getId(), channel, 0, firstLength);
+    		} catch (IOException | RuntimeException e) {
+    			//no part may still be writing once the channel is closed and the file deleted
+    			firstPart.abort();
+    			cancelRanges(futures, cancelled);
+    			throw e;
+    		}
+    		
+    		//wait for all the parts to be written
+    		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    		if (config.isFsyncDownloads()) {
+    			channel.force(true);
+    		}
+    	}
+    }
+    
+    /**
+     * Downloads the byte ranges missing from the partial file of an interrupted download
+     * @param resource the resource being downloaded
+     * @param partial the state of the download recorded in the journal
+     * @param partialPath the partial file
+     * @return true if the download completed, false if the object changed since the download started
+     * @throws S3InterfaceException if any S3 or I/O error occurs
+     */
+    private boolean resumeDownload(Resource resource, DownloadJournal.Partial partial, Path partialPath) 
+    		throws S3InterfaceException {
+    	Path filePath = Paths.get(downloadFolder.toString(), resource.getId());
+    	List<long[]> missing = partial.getMissingRanges(config.getMultipartDownloadPartSize());
+    	logger.info("Resuming download of file {}, {} ranges missing", resource.getId(), missing.size());
+    	
+    	try {
+    		try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.WRITE)) {
+    			//the ranges are requested in parallel, pinned to the version of the partial file by its ETag
+    			List<CompletableFuture<Void>> futures = new ArrayList<>();
+    			AtomicBoolean cancelled = new AtomicBoolean();
+    			for (long[] range : missing) {
+    				futures.add(submitRange(resource.getId(), partial.getETag(), channel, range[0], range[1], cancelled));
+    			}
+    			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    			if (config.isFsyncDownloads()) {
+    				channel.force(true);
+    			}
+    		}
+    		moveIntoPlace(partialPath, filePath);
+    		journal.complete(resource.getId(), partial.getETag());
+    		if (objectCache != null) {
+    			objectCache.put(resource.getId(), partial.getETag(), filePath);
+    		}
+    		return true;
+    	} catch (CompletionException e) {
+    		if (e.getCause() instanceof S3Exception && ((S3Exception) e.getCause()).statusCode() == 412) {
+    			//the object was replaced in the bucket, the partial file is useless
+    			logger.info("File {} changed since its download started, restarting it", resource.getId());
+    			journal.discard(resource.getId());
+    			deletePartialFile(partialPath);
+    			return false;
+    		}
+    		logger.error("Failed to resume download of file: {}", resource.getId());
+    		throw new S3InterfaceException("Failed to resume download of file: " + resource.getId(), e.getCause());
+    	} catch (IOException e) {
+    		logger.error("Failed to resume download of file: {}", resource.getId());
+    		throw new S3InterfaceException("Failed to resume download of file: " + resource.getId(), e);
+    	}
+    }
+    
+    /**
+     * Downloads a byte range of an object on the range executor, unless a range of the same file failed
+     * @param key the key of the object
+     * @param eTag the ETag the object must still have
+     * @param channel the file to write
+     * @param start the offset of the first byte of the range
+     * @param end the offset following the last byte of the range
+     * @param cancelled set once a range of the file failed, the ranges not started yet are then skipped
+     * @return the download of the range
+     */
+    private CompletableFuture<Void> submitRange(String key, String eTag, FileChannel channel, long start, long end,
+    		AtomicBoolean cancelled) {
+    	return CompletableFuture.runAsync(() -> {
+    		//the failure of the file is reported by the range that failed
+    		if (cancelled.get()) {
+    			return;
+    		}
+    		try {
+    			downloadRange(key, eTag, channel, start, end);
+    		} catch (RuntimeException e) {
+    			cancelled.set(true);
+    			throw e;
+    		}
+    	}, rangeExecutor);
+    }
+    
+    /**
+     * Skips the byte ranges not started yet and waits for the running ones to end
+     * @param futures the downloads of the ranges
+     * @param cancelled the flag checked by the ranges before they start
+     */
+    private static void cancelRanges(List<CompletableFuture<Void>> futures, AtomicBoolean cancelled) {
+    	cancelled.set(true);
+    	for (CompletableFuture<Void> future : futures) {
+    		try {
+    			future.join();
+    		} catch (CompletionException e) {
+    			//the download already failed, the failures of the other ranges are not reported
+    		}
+    	}
+    }
+    
+    /**
+     * Downloads a byte range of an object at its offset in a file
+     * @param key the key of the object
+     * @param eTag the ETag the object must still have
+     * @param channel the file to write
+     * @param start the offset of the first byte of the range
+     * @param end the offset following the last byte of the range
+     */
+    private void downloadRange(String key, String eTag, FileChannel channel, long start, long end) {
+    	GetObjectRequest request = GetObjectRequest.builder()
+			.bucket(bucketName)
+			.key(key)
+			.range("bytes=" + start + "-" + (end - 1))
+			.ifMatch(eTag)
+			.build();
+		try (InputStream inputStream = sendTransfer(request)) {
+			writeAt(inputStream, channel, start, end - start);
+			checkpointRange(key, channel, start, end);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+    }
+    
+    private void checkpointRange(String key, FileChannel channel, long start, long end) throws IOException {
+    	if (journal == null) {
+    		return;
+    	}
+    	//the range is recorded only once its bytes are durable
+    	channel.force(false);
+    	journal.addRange(key, start, end);
+    }
+    
+    /**
+     * Copies a stream to a file channel through a heap buffer of the buffer pool
+     * @param inputStream the stream to read
+     * @param channel the channel to write, with positional writes so several parts can share it
+     * @param position the offset of the first byte in the file
+     * @param count the number of bytes to copy, or -1 to copy until the end of the stream
+     * @return the number of bytes copied
+     * @throws IOException if an I/O error occurs or the stream ends before count bytes are read
+     */
+    private long writeAt(InputStream inputStream, FileChannel channel, long position, long count) throws IOException {
+    	byte[] buffer = bufferPool.acquire();
+    	try {
+    		//the stream is read straight into the buffer and the buffer written as is, without any copy
+    		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    		long written = 0;
+    		while (count < 0 || written < count) {
+    			int length = (count < 0) ? buffer.length : (int) Math.min(buffer.length, count - written);
+    			int read = inputStream.read(buffer, 0, length);
+    			if (read < 0) {
+    				if (count < 0) {
+    					break;
+    				}
+    				throw new IOException("Unexpected end of stream at offset " + (position + written));
+    			}
+    			wrapped.limit(read).position(0);
+    			while (wrapped.hasRemaining()) {
+    				written += channel.write(wrapped, position + written);
+    			}
+    			metrics.addBytesDownloaded(read);
+    		}
+    		return written;
+    	} finally {
+    		bufferPool.release(buffer);
+    	}
+    }
+    
+    /**
+     * Creates the temporary file an object is written to before being moved to its final name
+     * <br>The name is random so it never collides with the file of another key, the file is created
+     * with the default permissions so the final file gets them too
+     * @param filePath the final file of the object
+     * @return the temporary file, in the same folder so the move is atomic
+     * @throws IOException if the file cannot be created
+     */
+    private static Path createPartialFile(Path filePath) throws IOException {
+    	while (true) {
+    		Path partialPath = filePath.resolveSibling("." + filePath.getFileName() + "." + 
+    			Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + PARTIAL_FILE_SUFFIX);
+    		try {
+    			return Files.createFile(partialPath);
+    		} catch (FileAlreadyExistsException e) {
+    			//try another name
+    		}
+    	}
+    }
+    
+    private static void moveIntoPlace(Path partialPath, Path filePath) throws IOException {
+    	try {
+    		Files.move(partialPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	} catch (AtomicMoveNotSupportedException e) {
+    		Files.move(partialPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+    	}
+    }
+    
+    private static void deletePartialFile(Path partialPath) {
+    	if (partialPath == null) {
+    		return;
+    	}
+    	try {
+    		Files.deleteIfExists(partialPath);
+    	} catch (IOException e) {
+    		logger.warn("Failed to delete partial file: {}", partialPath);
+    	}
+    }
+    
+    private File downloadFolder(Resource resource, ResourceFilter filter) throws S3InterfaceException {
     	//create the output folder path
     	Path folderPath = (resource == null) ?
     					  downloadFolder :
@@ -290,48 +1988,511 @@ public class S3Interface implements AutoCloseable {
     	int countTotal = 0;
     	AtomicInteger countDownloaded = new AtomicInteger();
     	AtomicInteger countFolders = new AtomicInteger();
+    	AtomicInteger countFailed = new AtomicInteger();
+    	int countSkipped = 0;
     	
-    	String cursor = null;
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
-
-        do {
-        	//get the list of files from the S3 folder
-            ListResult<Resource> fileList = listFolder(resource, cursor);
-            //create the output folder
-            S3InterfaceHelper.createFolder(folderPath, Optional.of(countFolders));
-            //increment file counter
-            countTotal += fileList.getResources().size();
-            
-            //for every file resource asynchronously download each one
-            for (Resource file : fileList.getResources()) {
-            	futures.add(CompletableFuture.runAsync(
-            		() -> handleAsyncDownload(file, countDownloaded, countFolders), executor));
-            }
-            //in case there are more files on the folder
-            cursor = fileList.getCursor();
-        } while (cursor != null);
+    	//in sync mode load the manifest of the previous downloads and keep track of the listed keys if pruning
+    	//a filtered listing does not tell which files were removed from the bucket, so it never prunes
+    	SyncManifest manifest = config.isSyncFolders() ? SyncManifest.load(stateFolder, downloadFolder) : null;
+    	Set<String> listedKeys = (manifest != null && config.isPruneDeletedFiles() && filter == null) ? 
+    		new HashSet<>() : null;
+    	
+        //bounds the downloads scheduled and not yet completed, the listing pauses while the limit is reached
+        //for the async engine this is also the number of concurrent GET requests
+        int maxPending = (s3AsyncClient != null) ? config.getMaxInFlightRequests() : config.getMaxPendingDownloads();
+        Semaphore pending = new Semaphore(maxPending);
+        
+        //get the files from the S3 folder, the next page is listed while the current one is scheduled
+        Iterator<Resource> files = iterateFolder(resource, true, filter);
+        //create the output folder, the folders of the session are cached so each one is created only once
+        DirectoryCache directories = new DirectoryCache(countFolders);
+        directories.ensure(folderPath);
+        //the files listed ahead are started in the order of the scheduling policy, FIFO starts them as listed
+        DownloadQueue queue = (config.getDownloadSchedulingPolicy() == DownloadSchedulingPolicy.FIFO) ? null :
+        	new DownloadQueue(config.getDownloadSchedulingPolicy(), config.getSchedulingLookahead(), 
+        		resources::getDownloadCapacity);
+        //the journal remembers the files completed until the folder download finishes
+        String prefix = (resource == null) ? null : resource.getId();
+        if (journal != null) {
+        	journal.startFolder(prefix);
+        }
+
+        boolean listed = false;
+        try {
+	        //for every file resource asynchronously download each one as soon as it is listed
+	        while (files.hasNext()) {
+	        	Resource file = files.next();
+	            //increment file counter
+	            countTotal++;
+	            
+	        	//skip the files completely downloaded by an interrupted run
+	        	if (journal != null && journal.isCompleted(file.getId(), file.getETag()) &&
+	        		Files.exists(Paths.get(downloadFolder.toString(), file.getId()))) {
+	        		if (listedKeys != null) {
+	        			listedKeys.add(file.getId());
+	        		}
+	        		if (manifest != null) {
+	        			manifest.update(file);
+	        		}
+	        		countSkipped++;
+	        		continue;
+	        	}
+	        	
+	        	if (manifest != null) {
+	        		//skip the files whose local copy is identical to the one in the bucket
+	        		if (listedKeys != null) {
+	        			listedKeys.add(file.getId());
+	        		}
+	        		if (manifest.isUnchanged(file)) {
+	        			countSkipped++;
+	        			continue;
+	        		}
+	        	}
+	        	
+	        	//create the folder of the file on the listing thread so the downloads never touch the folders
+	    		String fileFolder = S3InterfaceHelper.extractFolderName(file);
+	    		if (fileFolder != null) {
+	    			directories.ensure(Paths.get(downloadFolder.toString(), fileFolder));
+	    		}
+	        	
+	    		if (queue == null) {
+	    			scheduleDownload(file, manifest, pending, folderName, countDownloaded, countFailed);
+	    			continue;
+	    		}
+	    		//start the files held while the downloads have free capacity
+	    		queue.offer(file);
+	    		releaseQueued(queue, manifest, pending, countDownloaded, countFailed);
+	    		//the listing waits for the downloads while more than lookahead files are held
+	    		while (queue.isFull()) {
+	    			scheduleQueued(queue, manifest, pending, folderName, countDownloaded, countFailed);
+	    		}
+	        }
+	        
+	        //start the files still held by the queue once the listing is complete
+	        if (queue != null) {
+	        	while (!queue.isEmpty()) {
+	        		scheduleQueued(queue, manifest, pending, folderName, countDownloaded, countFailed);
+	        	}
+	        }
+	        listed = true;
+        } catch (UncheckedS3InterfaceException e) {
+        	throw e.getCause();
+        } finally {
+        	closeListing(files);
+        	if (!listed && journal != null) {
+        		journal.finishFolder(prefix, false);
+        	}
+        }
         
-        //wait for all the async calls to complete
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        boolean finished = false;
+        try {
+	        //wait for all the async calls to complete, that is when all the permits are released
+	        acquirePermits(pending, maxPending, folderName);
+	        pending.release(maxPending);
+	        finished = countFailed.get() == 0;
+        } finally {
+	        //once every file of the folder is downloaded the journal does not need to remember them anymore,
+	        //else they are remembered so the next download of the folder skips them
+	        if (journal != null) {
+	        	journal.finishFolder(prefix, finished);
+	        }
+        }
+        
+        if (manifest != null) {
+        	//delete the local files removed from the bucket and save the manifest for the next sync
+        	if (listedKeys != null) {
+        		int countDeleted = manifest.prune(resource == null ? null : resource.getId(), listedKeys);
+        		logger.info("{} files removed from bucket deleted", countDeleted);
+        	}
+        	manifest.save();
+        }
         
         logger.info("Successfully downloaded folder: {}", folderName);
-        logger.info("{} of {} files downloaded, {} folders created", countDownloaded.get(), countTotal, countFolders.get());
+        logger.info("{} of {} files downloaded, {} failed, {} unchanged files skipped, {} folders created", 
+        	countDownloaded.get(), countTotal, countFailed.get(), countSkipped, countFolders.get());
         
         //return the folder
         return folderPath.toFile();
     }
     
-    private void handleAsyncDownload(Resource resource, AtomicInteger countDownloaded, AtomicInteger countFolders) {
+    private void scheduleDownload(Resource file, SyncManifest manifest, Semaphore pending, String folderName,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed) throws S3InterfaceException {
+    	//wait for a free slot so the memory used by the scheduled downloads stays bounded
+    	acquirePermits(pending, 1, folderName);
+    	startDownload(file, null, manifest, pending, countDownloaded, countFailed);
+    }
+    
+    /**
+     * Waits for a free slot and free capacity then starts the next file held by the queue, the file is taken
+     * once the capacity is free so the files listed meanwhile are ordered with the others
+     */
+    private void scheduleQueued(DownloadQueue queue, SyncManifest manifest, Semaphore pending, 
+    		String folderName, AtomicInteger countDownloaded, AtomicInteger countFailed) throws S3InterfaceException {
+    	acquirePermits(pending, 1, folderName);
+    	Resource next;
     	try {
-    		//extract the folder name from a file resource key and create it if not exists
-    		String folderName = S3InterfaceHelper.extractFolderName(resource);
-    		if (folderName != null) {
-    			S3InterfaceHelper.createFolder(Paths.get(downloadFolder.toString(), folderName), Optional.of(countFolders));
+    		next = queue.take();
+    	} catch (InterruptedException e) {
+    		pending.release();
+    		Thread.currentThread().interrupt();
+    		logger.error("Interrupted while transferring folder: {}", folderName);
+    		throw new S3InterfaceException("Interrupted while transferring folder: " + folderName, e);
+    	}
+    	if (next == null) {
+    		pending.release();
+    		return;
+    	}
+    	startDownload(next, queue, manifest, pending, countDownloaded, countFailed);
+    }
+    
+    /**
+     * Starts a download holding a permit of the pending downloads, the permit and the capacity taken from
+     * the queue are released on its completion. The completion never starts another file, the listing thread does
+     */
+    private void startDownload(Resource file, DownloadQueue queue, SyncManifest manifest, Semaphore pending,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed) {
+    	try {
+        	CompletableFuture<Void> future = (s3AsyncClient != null) ?
+        		handleNonBlockingDownload(file, manifest, countDownloaded, countFailed) :
+        		CompletableFuture.runAsync(
+        			() -> handleAsyncDownload(file, manifest, countDownloaded, countFailed), executor);
+        	future.whenComplete((result, e) -> {
+        		pending.release();
+        		if (queue != null) {
+        			queue.completed();
+        		}
+        	});
+    	} catch (RuntimeException e) {
+    		pending.release();
+    		if (queue != null) {
+    			queue.completed();
     		}
-    		
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Starts the files held by the queue while the downloads have free capacity without waiting for it,
+     * a free permit of the pending downloads and fewer downloads running than the capacity of the engine
+     */
+    private void releaseQueued(DownloadQueue queue, SyncManifest manifest, Semaphore pending,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed) {
+    	while (pending.tryAcquire()) {
+    		Resource next = queue.poll();
+    		if (next == null) {
+    			pending.release();
+    			return;
+    		}
+    		startDownload(next, queue, manifest, pending, countDownloaded, countFailed);
+    	}
+    }
+    
+    private void handleAsyncDownload(Resource resource, SyncManifest manifest, AtomicInteger countDownloaded,
+    		AtomicInteger countFailed) {
+    	try {
     		//download the file and increment the counter
 	        downloadFile(resource);
 	        countDownloaded.incrementAndGet();
-	    } catch (S3InterfaceException e) {}
+	        if (manifest != null) {
+	        	manifest.update(resource);
+	        }
+	    } catch (S3InterfaceException e) {
+	    	//the other files are still downloaded, the failed ones are retried by the next folder download
+	    	countFailed.incrementAndGet();
+	    	logger.warn("Skipping file {} after download failure: {}", resource.getId(), 
+	    		e.getCause() == null ? e.getMessage() : e.getCause().toString());
+	    }
+    }
+    
+    private void handleAsyncUpload(Path file, String key, AtomicInteger countUploaded, AtomicInteger countFailed) {
+    	try {
+    		uploadFile(file, key);
+    		countUploaded.incrementAndGet();
+    	} catch (S3InterfaceException e) {
+    		//the other files are still uploaded, the failure is reported once the folder upload ends
+    		countFailed.incrementAndGet();
+    	}
+    }
+    
+    private Resource uploadFile(Path file, String key) throws S3InterfaceException {
+    	long start = metrics.start();
+    	boolean failed = true;
+    	try {
+    		long size = Files.size(file);
+    		String eTag;
+    		if (size > config.getMultipartUploadThreshold()) {
+    			//large file, split it in parts uploaded in parallel
+    			eTag = uploadParts(file, key, size);
+    		} else {
+    			PutObjectRequest request = PutObjectRequest.builder()
+    				.bucket(bucketName)
+    				.key(key)
+    				.build();
+    			eTag = sendRequest(null, () -> s3Client.putObject(request, RequestBody.fromFile(file))).eTag();
+    			metrics.addBytesUploaded(size);
+    		}
+    		failed = false;
+    		logger.info("Successfully uploaded file: {}", key);
+    		
+    		Resource keyResource = S3InterfaceHelper.createResourceFromKey(key);
+    		Resource resource = new Resource(key, keyResource.getName(), keyResource.getType(), size, eTag, null);
+    		//the listing index only sees the new object at its next rebuild
+    		if (listingIndex != null) {
+    			listingIndex.recordUpload(resource);
+    		}
+    		return resource;
+    	} catch (IOException | SdkException | CompletionException e) {
+    		logger.error("Failed to upload file: {}", key);
+    		throw new S3InterfaceException("Failed to upload file: " + key, 
+    			e instanceof CompletionException ? e.getCause() : e);
+    	} finally {
+    		metrics.end(S3InterfaceMetrics.Operation.PUT, start, failed);
+    		invalidateCachedKey(key);
+    	}
+    }
+    
+    private String uploadParts(Path file, String key, long size) {
+    	//S3 accepts a limited number of parts, the larger files are split in larger parts
+    	long partSize = Math.max(config.getMultipartUploadPartSize(), (size + MAX_UPLOAD_PARTS - 1) / MAX_UPLOAD_PARTS);
+    	int parts = (int) ((size + partSize - 1) / partSize);
+    	logger.info("Uploading file {} as {} parts of {} bytes", key, parts, partSize);
+    	
+    	CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+    		.bucket(bucketName)
+    		.key(key)
+    		.build();
+    	String uploadId = sendRequest(null, () -> s3Client.createMultipartUpload(createRequest)).uploadId();
+    	
+    	//upload the parts in parallel, each one streamed from its slice of the file
+    	List<CompletableFuture<CompletedPart>> futures = new ArrayList<>();
+    	for (int part = 1; part <= parts; part++) {
+    		int partNumber = part;
+    		long offset = (part - 1) * partSize;
+    		long length = Math.min(partSize, size - offset);
+    		futures.add(CompletableFuture.supplyAsync(
+    			() -> uploadPart(file, key, uploadId, partNumber, offset, length), rangeExecutor));
+    	}
+    	try {
+    		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    	} catch (CompletionException e) {
+    		//every part is finished, abort the upload so the parts already stored are discarded
+    		try {
+    			AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+    				.bucket(bucketName)
+    				.key(key)
+    				.uploadId(uploadId)
+    				.build();
+    			sendRequest(null, () -> s3Client.abortMultipartUpload(abortRequest));
+    		} catch (SdkException abortException) {
+    			logger.warn("Failed to abort multipart upload of file: {}", key, abortException);
+    		}
+    		throw e;
+    	}
+    	
+    	CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+    		.bucket(bucketName)
+    		.key(key)
+    		.uploadId(uploadId)
+    		.multipartUpload(CompletedMultipartUpload.builder()
+    			.parts(futures.stream().map(CompletableFuture::join).collect(Collectors.toList()))
+    			.build())
+    		.build();
+    	return sendRequest(null, () -> s3Client.completeMultipartUpload(completeRequest)).eTag();
+    }
+    
+    private CompletedPart uploadPart(Path file, String key, String uploadId, int partNumber, long offset, long length) {
+    	UploadPartRequest request = UploadPartRequest.builder()
+    		.bucket(bucketName)
+    		.key(key)
+    		.uploadId(uploadId)
+    		.partNumber(partNumber)
+    		.contentLength(length)
+    		.build();
+    	//the SDK opens a new stream for every attempt of the request
+    	RequestBody body = RequestBody.fromContentProvider(() -> {
+    		try {
+    			return new FileSliceInputStream(file, offset, length);
+    		} catch (IOException e) {
+    			throw new UncheckedIOException(e);
+    		}
+    	}, length, "application/octet-stream");
+    	
+    	UploadPartResponse response = measure(S3InterfaceMetrics.Operation.PUT, () -> s3Client.uploadPart(request, body));
+    	metrics.addBytesUploaded(length);
+    	return CompletedPart.builder()
+    		.partNumber(partNumber)
+    		.eTag(response.eTag())
+    		.build();
+    }
+    
+    private void invalidateCachedKey(String key) {
+    	if (metadataCache == null) {
+    		return;
+    	}
+    	//the key and its parent folders may be cached as missing
+    	metadataCache.invalidate(key);
+    	for (int idx = key.indexOf('/'); idx != -1; idx = key.indexOf('/', idx + 1)) {
+    		metadataCache.invalidate(key.substring(0, idx + 1));
+    	}
+    }
+    
+    private void acquirePermits(Semaphore semaphore, int permits, String folderName) throws S3InterfaceException {
+    	try {
+    		semaphore.acquire(permits);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		logger.error("Interrupted while transferring folder: {}", folderName);
+    		throw new S3InterfaceException("Interrupted while transferring folder: " + folderName, e);
+    	}
+    }
+    
+    private CompletableFuture<Void> handleNonBlockingDownload(Resource resource, SyncManifest manifest,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed) {
+    	//the partial downloads of an interrupted run are continued with byte-range GETs
+    	//and the cached objects are validated and copied from the cache
+    	//the large objects are downloaded as byte ranges, checkpointed in the journal if resumable
+    	if ((journal != null && journal.getPartial(resource.getId()) != null) ||
+    		resource.getSize() > config.getMultipartDownloadThreshold() ||
+    		(journal != null && resource.getSize() > config.getMultipartDownloadPartSize()) ||
+    		(objectCache != null && objectCache.get(resource.getId()) != null)) {
+    		return CompletableFuture.runAsync(
+    			() -> handleAsyncDownload(resource, manifest, countDownloaded, countFailed), executor);
+    	}
+    	return sendNonBlockingDownload(resource, manifest, countDownloaded, countFailed, 0, System.nanoTime());
+    }
+    
+    private CompletableFuture<Void> sendNonBlockingDownload(Resource resource, SyncManifest manifest,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed, int attempt, long downloadStart) {
+    	Path partialPath;
+    	try {
+    		partialPath = createPartialFile(Paths.get(downloadFolder.toString(), resource.getId()));
+    	} catch (IOException e) {
+    		metrics.record(S3InterfaceMetrics.Operation.DOWNLOAD, downloadStart, true);
+    		countFailed.incrementAndGet();
+    		logger.error("Failed to download file: {}", resource.getId(), e);
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	
+    	GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(resource.getId())
+                .build();
+    	
+    	//wait for the concurrency limit without blocking a thread, the slot is held for the whole transfer
+    	//the GET is measured to its response as with the SYNC engine, the wait for the slot included
+    	long start = metrics.start();
+    	return asyncLimiter.acquireAsync()
+    		.thenCompose(limiterStart -> sendNonBlockingDownload(resource, manifest, countDownloaded, countFailed, 
+    			attempt, downloadStart, request, partialPath, start, limiterStart));
+    }
+    
+    private CompletableFuture<Void> sendNonBlockingDownload(Resource resource, SyncManifest manifest,
+    		AtomicInteger countDownloaded, AtomicInteger countFailed, int attempt, long downloadStart,
+    		GetObjectRequest request, Path partialPath, long start, long limiterStart) {
+    	Path filePath = Paths.get(downloadFolder.toString(), resource.getId());
+    	
+    	//stream the object straight to the temporary file without blocking a thread
+    	AtomicLong responded = new AtomicLong(Long.MIN_VALUE);
+    	Runnable endRequest = () -> {
+    		if (responded.compareAndSet(Long.MIN_VALUE, System.nanoTime())) {
+    			metrics.end(S3InterfaceMetrics.Operation.GET, start, false);
+    		}
+    	};
+    	return s3AsyncClient.getObject(request, countingTransformer(AsyncResponseTransformer.toFile(partialPath, 
+    			FileTransformerConfiguration.defaultCreateOrReplaceExisting()), endRequest))
+    		.thenApply(response -> {
+    			try {
+    				//make the complete file visible under its final name
+    				if (config.isFsyncDownloads()) {
+    					try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.WRITE)) {
+    						channel.force(true);
+    					}
+    				}
+    				moveIntoPlace(partialPath, filePath);
+    				return response;
+    			} catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		})
+    		.handle((response, e) -> {
+    			if (e != null && responded.compareAndSet(Long.MIN_VALUE, System.nanoTime())) {
+    				//failed before its response
+    				metrics.end(S3InterfaceMetrics.Operation.GET, start, true);
+    			}
+    			endRequest.run();
+    			if (e == null) {
+    				//the latency compared by the limiter is the time to the response, as for the SYNC engine
+    				asyncLimiter.succeeded(S3InterfaceMetrics.Operation.GET, limiterStart, responded.get());
+    				metrics.record(S3InterfaceMetrics.Operation.DOWNLOAD, downloadStart, false);
+    				countDownloaded.incrementAndGet();
+    				if (journal != null) {
+    					journal.complete(resource.getId(), response == null ? null : response.eTag());
+    				}
+    				if (objectCache != null) {
+    					objectCache.put(resource.getId(), response == null ? null : response.eTag(), filePath);
+    				}
+    				if (manifest != null) {
+    					manifest.update(resource);
+    				}
+    				logger.info("Successfully downloaded file: {}", filePath);
+    				return CompletableFuture.<Void>completedFuture(null);
+    			}
+    			deletePartialFile(partialPath);
+    			if (AdaptiveConcurrencyLimiter.isThrottled(e)) {
+    				asyncLimiter.throttled(limiterStart);
+    				metrics.addThrottle();
+    				if (attempt < config.getMaxThrottleRetries()) {
+    					//send the request again after a random backoff, the file stays pending meanwhile
+    					logger.warn("Download of file {} throttled by S3, retrying", resource.getId());
+    					Executor delayed = CompletableFuture.delayedExecutor(throttleBackoff(attempt), 
+    						TimeUnit.MILLISECONDS);
+    					return CompletableFuture.supplyAsync(() -> sendNonBlockingDownload(resource, manifest, 
+    						countDownloaded, countFailed, attempt + 1, downloadStart), delayed)
+    						.thenCompose(Function.identity());
+    				}
+    			} else {
+    				asyncLimiter.failed();
+    			}
+    			metrics.record(S3InterfaceMetrics.Operation.DOWNLOAD, downloadStart, true);
+    			countFailed.incrementAndGet();
+    			logger.error("Failed to download file: {}", resource.getId(), e);
+    			return CompletableFuture.<Void>completedFuture(null);
+    		})
+    		.thenCompose(Function.identity());
+    }
+    
+    /**
+     * Counts the bytes of a response in the metrics as they are received
+     * @param transformer the transformer writing the body
+     * @param onResponse called when the response is received, before its body
+     * @return a transformer writing the body with the given one
+     */
+    private <T> AsyncResponseTransformer<GetObjectResponse, T> countingTransformer(
+    		AsyncResponseTransformer<GetObjectResponse, T> transformer, Runnable onResponse) {
+    	return new AsyncResponseTransformer<>() {
+    		@Override
+    		public CompletableFuture<T> prepare() {
+    			return transformer.prepare();
+    		}
+
+    		@Override
+    		public void onResponse(GetObjectResponse response) {
+    			onResponse.run();
+    			transformer.onResponse(response);
+    		}
+
+    		@Override
+    		public void onStream(SdkPublisher<ByteBuffer> publisher) {
+    			transformer.onStream(publisher.map(buffer -> {
+    				metrics.addBytesDownloaded(buffer.remaining());
+    				return buffer;
+    			}));
+    		}
+
+    		@Override
+    		public void exceptionOccurred(Throwable error) {
+    			transformer.exceptionOccurred(error);
+    		}
+    	};
     }
-}
\ No newline at end of file
+}
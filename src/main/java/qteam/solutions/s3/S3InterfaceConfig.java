@@ -0,0 +1,761 @@
+package qteam.solutions.s3;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Tuning options of an S3Interface instance
+ * Use S3InterfaceConfig.builder() to create one, every option not set keeps its default value
+ */
+public class S3InterfaceConfig {
+
+	/**
+	 * The engine used to transfer the objects of a folder
+	 * <br>SYNC uses the blocking S3Client, one executor thread per transfer
+	 * <br>ASYNC uses the non blocking S3AsyncClient, many transfers on a few event loop threads
+	 */
+	public enum Engine {
+		SYNC,
+		ASYNC
+	}
+
+	/**
+	 * The HTTP client used by the blocking S3Client
+	 * <br>APACHE pools the connections and supports TCP keepalive and connection acquisition timeouts
+	 * <br>URL_CONNECTION has a smaller footprint and a faster startup but no configurable pool
+	 */
+	public enum HttpClientType {
+		APACHE,
+		URL_CONNECTION
+	}
+
+	public static final int DEFAULT_DOWNLOAD_THREADS = 11;
+	public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+	public static final int DEFAULT_MAX_PENDING_DOWNLOADS = 1024;
+	public static final long DEFAULT_MULTIPART_DOWNLOAD_THRESHOLD = 64L * 1024 * 1024;
+	public static final long DEFAULT_MULTIPART_DOWNLOAD_PART_SIZE = 16L * 1024 * 1024;
+	public static final int DEFAULT_MULTIPART_DOWNLOAD_THREADS = 8;
+	public static final long DEFAULT_MULTIPART_UPLOAD_THRESHOLD = 64L * 1024 * 1024;
+	public static final long DEFAULT_MULTIPART_UPLOAD_PART_SIZE = 16L * 1024 * 1024;
+	public static final Duration DEFAULT_METADATA_CACHE_TTL = Duration.ofSeconds(60);
+	public static final Duration DEFAULT_NEGATIVE_CACHE_TTL = Duration.ofSeconds(10);
+	public static final long DEFAULT_OBJECT_CACHE_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+	public static final Duration DEFAULT_CONNECTION_TIMEOUT = Duration.ofSeconds(2);
+	public static final Duration DEFAULT_SOCKET_TIMEOUT = Duration.ofSeconds(30);
+	public static final Duration DEFAULT_CONNECTION_ACQUISITION_TIMEOUT = Duration.ofSeconds(10);
+	//connections left to the caller threads and the listings on top of the transfer threads
+	public static final int EXTRA_CONNECTIONS = 16;
+	public static final int DEFAULT_MAX_THROTTLE_RETRIES = 8;
+	public static final Duration DEFAULT_LISTING_INDEX_REFRESH_INTERVAL = Duration.ofMinutes(10);
+	public static final long DEFAULT_ARCHIVE_BUFFER_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_SCHEDULING_LOOKAHEAD = 10000;
+
+	private final URI endpointOverride;
+	private final Path downloadFolder;
+	private final Engine engine;
+	private final int downloadThreads;
+	private final int maxInFlightRequests;
+	private final int maxPendingDownloads;
+	private final long multipartDownloadThreshold;
+	private final long multipartDownloadPartSize;
+	private final int multipartDownloadThreads;
+	private final boolean fsyncDownloads;
+	private final long multipartUploadThreshold;
+	private final long multipartUploadPartSize;
+	private final boolean resumableDownloads;
+	private final boolean syncFolders;
+	private final boolean pruneDeletedFiles;
+	private final int metadataCacheSize;
+	private final Duration metadataCacheTtl;
+	private final Duration negativeCacheTtl;
+	private final boolean jmxEnabled;
+	private final Path objectCacheFolder;
+	private final long objectCacheMaxBytes;
+	private final Duration objectCacheTtl;
+	private final HttpClientType httpClientType;
+	private final int maxConnections;
+	private final Duration connectionTimeout;
+	private final Duration socketTimeout;
+	private final Duration connectionAcquisitionTimeout;
+	private final boolean tcpKeepAlive;
+	private final int listingParallelism;
+	private final List<String> listingSplitPoints;
+	private final boolean adaptiveConcurrency;
+	private final int maxThrottleRetries;
+	private final Path listingIndexFolder;
+	private final Duration listingIndexRefreshInterval;
+	private final long archiveBufferBytes;
+	private final DownloadSchedulingPolicy downloadSchedulingPolicy;
+	private final int schedulingLookahead;
+
+	private S3InterfaceConfig(Builder builder) {
+		this.endpointOverride = builder.endpointOverride;
+		this.downloadFolder = builder.downloadFolder;
+		this.engine = builder.engine;
+		this.downloadThreads = builder.downloadThreads;
+		this.maxInFlightRequests = builder.maxInFlightRequests;
+		this.maxPendingDownloads = builder.maxPendingDownloads;
+		this.multipartDownloadThreshold = builder.multipartDownloadThreshold;
+		this.multipartDownloadPartSize = builder.multipartDownloadPartSize;
+		this.multipartDownloadThreads = builder.multipartDownloadThreads;
+		this.fsyncDownloads = builder.fsyncDownloads;
+		this.multipartUploadThreshold = builder.multipartUploadThreshold;
+		this.multipartUploadPartSize = builder.multipartUploadPartSize;
+		this.resumableDownloads = builder.resumableDownloads;
+		this.syncFolders = builder.syncFolders;
+		this.pruneDeletedFiles = builder.pruneDeletedFiles;
+		this.metadataCacheSize = builder.metadataCacheSize;
+		this.metadataCacheTtl = builder.metadataCacheTtl;
+		this.negativeCacheTtl = builder.negativeCacheTtl;
+		this.jmxEnabled = builder.jmxEnabled;
+		this.objectCacheFolder = builder.objectCacheFolder;
+		this.objectCacheMaxBytes = builder.objectCacheMaxBytes;
+		this.objectCacheTtl = builder.objectCacheTtl;
+		this.httpClientType = builder.httpClientType;
+		//by default the pool is sized on the threads issuing requests, so no transfer waits for a connection
+		this.maxConnections = (builder.maxConnections > 0) ? builder.maxConnections :
+			builder.downloadThreads + builder.multipartDownloadThreads + builder.listingParallelism + EXTRA_CONNECTIONS;
+		this.connectionTimeout = builder.connectionTimeout;
+		this.socketTimeout = builder.socketTimeout;
+		this.connectionAcquisitionTimeout = builder.connectionAcquisitionTimeout;
+		this.tcpKeepAlive = builder.tcpKeepAlive;
+		this.listingParallelism = builder.listingParallelism;
+		this.listingSplitPoints = builder.listingSplitPoints;
+		this.adaptiveConcurrency = builder.adaptiveConcurrency;
+		this.maxThrottleRetries = builder.maxThrottleRetries;
+		this.listingIndexFolder = builder.listingIndexFolder;
+		this.listingIndexRefreshInterval = builder.listingIndexRefreshInterval;
+		this.archiveBufferBytes = builder.archiveBufferBytes;
+		this.downloadSchedulingPolicy = builder.downloadSchedulingPolicy;
+		this.schedulingLookahead = builder.schedulingLookahead;
+	}
+
+	/**
+	 * @return a config having all the options set to their default values
+	 */
+	public static S3InterfaceConfig defaults() {
+		return builder().build();
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public URI getEndpointOverride() {
+		return endpointOverride;
+	}
+
+	public Path getDownloadFolder() {
+		return downloadFolder;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public int getDownloadThreads() {
+		return downloadThreads;
+	}
+
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	public int getMaxPendingDownloads() {
+		return maxPendingDownloads;
+	}
+
+	public long getMultipartDownloadThreshold() {
+		return multipartDownloadThreshold;
+	}
+
+	public long getMultipartDownloadPartSize() {
+		return multipartDownloadPartSize;
+	}
+
+	public int getMultipartDownloadThreads() {
+		return multipartDownloadThreads;
+	}
+
+	public boolean isFsyncDownloads() {
+		return fsyncDownloads;
+	}
+
+	public long getMultipartUploadThreshold() {
+		return multipartUploadThreshold;
+	}
+
+	public long getMultipartUploadPartSize() {
+		return multipartUploadPartSize;
+	}
+
+	public boolean isResumableDownloads() {
+		return resumableDownloads;
+	}
+
+	public boolean isSyncFolders() {
+		return syncFolders;
+	}
+
+	public boolean isPruneDeletedFiles() {
+		return pruneDeletedFiles;
+	}
+
+	public int getMetadataCacheSize() {
+		return metadataCacheSize;
+	}
+
+	public Duration getMetadataCacheTtl() {
+		return metadataCacheTtl;
+	}
+
+	public Duration getNegativeCacheTtl() {
+		return negativeCacheTtl;
+	}
+
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	public Path getObjectCacheFolder() {
+		return objectCacheFolder;
+	}
+
+	public long getObjectCacheMaxBytes() {
+		return objectCacheMaxBytes;
+	}
+
+	public Duration getObjectCacheTtl() {
+		return objectCacheTtl;
+	}
+
+	public HttpClientType getHttpClientType() {
+		return httpClientType;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public Duration getConnectionTimeout() {
+		return connectionTimeout;
+	}
+
+	public Duration getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public Duration getConnectionAcquisitionTimeout() {
+		return connectionAcquisitionTimeout;
+	}
+
+	public boolean isTcpKeepAlive() {
+		return tcpKeepAlive;
+	}
+
+	public int getListingParallelism() {
+		return listingParallelism;
+	}
+
+	public List<String> getListingSplitPoints() {
+		return listingSplitPoints;
+	}
+
+	public boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency;
+	}
+
+	public int getMaxThrottleRetries() {
+		return maxThrottleRetries;
+	}
+
+	public Path getListingIndexFolder() {
+		return listingIndexFolder;
+	}
+
+	public Duration getListingIndexRefreshInterval() {
+		return listingIndexRefreshInterval;
+	}
+
+	public long getArchiveBufferBytes() {
+		return archiveBufferBytes;
+	}
+
+	public DownloadSchedulingPolicy getDownloadSchedulingPolicy() {
+		return downloadSchedulingPolicy;
+	}
+
+	public int getSchedulingLookahead() {
+		return schedulingLookahead;
+	}
+
+	public static class Builder {
+		private URI endpointOverride;
+		private Path downloadFolder;
+		private Engine engine = Engine.SYNC;
+		private int downloadThreads = DEFAULT_DOWNLOAD_THREADS;
+		private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+		private int maxPendingDownloads = DEFAULT_MAX_PENDING_DOWNLOADS;
+		private long multipartDownloadThreshold = DEFAULT_MULTIPART_DOWNLOAD_THRESHOLD;
+		private long multipartDownloadPartSize = DEFAULT_MULTIPART_DOWNLOAD_PART_SIZE;
+		private int multipartDownloadThreads = DEFAULT_MULTIPART_DOWNLOAD_THREADS;
+		private boolean fsyncDownloads = false;
+		private long multipartUploadThreshold = DEFAULT_MULTIPART_UPLOAD_THRESHOLD;
+		private long multipartUploadPartSize = DEFAULT_MULTIPART_UPLOAD_PART_SIZE;
+		private boolean resumableDownloads = false;
+		private boolean syncFolders = false;
+		private boolean pruneDeletedFiles = false;
+		private int metadataCacheSize = 0;
+		private Duration metadataCacheTtl = DEFAULT_METADATA_CACHE_TTL;
+		private Duration negativeCacheTtl = DEFAULT_NEGATIVE_CACHE_TTL;
+		private boolean jmxEnabled = true;
+		private Path objectCacheFolder;
+		private long objectCacheMaxBytes = DEFAULT_OBJECT_CACHE_MAX_BYTES;
+		private Duration objectCacheTtl = Duration.ZERO;
+		private HttpClientType httpClientType = HttpClientType.APACHE;
+		private int maxConnections = 0;
+		private Duration connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+		private Duration socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+		private Duration connectionAcquisitionTimeout = DEFAULT_CONNECTION_ACQUISITION_TIMEOUT;
+		private boolean tcpKeepAlive = false;
+		private int listingParallelism = 1;
+		private List<String> listingSplitPoints = List.of();
+		private boolean adaptiveConcurrency = true;
+		private int maxThrottleRetries = DEFAULT_MAX_THROTTLE_RETRIES;
+		private Path listingIndexFolder;
+		private Duration listingIndexRefreshInterval = DEFAULT_LISTING_INDEX_REFRESH_INTERVAL;
+		private long archiveBufferBytes = DEFAULT_ARCHIVE_BUFFER_BYTES;
+		private DownloadSchedulingPolicy downloadSchedulingPolicy = DownloadSchedulingPolicy.FIFO;
+		private int schedulingLookahead = DEFAULT_SCHEDULING_LOOKAHEAD;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param endpointOverride the endpoint of an S3 compatible service used instead of the AWS one,
+		 * the bucket is addressed in the path of the requests
+		 */
+		public Builder endpointOverride(URI endpointOverride) {
+			this.endpointOverride = endpointOverride;
+			return this;
+		}
+
+		/**
+		 * @param downloadFolder the base download folder used instead of the download.folder application property
+		 */
+		public Builder downloadFolder(Path downloadFolder) {
+			this.downloadFolder = downloadFolder;
+			return this;
+		}
+
+		/**
+		 * @param engine the engine used for folder downloads, SYNC by default
+		 */
+		public Builder engine(Engine engine) {
+			this.engine = engine;
+			return this;
+		}
+
+		/**
+		 * @param downloadThreads the number of threads used by the SYNC engine for folder downloads,
+		 * with the adaptive concurrency the number of downloads at the start, raised while S3 keeps up
+		 */
+		public Builder downloadThreads(int downloadThreads) {
+			this.downloadThreads = downloadThreads;
+			return this;
+		}
+
+		/**
+		 * @param maxInFlightRequests the maximum number of concurrent GET requests of the ASYNC engine
+		 */
+		public Builder maxInFlightRequests(int maxInFlightRequests) {
+			this.maxInFlightRequests = maxInFlightRequests;
+			return this;
+		}
+
+		/**
+		 * @param maxPendingDownloads the maximum number of files of a folder download scheduled on the SYNC engine
+		 * and not yet completed, the listing of the folder pauses while the limit is reached
+		 */
+		public Builder maxPendingDownloads(int maxPendingDownloads) {
+			this.maxPendingDownloads = maxPendingDownloads;
+			return this;
+		}
+
+		/**
+		 * @param multipartDownloadThreshold the size in bytes above which a listed object is downloaded 
+		 * as parallel byte-range GETs. The objects of unknown size are requested from their first part
+		 * and downloaded as byte ranges if larger than a part
+		 */
+		public Builder multipartDownloadThreshold(long multipartDownloadThreshold) {
+			this.multipartDownloadThreshold = multipartDownloadThreshold;
+			return this;
+		}
+
+		/**
+		 * @param multipartDownloadPartSize the size in bytes of every byte-range GET of a multipart download
+		 */
+		public Builder multipartDownloadPartSize(long multipartDownloadPartSize) {
+			this.multipartDownloadPartSize = multipartDownloadPartSize;
+			return this;
+		}
+
+		/**
+		 * @param multipartDownloadThreads the number of threads running the byte-range GETs, 
+		 * shared by all the multipart downloads of the instance,
+		 * with the adaptive concurrency the number of byte-range GETs at the start, raised while S3 keeps up
+		 */
+		public Builder multipartDownloadThreads(int multipartDownloadThreads) {
+			this.multipartDownloadThreads = multipartDownloadThreads;
+			return this;
+		}
+
+		/**
+		 * @param fsyncDownloads if true every downloaded file is flushed to the storage device
+		 * before being moved to its final path, false by default
+		 */
+		public Builder fsyncDownloads(boolean fsyncDownloads) {
+			this.fsyncDownloads = fsyncDownloads;
+			return this;
+		}
+
+		/**
+		 * @param multipartUploadThreshold the size in bytes above which a file is uploaded
+		 * as a multipart upload with parts sent in parallel
+		 */
+		public Builder multipartUploadThreshold(long multipartUploadThreshold) {
+			this.multipartUploadThreshold = multipartUploadThreshold;
+			return this;
+		}
+
+		/**
+		 * @param multipartUploadPartSize the size in bytes of the parts of a multipart upload,
+		 * S3 requires at least 5 MiB for all the parts but the last one
+		 */
+		public Builder multipartUploadPartSize(long multipartUploadPartSize) {
+			this.multipartUploadPartSize = multipartUploadPartSize;
+			return this;
+		}
+
+		/**
+		 * @param resumableDownloads if true the progress of the downloads is recorded in a journal
+		 * in the state folder of the bucket, so the downloads interrupted by a restart skip the files already
+		 * downloaded and continue the partial files where they stopped, false by default. Every part recorded
+		 * is forced to the storage device first. The journal is used by one process at a time, the instances
+		 * of a factory share it and the other processes download without it
+		 */
+		public Builder resumableDownloads(boolean resumableDownloads) {
+			this.resumableDownloads = resumableDownloads;
+			return this;
+		}
+
+		/**
+		 * @param syncFolders if true the folder downloads skip the objects whose ETag, size and last modified time
+		 * match the ones recorded by the previous downloads
+		 */
+		public Builder syncFolders(boolean syncFolders) {
+			this.syncFolders = syncFolders;
+			return this;
+		}
+
+		/**
+		 * @param pruneDeletedFiles if true the folder downloads in sync mode delete the local files
+		 * of the objects removed from the bucket
+		 */
+		public Builder pruneDeletedFiles(boolean pruneDeletedFiles) {
+			this.pruneDeletedFiles = pruneDeletedFiles;
+			return this;
+		}
+
+		/**
+		 * @param metadataCacheSize the maximum number of resources cached by getResource, 0 disables the cache
+		 */
+		public Builder metadataCacheSize(int metadataCacheSize) {
+			this.metadataCacheSize = metadataCacheSize;
+			return this;
+		}
+
+		/**
+		 * @param metadataCacheTtl the time a resource found by getResource is cached
+		 */
+		public Builder metadataCacheTtl(Duration metadataCacheTtl) {
+			this.metadataCacheTtl = metadataCacheTtl;
+			return this;
+		}
+
+		/**
+		 * @param negativeCacheTtl the time a resource not found by getResource is cached, zero disables it
+		 */
+		public Builder negativeCacheTtl(Duration negativeCacheTtl) {
+			this.negativeCacheTtl = negativeCacheTtl;
+			return this;
+		}
+
+		/**
+		 * @param jmxEnabled if true the metrics of the instance are registered as an MXBean
+		 * in the platform MBean server, true by default
+		 */
+		public Builder jmxEnabled(boolean jmxEnabled) {
+			this.jmxEnabled = jmxEnabled;
+			return this;
+		}
+
+		/**
+		 * @param objectCacheFolder the folder of the local object cache shared by the instances and the processes of the host,
+		 * null disables the cache, disabled by default. The downloaded files are copies of the cached ones,
+		 * they can be modified or deleted without altering the cache
+		 */
+		public Builder objectCacheFolder(Path objectCacheFolder) {
+			this.objectCacheFolder = objectCacheFolder;
+			return this;
+		}
+
+		/**
+		 * @param objectCacheMaxBytes the maximum total size of the files of the object cache of a bucket,
+		 * for all the processes sharing the cache folder
+		 */
+		public Builder objectCacheMaxBytes(long objectCacheMaxBytes) {
+			this.objectCacheMaxBytes = objectCacheMaxBytes;
+			return this;
+		}
+
+		/**
+		 * @param objectCacheTtl the time a cached object is served without asking S3 if it changed,
+		 * zero to always check it with a conditional request
+		 */
+		public Builder objectCacheTtl(Duration objectCacheTtl) {
+			this.objectCacheTtl = objectCacheTtl;
+			return this;
+		}
+
+		/**
+		 * @param httpClientType the HTTP client of the blocking S3Client, APACHE by default
+		 */
+		public Builder httpClientType(HttpClientType httpClientType) {
+			this.httpClientType = httpClientType;
+			return this;
+		}
+
+		/**
+		 * @param maxConnections the size of the connection pool of the blocking S3Client, 0 to size it
+		 * on the download, multipart and listing threads plus EXTRA_CONNECTIONS, the default.
+		 * It cannot be lower than the download and multipart threads, which would wait for a free connection
+		 */
+		public Builder maxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+			return this;
+		}
+
+		/**
+		 * @param connectionTimeout the time allowed to open a connection
+		 */
+		public Builder connectionTimeout(Duration connectionTimeout) {
+			this.connectionTimeout = connectionTimeout;
+			return this;
+		}
+
+		/**
+		 * @param socketTimeout the time allowed without receiving data on an open connection
+		 */
+		public Builder socketTimeout(Duration socketTimeout) {
+			this.socketTimeout = socketTimeout;
+			return this;
+		}
+
+		/**
+		 * @param connectionAcquisitionTimeout the time a request waits for a free connection of the pool,
+		 * ignored by the URL_CONNECTION client
+		 */
+		public Builder connectionAcquisitionTimeout(Duration connectionAcquisitionTimeout) {
+			this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+			return this;
+		}
+
+		/**
+		 * @param tcpKeepAlive if true TCP keepalive probes are sent on the idle connections,
+		 * ignored by the URL_CONNECTION client, false by default
+		 */
+		public Builder tcpKeepAlive(boolean tcpKeepAlive) {
+			this.tcpKeepAlive = tcpKeepAlive;
+			return this;
+		}
+
+		/**
+		 * @param listingParallelism the number of key ranges listed concurrently by the recursive listings
+		 * and the folder downloads, 1 by default. Above 1 the resources are not returned in key order
+		 */
+		public Builder listingParallelism(int listingParallelism) {
+			this.listingParallelism = listingParallelism;
+			return this;
+		}
+
+		/**
+		 * @param listingSplitPoints the keys splitting the bucket in the ranges listed concurrently when
+		 * listingParallelism is above 1, only the ones within the listed folder are used.
+		 * If empty, the default, the folder is split on its sub folders
+		 */
+		public Builder listingSplitPoints(List<String> listingSplitPoints) {
+			this.listingSplitPoints = listingSplitPoints;
+			return this;
+		}
+
+		/**
+		 * @param adaptiveConcurrency if true the number of concurrent S3 requests and transfers is raised 
+		 * while S3 answers quickly, up to the maximum number of connections, and lowered when it throttles 
+		 * the requests or slows down, true by default. The GETs of the ASYNC engine are limited separately,
+		 * up to the maximum number of in flight requests.
+		 * If false it stays at the number of download, multipart and listing threads
+		 */
+		public Builder adaptiveConcurrency(boolean adaptiveConcurrency) {
+			this.adaptiveConcurrency = adaptiveConcurrency;
+			return this;
+		}
+
+		/**
+		 * @param maxThrottleRetries the number of times a request throttled by S3 (503 SlowDown) is retried
+		 * with a random exponential backoff, on top of the retries of the S3 client
+		 */
+		public Builder maxThrottleRetries(int maxThrottleRetries) {
+			this.maxThrottleRetries = maxThrottleRetries;
+			return this;
+		}
+
+		/**
+		 * @param listingIndexFolder the folder of the local index of the listing of the bucket, null disables
+		 * the index, disabled by default. Once built the listings and the existence checks are answered
+		 * from the index, as of its last refresh, without any S3 request. The uploads through the instance
+		 * and the other instances of its factory are seen right away, the changes made by the other clients
+		 * only after the next refresh. The instances of a factory share the index of a bucket, the processes
+		 * sharing the folder rebuild it in turn and load the index rebuilt by the others
+		 */
+		public Builder listingIndexFolder(Path listingIndexFolder) {
+			this.listingIndexFolder = listingIndexFolder;
+			return this;
+		}
+
+		/**
+		 * @param listingIndexRefreshInterval the time between two rebuilds of the listing index in the background,
+		 * zero to rebuild it only through S3Interface.refreshListingIndex(). It bounds how stale the listings are
+		 * for the changes made by the other clients of the bucket, 10 minutes by default
+		 */
+		public Builder listingIndexRefreshInterval(Duration listingIndexRefreshInterval) {
+			this.listingIndexRefreshInterval = listingIndexRefreshInterval;
+			return this;
+		}
+
+		/**
+		 * @param archiveBufferBytes the maximum number of bytes fetched ahead and held in memory
+		 * while a folder is written as an archive
+		 */
+		public Builder archiveBufferBytes(long archiveBufferBytes) {
+			this.archiveBufferBytes = archiveBufferBytes;
+			return this;
+		}
+
+		/**
+		 * @param downloadSchedulingPolicy the order in which the files of a folder download are started,
+		 * FIFO by default, e.g. DownloadSchedulingPolicy.LARGEST_FIRST
+		 */
+		public Builder downloadSchedulingPolicy(DownloadSchedulingPolicy downloadSchedulingPolicy) {
+			this.downloadSchedulingPolicy = downloadSchedulingPolicy;
+			return this;
+		}
+
+		/**
+		 * @param schedulingLookahead the highest number of files held and ordered by the scheduling policy
+		 * while the downloads are busy, not used by the FIFO policy
+		 */
+		public Builder schedulingLookahead(int schedulingLookahead) {
+			this.schedulingLookahead = schedulingLookahead;
+			return this;
+		}
+
+		/**
+		 * @return the config instance
+		 * @throws IllegalArgumentException if any of the options has an invalid value
+		 */
+		public S3InterfaceConfig build() {
+			if (engine == null) {
+				throw new IllegalArgumentException("The engine cannot be null");
+			}
+			if (downloadThreads < 1) {
+				throw new IllegalArgumentException("The number of download threads must be positive");
+			}
+			if (maxInFlightRequests < 1) {
+				throw new IllegalArgumentException("The maximum number of in-flight requests must be positive");
+			}
+			if (maxPendingDownloads < 1) {
+				throw new IllegalArgumentException("The maximum number of pending downloads must be positive");
+			}
+			if (multipartDownloadPartSize < 1) {
+				throw new IllegalArgumentException("The multipart download part size must be positive");
+			}
+			if (multipartDownloadThreshold < multipartDownloadPartSize) {
+				throw new IllegalArgumentException("The multipart download threshold cannot be lower than the part size");
+			}
+			if (multipartDownloadThreads < 1) {
+				throw new IllegalArgumentException("The number of multipart download threads must be positive");
+			}
+			if (multipartUploadPartSize < 1) {
+				throw new IllegalArgumentException("The multipart upload part size must be positive");
+			}
+			if (multipartUploadThreshold < multipartUploadPartSize) {
+				throw new IllegalArgumentException("The multipart upload threshold cannot be lower than the part size");
+			}
+			if (metadataCacheSize < 0) {
+				throw new IllegalArgumentException("The metadata cache size cannot be negative");
+			}
+			if (metadataCacheTtl == null || metadataCacheTtl.isNegative() ||
+				negativeCacheTtl == null || negativeCacheTtl.isNegative()) {
+				throw new IllegalArgumentException("The metadata cache time to live cannot be negative");
+			}
+			if (objectCacheMaxBytes < 1) {
+				throw new IllegalArgumentException("The object cache size must be positive");
+			}
+			if (objectCacheTtl == null || objectCacheTtl.isNegative()) {
+				throw new IllegalArgumentException("The object cache time to live cannot be negative");
+			}
+			if (httpClientType == null) {
+				throw new IllegalArgumentException("The HTTP client type cannot be null");
+			}
+			if (maxConnections < 0) {
+				throw new IllegalArgumentException("The maximum number of connections cannot be negative");
+			}
+			if (maxConnections > 0 && maxConnections < downloadThreads + multipartDownloadThreads) {
+				throw new IllegalArgumentException("The maximum number of connections cannot be lower than " +
+					"the number of download and multipart download threads");
+			}
+			if (connectionTimeout == null || connectionTimeout.isNegative() || connectionTimeout.isZero() ||
+				socketTimeout == null || socketTimeout.isNegative() || socketTimeout.isZero() ||
+				connectionAcquisitionTimeout == null || connectionAcquisitionTimeout.isNegative() ||
+				connectionAcquisitionTimeout.isZero()) {
+				throw new IllegalArgumentException("The connection timeouts must be positive");
+			}
+			if (listingParallelism < 1) {
+				throw new IllegalArgumentException("The listing parallelism must be positive");
+			}
+			if (listingSplitPoints == null) {
+				throw new IllegalArgumentException("The listing split points cannot be null");
+			}
+			listingSplitPoints = List.copyOf(listingSplitPoints);
+			if (maxThrottleRetries < 0) {
+				throw new IllegalArgumentException("The maximum number of throttle retries cannot be negative");
+			}
+			if (listingIndexRefreshInterval == null || listingIndexRefreshInterval.isNegative()) {
+				throw new IllegalArgumentException("The listing index refresh interval cannot be negative");
+			}
+			if (archiveBufferBytes < 1) {
+				throw new IllegalArgumentException("The archive buffer size must be positive");
+			}
+			if (downloadSchedulingPolicy == null) {
+				throw new IllegalArgumentException("The download scheduling policy cannot be null");
+			}
+			if (schedulingLookahead < 1) {
+				throw new IllegalArgumentException("The scheduling lookahead must be positive");
+			}
+			return new S3InterfaceConfig(this);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package qteam.solutions.s3;
+
+import software.amazon.awssdk.regions.Region;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates S3Interface instances sharing their S3 clients, credentials and executors per region
+ * <br>Creating an instance from a factory costs no client, thread pool or credentials resolution once its region
+ * was used, and every bucket is validated by the first instance only. The metadata cache, object cache, journal
+ * and listing index of a bucket are opened once and shared by its instances. Meant for short lived instances,
+ * e.g. one per request. The instances are closed as usual, the shared resources stay open until the factory is closed
+ * Use try-with-resources to instantiate it
+ */
+public class S3InterfaceFactory implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(S3InterfaceFactory.class);
+	private static final AtomicInteger factoryIds = new AtomicInteger();
+
+	private final S3InterfaceConfig config;
+	private final int factoryId = factoryIds.incrementAndGet();
+	private final Map<Region, ClientResources> resources = new ConcurrentHashMap<>();
+	private final Map<Region, ObjectName> metricsNames = new ConcurrentHashMap<>();
+	//the buckets already validated, per region
+	private final Set<String> validatedBuckets = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Creates a factory of instances using the default config
+	 */
+	public S3InterfaceFactory() {
+		this(S3InterfaceConfig.defaults());
+	}
+
+	/**
+	 * Creates a factory of instances
+	 * @param config the tuning options of all the instances created by the factory
+	 */
+	public S3InterfaceFactory(S3InterfaceConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Creates an S3Interface for the specified bucket and region, reusing the clients and executors of the region
+	 * @param bucketName the bucket to operate on
+	 * @param region the region of the bucket
+	 * @return the instance, to be closed once used
+	 * @throws S3InterfaceException if the factory is closed,
+	 * if the bucket is empty or does not exist or if any S3 connection error occurs
+	 */
+	public S3Interface create(String bucketName, Region region) throws S3InterfaceException {
+		if (closed) {
+			logger.error("The S3InterfaceFactory is closed");
+			throw new S3InterfaceException("The S3InterfaceFactory is closed");
+		}
+		ClientResources regionResources;
+		try {
+			regionResources = resources.computeIfAbsent(region, this::createResources);
+		} catch (RuntimeException e) {
+			logger.error("Error initializing the S3 clients of region: {}", region, e);
+			throw new S3InterfaceException("Error initializing the S3 clients of region: " + region, e);
+		}
+
+		//validate the bucket the first time only, a failed validation is done again by the next instance
+		String bucketKey = region + "/" + bucketName;
+		boolean validate = !validatedBuckets.contains(bucketKey);
+		S3Interface s3Interface = new S3Interface(bucketName, region, config, regionResources, validate);
+		validatedBuckets.add(bucketKey);
+		return s3Interface;
+	}
+
+	/**
+	 * @param region a region used by the instances of the factory
+	 * @return the metrics shared by the instances of the region or null if no instance of the region was created
+	 */
+	public S3InterfaceMetrics getMetrics(Region region) {
+		ClientResources regionResources = resources.get(region);
+		return (regionResources == null) ? null : regionResources.getMetrics();
+	}
+
+	/**
+	 * Closes the S3 clients and shuts the executors down, the instances created by the factory cannot be used anymore
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (ClientResources regionResources : resources.values()) {
+			regionResources.close();
+		}
+		resources.clear();
+		//remove the metrics from JMX
+		for (ObjectName name : metricsNames.values()) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				logger.warn("Failed to unregister the metrics: {}", name, e);
+			}
+		}
+		metricsNames.clear();
+	}
+
+	private ClientResources createResources(Region region) {
+		ClientResources regionResources = new ClientResources(region, config);
+		//expose the metrics of the region through JMX
+		if (config.isJmxEnabled()) {
+			try {
+				ObjectName name = new ObjectName("qteam.solutions.s3:type=S3InterfaceFactory,region=" +
+					ObjectName.quote(region.id()) + ",id=" + factoryId);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(regionResources.getMetrics(), name);
+				metricsNames.put(region, name);
+			} catch (JMException e) {
+				//the metrics are still available through getMetrics()
+				logger.warn("Failed to register the metrics of region: {}", region, e);
+			}
+		}
+		logger.info("Successfully initialized the S3 clients of region: {}", region);
+		return regionResources;
+	}
+}
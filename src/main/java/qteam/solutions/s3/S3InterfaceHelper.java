@@ -14,8 +14,13 @@ import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import software.amazon.awssdk.services.s3.model.S3Object;
+
 public class S3InterfaceHelper {
 	private static final Logger logger = LoggerFactory.getLogger(S3InterfaceHelper.class);
+	//a reference to a system property in the application properties, e.g. ${user.home}
+	private static final Pattern PROPERTY_REFERENCE = Pattern.compile("\\$\\{([^}]+)\\}");
+	private static volatile Path baseDownloadFolder;
 
 	public static void createFolder(Path folder, Optional<AtomicInteger> count) throws S3InterfaceException {
     	try {
@@ -41,6 +46,31 @@ public class S3InterfaceHelper {
 	public static boolean isFolder(String key) {
 		return key.endsWith("/");
 	}
+
+	/**
+	 * Compares two keys in the order of S3, the unsigned order of their UTF-8 bytes, without encoding them
+	 * <br>The UTF-8 order is the order of the code points, which differs from the order of the UTF-16 chars of
+	 * String.compareTo only when a surrogate meets a char above the surrogates
+	 * @param key a key
+	 * @param other the key to compare to
+	 * @return a negative number, zero or a positive number if the key sorts before, as or after the other key
+	 */
+	public static int compareKeys(String key, String other) {
+		int length = Math.min(key.length(), other.length());
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			char otherChar = other.charAt(i);
+			if (c != otherChar) {
+				boolean surrogate = Character.isSurrogate(c);
+				if (surrogate != Character.isSurrogate(otherChar)) {
+					//the surrogate starts a supplementary code point, above every char of the basic plane
+					return surrogate ? 1 : -1;
+				}
+				return c - otherChar;
+			}
+		}
+		return key.length() - other.length();
+	}
     
     public static Resource createResourceFromKey(String key) {
     	boolean isFolder = isFolder(key);
@@ -51,7 +81,27 @@ public class S3InterfaceHelper {
     	return new Resource(key, name, isFolder ? 1 : 0);
     }
     
+    public static Resource createResourceFromObject(S3Object s3Object) {
+    	Resource resource = createResourceFromKey(s3Object.key());
+    	
+    	return new Resource(resource.getId(), resource.getName(), resource.getType(),
+    		s3Object.size() == null ? -1 : s3Object.size(), s3Object.eTag(), s3Object.lastModified());
+    }
+    
+    /**
+     * Gets the download folder set in the application properties, read once then reused by every instance
+     * @return the base download folder
+     */
     public static Path getBaseDownloadFolder() {
+    	Path folder = baseDownloadFolder;
+    	if (folder == null) {
+    		folder = readBaseDownloadFolder();
+    		baseDownloadFolder = folder;
+    	}
+    	return folder;
+    }
+    
+    private static Path readBaseDownloadFolder() {
         Properties properties = new Properties();
         Path downLoadFolder = null;
         
@@ -59,9 +109,7 @@ public class S3InterfaceHelper {
             properties.load(input);
             String property = properties.getProperty("download.folder");
             
-            String regex = "\\$\\{([^}]+)\\}";
-            Pattern pattern = Pattern.compile(regex);
-            
+            Pattern pattern = PROPERTY_REFERENCE;
             Matcher matcher = pattern.matcher(property);
             while (matcher.find()) {
                 String propertyName = matcher.group(1);  // Extract the property name
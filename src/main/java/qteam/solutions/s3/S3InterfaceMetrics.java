@@ -0,0 +1,247 @@
+package qteam.solutions.s3;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+/**
+ * Operation level metrics of an S3Interface instance
+ * <br>Latency histograms and error counters per request type, retries reported by the S3 client,
+ * downloaded bytes and throughput, uploaded bytes, in-flight requests and the queue depth of the download executor
+ * <br>The metrics can be read through S3Interface.getMetrics() or through JMX
+ */
+public class S3InterfaceMetrics implements S3InterfaceMetricsMXBean {
+
+	/**
+	 * The types of S3 requests being measured
+	 * <br>The latency of a GET is the time to its response, the transfer of the body is measured
+	 * as a DOWNLOAD for the objects downloaded to a file
+	 */
+	public enum Operation {
+		LIST,
+		HEAD,
+		GET,
+		PUT,
+		//the download of a whole object to a file, its GET requests included, not counted as an error of its own
+		DOWNLOAD
+	}
+
+	//the throughput is computed over the last complete seconds of a small ring of one second buckets
+	private static final int THROUGHPUT_WINDOW_SECONDS = 5;
+
+	private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder bytesDownloaded = new LongAdder();
+	private final LongAdder bytesUploaded = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicReferenceArray<ThroughputBucket> throughput = 
+		new AtomicReferenceArray<>(THROUGHPUT_WINDOW_SECONDS + 1);
+	private final IntSupplier queueDepth;
+	private final IntSupplier concurrencyLimit;
+	private final LongAdder throttles = new LongAdder();
+
+	/**
+	 * @param queueDepth supplies the number of tasks waiting in the download executor
+	 * @param concurrencyLimit supplies the number of concurrent requests allowed
+	 */
+	S3InterfaceMetrics(IntSupplier queueDepth, IntSupplier concurrencyLimit) {
+		this.queueDepth = queueDepth;
+		this.concurrencyLimit = concurrencyLimit;
+		for (int i = 0; i < throughput.length(); i++) {
+			throughput.set(i, new ThroughputBucket(Long.MIN_VALUE));
+		}
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Marks the start of a request
+	 * @return the start time to be passed to end()
+	 */
+	long start() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of a request started with start()
+	 * @param operation the type of the request
+	 * @param startNanos the value returned by start()
+	 * @param failed true if the request failed
+	 */
+	void end(Operation operation, long startNanos, boolean failed) {
+		inFlight.decrementAndGet();
+		record(operation, startNanos, failed);
+	}
+
+	/**
+	 * Records the latency of an operation that is not a request in flight of its own, e.g. a DOWNLOAD
+	 * @param operation the type of the operation
+	 * @param startNanos the start time of the operation
+	 * @param failed true if the operation failed
+	 */
+	void record(Operation operation, long startNanos, boolean failed) {
+		latencies.get(operation).record(System.nanoTime() - startNanos, failed);
+	}
+
+	void addBytesDownloaded(long bytes) {
+		bytesDownloaded.add(bytes);
+
+		long second = Math.floorDiv(System.nanoTime(), 1_000_000_000L);
+		int idx = (int) Math.floorMod(second, (long) throughput.length());
+		ThroughputBucket bucket = throughput.get(idx);
+		while (bucket.second != second) {
+			//the bucket belonged to an older second, replace it so no byte of the new second is lost
+			ThroughputBucket next = new ThroughputBucket(second);
+			bucket = throughput.compareAndSet(idx, bucket, next) ? next : throughput.get(idx);
+		}
+		bucket.bytes.add(bytes);
+	}
+
+	void addBytesUploaded(long bytes) {
+		bytesUploaded.add(bytes);
+	}
+
+	void addThrottle() {
+		throttles.increment();
+	}
+
+	/**
+	 * @return a publisher collecting the retry counts reported by the S3 client
+	 */
+	MetricPublisher sdkMetricPublisher() {
+		return new MetricPublisher() {
+			@Override
+			public void publish(MetricCollection metricCollection) {
+				metricCollection.metricValues(CoreMetric.RETRY_COUNT)
+					.forEach(retries::add);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	public LatencySnapshot getLatency(Operation operation) {
+		return latencies.get(operation).snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getListLatency() {
+		return getLatency(Operation.LIST);
+	}
+
+	@Override
+	public LatencySnapshot getHeadLatency() {
+		return getLatency(Operation.HEAD);
+	}
+
+	@Override
+	public LatencySnapshot getGetLatency() {
+		return getLatency(Operation.GET);
+	}
+
+	@Override
+	public LatencySnapshot getPutLatency() {
+		return getLatency(Operation.PUT);
+	}
+
+	@Override
+	public LatencySnapshot getDownloadLatency() {
+		return getLatency(Operation.DOWNLOAD);
+	}
+
+	@Override
+	public long getErrorCount() {
+		//a failed download is already counted by its failed GET
+		return latencies.entrySet().stream()
+			.filter(entry -> entry.getKey() != Operation.DOWNLOAD)
+			.mapToLong(entry -> entry.getValue().getErrors())
+			.sum();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return retries.sum();
+	}
+
+	@Override
+	public long getBytesDownloaded() {
+		return bytesDownloaded.sum();
+	}
+
+	@Override
+	public long getBytesUploaded() {
+		return bytesUploaded.sum();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		//sum the complete seconds of the window, the current second is still being filled
+		long current = Math.floorDiv(System.nanoTime(), 1_000_000_000L);
+		long bytes = 0;
+		for (int i = 0; i < throughput.length(); i++) {
+			ThroughputBucket bucket = throughput.get(i);
+			if (bucket.second < current && bucket.second >= current - THROUGHPUT_WINDOW_SECONDS) {
+				bytes += bucket.bytes.sum();
+			}
+		}
+		return (double) bytes / THROUGHPUT_WINDOW_SECONDS;
+	}
+
+	@Override
+	public int getInFlightRequests() {
+		return inFlight.get();
+	}
+
+	@Override
+	public int getConcurrencyLimit() {
+		return concurrencyLimit.getAsInt();
+	}
+
+	@Override
+	public long getThrottleCount() {
+		return throttles.sum();
+	}
+
+	@Override
+	public int getExecutorQueueDepth() {
+		return queueDepth.getAsInt();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Operation operation : Operation.values()) {
+			builder.append(operation).append(" [").append(getLatency(operation)).append("] ");
+		}
+		return builder.append("retries: ").append(getRetryCount())
+			.append(", throttles: ").append(getThrottleCount())
+			.append(", concurrency limit: ").append(getConcurrencyLimit())
+			.append(", bytes downloaded: ").append(getBytesDownloaded())
+			.append(", bytes uploaded: ").append(getBytesUploaded())
+			.append(", bytes/s: ").append(getBytesPerSecond())
+			.toString();
+	}
+
+	/**
+	 * The bytes downloaded during one second, replaced as a whole when the ring comes back to its slot
+	 */
+	private static class ThroughputBucket {
+		private final long second;
+		private final LongAdder bytes = new LongAdder();
+
+		private ThroughputBucket(long second) {
+			this.second = second;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package qteam.solutions.s3;
+
+/**
+ * JMX view of the metrics of an S3Interface instance
+ */
+public interface S3InterfaceMetricsMXBean {
+
+	LatencySnapshot getListLatency();
+
+	LatencySnapshot getHeadLatency();
+
+	/**
+	 * @return the latency of the GET requests up to their response, the transfer of the body excluded
+	 */
+	LatencySnapshot getGetLatency();
+
+	LatencySnapshot getPutLatency();
+
+	/**
+	 * @return the time to download whole objects to files, all their GET requests and transfers included
+	 */
+	LatencySnapshot getDownloadLatency();
+
+	/**
+	 * @return the number of failed S3 requests of all types
+	 */
+	long getErrorCount();
+
+	/**
+	 * @return the number of requests retried by the S3 client
+	 */
+	long getRetryCount();
+
+	long getBytesDownloaded();
+
+	long getBytesUploaded();
+
+	/**
+	 * @return the download throughput over the last few seconds
+	 */
+	double getBytesPerSecond();
+
+	int getInFlightRequests();
+
+	/**
+	 * @return the number of concurrent S3 requests currently allowed by the adaptive limiters, the requests
+	 * of the blocking client and the GETs of the ASYNC engine added
+	 */
+	int getConcurrencyLimit();
+
+	/**
+	 * @return the number of requests throttled by S3 after the retries of the S3 client
+	 */
+	long getThrottleCount();
+
+	/**
+	 * @return the number of folder downloads waiting for a free executor thread
+	 */
+	int getExecutorQueueDepth();
+}
@@ -26,28 +26,16 @@ public class S3Test {
         	System.out.println();
         	
         	System.out.println("Resources in bucket:");
-        	String cursor = null;
-        	do {
-                ListResult<Resource> fileList = s3Interface.listFolder(null, cursor);
-                for (Resource file : fileList.getResources()) {
-                	System.out.println(file.getId());
-                }
-                cursor = fileList.getCursor();
-            } while (cursor != null);
+        	s3Interface.streamFolder(null)
+        		.forEach(file -> System.out.println(file.getId()));
             
             System.out.println();
             System.out.println("*************************************************");
         	System.out.println();
         	
         	System.out.println("Resources in folder:");
-        	cursor = null;
-        	do {
-                ListResult<Resource> fileList = s3Interface.listFolder(new Resource("poze/", "poze", 1), cursor);
-                for (Resource file : fileList.getResources()) {
-                	System.out.println(file.getId());
-                }
-                cursor = fileList.getCursor();
-            } while (cursor != null);
+        	s3Interface.streamFolder(new Resource("poze/", "poze", 1))
+        		.forEach(file -> System.out.println(file.getId()));
             
             System.out.println();
             System.out.println("*************************************************");
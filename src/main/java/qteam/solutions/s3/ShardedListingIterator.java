@@ -0,0 +1,215 @@
+package qteam.solutions.s3;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates over the listing of several disjoint ranges of keys (shards) listed concurrently
+ * <br>Every shard is listed by a single continuation token chain, up to parallelism shards at a time.
+ * The pages are merged through a bounded queue, so the memory used stays bounded when the consumer
+ * is slower than the listing. The resources of different shards are interleaved in no particular order
+ * <br>The listing threads wait for the consumer as long as needed, an iterator not consumed to the end
+ * must be closed to release them
+ */
+class ShardedListingIterator implements Iterator<Resource>, AutoCloseable {
+
+	/**
+	 * Loads one page of the listing of a shard
+	 */
+	@FunctionalInterface
+	interface ShardLoader {
+		ListResult<Resource> load(Shard shard, String cursor) throws S3InterfaceException;
+	}
+
+	//the time a listing thread waits for room in the queue before checking if the iterator was closed
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+	private final ShardLoader loader;
+	private final Queue<Shard> shards;
+	private final BlockingQueue<Batch> batches;
+	private int runningWorkers;
+	private volatile boolean closed;
+
+	private Iterator<Resource> current;
+
+	private ShardedListingIterator(List<Shard> shards, ShardLoader loader, int parallelism) {
+		this.loader = loader;
+		this.shards = new ConcurrentLinkedQueue<>(shards);
+		this.batches = new ArrayBlockingQueue<>(2 * parallelism);
+		this.runningWorkers = Math.min(parallelism, shards.size());
+	}
+
+	/**
+	 * Starts listing the shards in the background
+	 * @param initial the resources already listed while discovering the shards, returned first
+	 * @param shards the shards to list
+	 * @param loader the function loading a page of a shard for a cursor
+	 * @param executor the executor running the listings
+	 * @param parallelism the maximum number of shards listed at the same time
+	 * @return the iterator positioned before the first resource
+	 */
+	static ShardedListingIterator open(List<Resource> initial, List<Shard> shards, ShardLoader loader,
+			Executor executor, int parallelism) {
+		ShardedListingIterator iterator = new ShardedListingIterator(shards, loader, parallelism);
+		iterator.current = initial.iterator();
+		for (int i = 0; i < iterator.runningWorkers; i++) {
+			executor.execute(iterator::listShards);
+		}
+		return iterator;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			if (runningWorkers == 0) {
+				return false;
+			}
+			Batch batch;
+			try {
+				batch = batches.take();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new UncheckedS3InterfaceException(new S3InterfaceException("Interrupted while listing", e));
+			}
+			if (batch.error != null) {
+				//the listing is incomplete, stop the other shards as well
+				close();
+				throw new UncheckedS3InterfaceException(batch.error);
+			}
+			if (batch.resources == null) {
+				runningWorkers--;
+			} else {
+				current = batch.resources.iterator();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Resource next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/**
+	 * Stops the listing of the shards, the resources not yet consumed are discarded
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		runningWorkers = 0;
+		current = List.<Resource>of().iterator();
+		batches.clear();
+	}
+
+	/**
+	 * Lists the shards not yet taken by another thread until none is left
+	 */
+	private void listShards() {
+		try {
+			Shard shard;
+			while (!closed && (shard = shards.poll()) != null) {
+				String cursor = null;
+				do {
+					ListResult<Resource> page = loader.load(shard, cursor);
+					if (!page.getResources().isEmpty() && !put(new Batch(page.getResources(), null))) {
+						return;
+					}
+					cursor = page.getCursor();
+				} while (cursor != null && !closed);
+			}
+			put(new Batch(null, null));
+		} catch (S3InterfaceException e) {
+			put(new Batch(null, e));
+		} catch (RuntimeException e) {
+			put(new Batch(null, new S3InterfaceException("Error listing shard", e)));
+		}
+	}
+
+	/**
+	 * Waits for room in the queue, however slow the consumer is, giving up only once the iterator is closed
+	 * @param batch the batch to add
+	 * @return false if the iterator was closed
+	 */
+	private boolean put(Batch batch) {
+		try {
+			while (!closed) {
+				if (batches.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * A range of keys listed by a single continuation token chain
+	 */
+	static class Shard {
+		private final String prefix;
+		private final String start;
+		private final String end;
+
+		/**
+		 * @param prefix the prefix of the keys of the shard, null for the whole bucket
+		 * @param start the lowest key of the shard, null to start at the beginning of the prefix
+		 * @param end the key following the last key of the shard, null to end at the end of the prefix
+		 */
+		Shard(String prefix, String start, String end) {
+			this.prefix = prefix;
+			this.start = start;
+			this.end = end;
+		}
+
+		String getPrefix() {
+			return prefix;
+		}
+
+		String getStart() {
+			return start;
+		}
+
+		String getEnd() {
+			return end;
+		}
+
+		/**
+		 * @param key a listed key
+		 * @return true if the key is within the range of the shard, in the order of S3
+		 */
+		boolean contains(String key) {
+			return (start == null || S3InterfaceHelper.compareKeys(key, start) >= 0) && 
+				(end == null || S3InterfaceHelper.compareKeys(key, end) < 0);
+		}
+
+		@Override
+		public String toString() {
+			return "[" + (start != null ? start : prefix) + ", " + end + ")";
+		}
+	}
+
+	/**
+	 * A page of resources, the end of a listing thread or its failure
+	 */
+	private static class Batch {
+		private final List<Resource> resources;
+		private final S3InterfaceException error;
+
+		private Batch(List<Resource> resources, S3InterfaceException error) {
+			this.resources = resources;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package qteam.solutions.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the ETag, size and last modified time of every object downloaded in a folder
+ * so the next folder download can skip the objects that did not change
+ * <br>The manifest is stored as a text file in the state folder of the bucket, one object per line,
+ * outside of the download folder so it never mixes with the downloaded keys
+ */
+class SyncManifest {
+	private static final Logger logger = LoggerFactory.getLogger(SyncManifest.class);
+
+	static final String FILE_NAME = ".s3interface-manifest";
+
+	private final Path downloadFolder;
+	private final Path file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private SyncManifest(Path stateFolder, Path downloadFolder) {
+		this.downloadFolder = downloadFolder;
+		this.file = stateFolder.resolve(FILE_NAME);
+	}
+
+	/**
+	 * Loads the manifest of a download folder, an empty manifest is returned if none was saved before
+	 * @param stateFolder the folder the manifest is stored in
+	 * @param downloadFolder the folder the objects are downloaded in
+	 * @return the manifest
+	 * @throws S3InterfaceException if the manifest file cannot be read
+	 */
+	static SyncManifest load(Path stateFolder, Path downloadFolder) throws S3InterfaceException {
+		SyncManifest manifest = new SyncManifest(stateFolder, downloadFolder);
+		if (!Files.exists(manifest.file)) {
+			return manifest;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(manifest.file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				//every line is eTag, size, last modified and key separated by tabs
+				String[] fields = line.split("\t", 4);
+				if (fields.length != 4) {
+					logger.warn("Skipping malformed manifest line: {}", line);
+					continue;
+				}
+				manifest.entries.put(URLDecoder.decode(fields[3], StandardCharsets.UTF_8),
+					new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+			}
+			logger.info("Loaded {} entries from manifest: {}", manifest.entries.size(), manifest.file);
+			return manifest;
+		} catch (IOException | NumberFormatException e) {
+			logger.error("Error reading manifest: {}", manifest.file);
+			throw new S3InterfaceException("Error reading manifest: " + manifest.file, e);
+		}
+	}
+
+	/**
+	 * Checks if the local copy of a listed object is identical to the one in the bucket
+	 * @param resource the resource as returned by the listing
+	 * @return true if the manifest entry matches the ETag, size and last modified time of the resource
+	 * and the local file still has the recorded size
+	 */
+	boolean isUnchanged(Resource resource) {
+		Entry entry = entries.get(resource.getId());
+		if (entry == null || !entry.matches(resource)) {
+			return false;
+		}
+
+		try {
+			Path localFile = Paths.get(downloadFolder.toString(), resource.getId());
+			return Files.size(localFile) == entry.size;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records a resource as downloaded
+	 * @param resource the resource as returned by the listing
+	 */
+	void update(Resource resource) {
+		entries.put(resource.getId(), new Entry(resource.getETag(), resource.getSize(),
+			resource.getLastModified() == null ? -1 : resource.getLastModified().toEpochMilli()));
+	}
+
+	/**
+	 * Deletes the local copies of the objects that are no longer in the bucket
+	 * @param prefix only the keys starting with the prefix are checked, null to check all of them
+	 * @param listedKeys the keys returned by the listing of the prefix
+	 * @return the number of deleted files
+	 */
+	int prune(String prefix, Set<String> listedKeys) {
+		int count = 0;
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (iterator.hasNext()) {
+			String key = iterator.next();
+			if ((prefix == null || key.startsWith(prefix)) && !listedKeys.contains(key)) {
+				try {
+					Files.deleteIfExists(Paths.get(downloadFolder.toString(), key));
+					iterator.remove();
+					count++;
+					logger.info("Successfully deleted file removed from bucket: {}", key);
+				} catch (IOException e) {
+					logger.error("Error deleting file removed from bucket: {}", key);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the manifest to a temporary file then moves it over the previous one
+	 * so a crash never leaves a truncated manifest behind
+	 * @throws S3InterfaceException if the manifest cannot be written
+	 */
+	void save() throws S3InterfaceException {
+		Path tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+				List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+				for (Map.Entry<String, Entry> item : snapshot) {
+					Entry entry = item.getValue();
+					writer.write(entry.eTag + "\t" + entry.size + "\t" + entry.lastModified + "\t" +
+						URLEncoder.encode(item.getKey(), StandardCharsets.UTF_8));
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			logger.info("Saved {} entries to manifest: {}", entries.size(), file);
+		} catch (IOException e) {
+			logger.error("Error writing manifest: {}", file);
+			throw new S3InterfaceException("Error writing manifest: " + file, e);
+		}
+	}
+
+	private static class Entry {
+		private final String eTag;
+		private final long size;
+		private final long lastModified;
+
+		private Entry(String eTag, long size, long lastModified) {
+			this.eTag = eTag;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		private boolean matches(Resource resource) {
+			return resource.getETag() != null &&
+				resource.getETag().equals(eTag) &&
+				resource.getSize() == size &&
+				resource.getLastModified() != null &&
+				resource.getLastModified().toEpochMilli() == lastModified;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package qteam.solutions.s3;
+
+/**
+ * Wraps an S3InterfaceException thrown while consuming an Iterator or a Stream of resources
+ */
+public class UncheckedS3InterfaceException extends RuntimeException {
+
+	private static final long serialVersionUID = -2760315925386870563L;
+
+	public UncheckedS3InterfaceException(S3InterfaceException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized S3InterfaceException getCause() {
+		return (S3InterfaceException) super.getCause();
+	}
+}
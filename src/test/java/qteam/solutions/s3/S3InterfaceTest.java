@@ -1,49 +1,120 @@
 package qteam.solutions.s3;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.MockedStatic;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.CopyOption;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class S3InterfaceTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private final S3Client mockS3Client = mock(S3Client.class);
     private final S3ClientBuilder mockBuilder = mock(S3ClientBuilder.class);
+    private final S3AsyncClient mockS3AsyncClient = mock(S3AsyncClient.class);
+    private final S3AsyncClientBuilder mockAsyncBuilder = mock(S3AsyncClientBuilder.class);
     private final DefaultCredentialsProvider mockCredentialsProvider = mock(DefaultCredentialsProvider.class);
     private final ListObjectsV2Response mockListObjectsV2Response = mock(ListObjectsV2Response.class);
 
     private S3Interface getMockS3Interface() throws Exception {
+    	return getMockS3Interface(S3InterfaceConfig.defaults());
+    }
+
+    private S3Interface getMockS3Interface(S3InterfaceConfig config) throws Exception {
+    	return getMockS3Interface(config, Path.of("mock/path"));
+    }
+
+    private S3Interface getMockS3Interface(S3InterfaceConfig config, Path baseFolder) throws Exception {
     	try (MockedStatic<S3Client> mockS3ClientStatic = 
     			 mockStatic(S3Client.class);
+    		 MockedStatic<S3AsyncClient> mockS3AsyncClientStatic = 
+    			 mockStatic(S3AsyncClient.class);
     		 MockedStatic<DefaultCredentialsProvider> mockCredentialsProviderStatic = 
     			 mockStatic(DefaultCredentialsProvider.class);
     		 MockedStatic<S3InterfaceHelper> mockS3InterfaceHelperStatic = 
@@ -51,10 +122,12 @@ public class S3InterfaceTest {
 
     		mockS3ClientStatic.when(S3Client::builder)
     			.thenReturn(mockBuilder);
+    		mockS3AsyncClientStatic.when(S3AsyncClient::builder)
+    			.thenReturn(mockAsyncBuilder);
     		mockCredentialsProviderStatic.when(DefaultCredentialsProvider::create)
     			.thenReturn(mockCredentialsProvider);
     		mockS3InterfaceHelperStatic.when(S3InterfaceHelper::getBaseDownloadFolder)
-				.thenReturn(Path.of("mock/path"));
+				.thenReturn(baseFolder);
     		mockS3InterfaceHelperStatic.when(() -> S3InterfaceHelper.createFolder(any(Path.class), any(Optional.class)))
     			.thenAnswer(invocation -> null);
 
@@ -64,6 +137,14 @@ public class S3InterfaceTest {
     			.thenReturn(mockBuilder);
     		when(mockBuilder.build())
     			.thenReturn(mockS3Client);
+    		when(mockAsyncBuilder.region(any(Region.class)))
+    			.thenReturn(mockAsyncBuilder);
+    		when(mockAsyncBuilder.credentialsProvider(any(AwsCredentialsProvider.class)))
+    			.thenReturn(mockAsyncBuilder);
+    		when(mockAsyncBuilder.httpClientBuilder(any(SdkAsyncHttpClient.Builder.class)))
+    			.thenReturn(mockAsyncBuilder);
+    		when(mockAsyncBuilder.build())
+    			.thenReturn(mockS3AsyncClient);
 
     		when(mockS3Client.headBucket(any(HeadBucketRequest.class)))
     			.thenAnswer(invocation -> null);
@@ -72,7 +153,7 @@ public class S3InterfaceTest {
     		when(mockListObjectsV2Response.contents())
     			.thenReturn(List.of(S3Object.builder().key("dummy").build()));
 
-    		return new S3Interface("test-bucket", Region.US_EAST_1);
+    		return new S3Interface("test-bucket", Region.US_EAST_1, config);
     	}
     }
 
@@ -341,56 +422,68 @@ public class S3InterfaceTest {
 
     @Test
     public void testGetAsFileSuccess_File() throws Exception {
-        try (S3Interface s3Interface = getMockS3Interface()) {
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(S3InterfaceConfig.defaults(), baseFolder)) {
         	Resource resource = new Resource("file1", "file1", 0);
-        	Path mockFilePath = Paths.get("mock/path/test-bucket/file1");
-
-        	var mockInputStream = mock(ResponseInputStream.class);
+        	Path filePath = baseFolder.resolve("test-bucket").resolve("file1");
 
-            try (MockedStatic<Files> mockedFiles = mockStatic(Files.class)) {
-                mockedFiles
-                	.when(() -> Files.copy(any(InputStream.class), any(Path.class), any(CopyOption.class)))
-                    .thenAnswer(invocation -> null);
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> 
+        		new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+        			AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes()))));
 
-                when(mockS3Client.getObject(any(GetObjectRequest.class))).thenReturn(mockInputStream);
+        	File downloadedFile = s3Interface.getAsFile(resource);
 
-                File downloadedFile = s3Interface.getAsFile(resource);
-
-                assertNotNull(downloadedFile);
-                assertEquals(mockFilePath.toFile(), downloadedFile);
-
-                mockedFiles.verify(
-                	() -> Files.copy(any(InputStream.class), any(Path.class), any(CopyOption.class)), times(1));
-                verify(mockS3Client, times(1)).getObject(any(GetObjectRequest.class));
-            }
+        	assertNotNull(downloadedFile);
+        	assertEquals(filePath.toFile(), downloadedFile);
+        	assertArrayEquals("12345".getBytes(), Files.readAllBytes(filePath));
+        	assertEquals(List.of("file1"), listFileNames(baseFolder.resolve("test-bucket")));
+        	verify(mockS3Client, times(1)).getObject(any(GetObjectRequest.class));
+        	assertEquals(5, s3Interface.getMetrics().getBytesDownloaded());
         }
     }
 
     @Test
     public void testDownloadFileFailure() throws Exception, S3InterfaceException {
-        try (S3Interface s3Interface = getMockS3Interface()) {
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	Files.write(baseFolder.resolve("test-bucket").resolve("file1"), "previous".getBytes());
+    	Files.write(baseFolder.resolve("test-bucket").resolve("file1.part"), "key".getBytes());
+    	
+        try (S3Interface s3Interface = getMockS3Interface(S3InterfaceConfig.defaults(), baseFolder)) {
         	Resource resource = new Resource("file1", "file1", 0);
 
-        	var mockInputStream = mock(ResponseInputStream.class);
-
-            try (MockedStatic<Files> mockedFiles = mockStatic(Files.class)) {
-                mockedFiles
-                	.when(() -> Files.copy(any(InputStream.class), any(Path.class), any(CopyOption.class)))
-                    .thenThrow(new IOException("Unknown IO error"));
+        	InputStream failingStream = new InputStream() {
+        		@Override
+        		public int read() throws IOException {
+        			throw new IOException("Unknown IO error");
+        		}
+        	};
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> 
+        		new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+        			AbortableInputStream.create(failingStream)));
 
-                when(mockS3Client.getObject(any(GetObjectRequest.class))).thenReturn(mockInputStream);
-
-                assertThrows(S3InterfaceException.class, 
-        	        	() -> s3Interface.getAsFile(resource));
-            }
+        	assertThrows(S3InterfaceException.class, 
+        		() -> s3Interface.getAsFile(resource));
+        	
+        	//the previous file and the file of the key named like a partial file are left untouched
+        	//and no partial file is left behind
+        	assertArrayEquals("previous".getBytes(), 
+        		Files.readAllBytes(baseFolder.resolve("test-bucket").resolve("file1")));
+        	assertArrayEquals("key".getBytes(), 
+        		Files.readAllBytes(baseFolder.resolve("test-bucket").resolve("file1.part")));
+        	assertEquals(List.of("file1", "file1.part"), listFileNames(baseFolder.resolve("test-bucket")));
         }
     }
 
     @Test
     public void testGetAsFileSuccess_Folder() throws Exception, S3InterfaceException {
-        try (S3Interface s3Interface = getMockS3Interface()) {
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(S3InterfaceConfig.defaults(), baseFolder)) {
         	Resource resource = new Resource("folder1/", "folder1", 1);
-        	Path mockFilePath = Paths.get("mock/path/test-bucket/folder1");
         	
         	S3Object s3Object1 = S3Object.builder()
             	.key("folder1/folder2/file1").size(100L).build();
@@ -404,28 +497,1414 @@ public class S3InterfaceTest {
                     .contents(s3Object1, s3Object2, s3Object3, s3Object4)
                     .build();
 
-        	var mockInputStream = mock(ResponseInputStream.class);
+            //every object contains its own key
+            when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            	GetObjectRequest request = invocation.getArgument(0);
+            	return new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+            		AbortableInputStream.create(new ByteArrayInputStream(request.key().getBytes())));
+            });
+            when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+            	.thenReturn(mockResponse);
+
+            File downloadedFolder = s3Interface.getAsFile(resource);
+
+            Path folderPath = baseFolder.resolve("test-bucket/folder1");
+            assertEquals(folderPath.toFile(), downloadedFolder);
+            verify(mockS3Client, times(4)).getObject(any(GetObjectRequest.class));
+            assertEquals(List.of("file3", "file4", "folder2"), listFileNames(folderPath));
+            assertEquals(List.of("file1", "file2"), listFileNames(folderPath.resolve("folder2")));
+            for (S3Object s3Object : mockResponse.contents()) {
+            	assertArrayEquals(s3Object.key().getBytes(), Files.readAllBytes(baseFolder.resolve("test-bucket")
+            		.resolve(s3Object.key())));
+            }
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderAsyncEngine() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.engine(S3InterfaceConfig.Engine.ASYNC)
+    		.maxInFlightRequests(2)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	Resource resource = new Resource("folder1/", "folder1", 1);
+        	
+        	S3Object s3Object1 = S3Object.builder()
+            	.key("folder1/folder2/file1").size(100L).build();
+            S3Object s3Object2 = S3Object.builder()
+            	.key("folder1/folder2/file2").size(200L).build();
+            S3Object s3Object3 = S3Object.builder()
+            	.key("folder1/file3").size(100L).build();
+            ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+                    .contents(s3Object1, s3Object2, s3Object3)
+                    .build();
+
+            when(mockS3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+            	.thenReturn(CompletableFuture.completedFuture(null));
+            when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+            	.thenReturn(mockResponse);
+
+            File downloadedFolder = s3Interface.getAsFile(resource);
+
+            assertEquals(baseFolder.resolve("test-bucket/folder1").toFile(), downloadedFolder);
+            verify(mockS3AsyncClient, times(3))
+            	.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+            verify(mockS3Client, never()).getObject(any(GetObjectRequest.class));
+            //the mocked client writes nothing, the partial files are moved into place empty
+            assertEquals(List.of("file3", "folder2"), listFileNames(baseFolder.resolve("test-bucket/folder1")));
+            assertEquals(List.of("file1", "file2"), listFileNames(baseFolder.resolve("test-bucket/folder1/folder2")));
+            assertEquals(3, s3Interface.getMetrics().getGetLatency().getCount());
+            assertEquals(3, s3Interface.getMetrics().getDownloadLatency().getCount());
+            assertEquals(0, s3Interface.getMetrics().getInFlightRequests());
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderAsyncEngineLargeObject() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.engine(S3InterfaceConfig.Engine.ASYNC)
+    		.multipartDownloadPartSize(8)
+    		.multipartDownloadThreshold(8)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/small").size(5L).build(), 
+        				  S3Object.builder().key("folder1/large").size(20L).build())
+        		.build();
+        	byte[] content = "01234567890123456789".getBytes();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(mockResponse);
+        	when(mockS3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+        		.thenReturn(CompletableFuture.completedFuture(null));
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		String[] range = request.range().substring("bytes=".length()).split("-");
+        		int start = Integer.parseInt(range[0]);
+        		int end = Math.min(content.length - 1, Integer.parseInt(range[1]));
+        		return new ResponseInputStream<>(GetObjectResponse.builder()
+        				.contentLength((long) (end - start + 1))
+        				.contentRange("bytes " + start + "-" + end + "/" + content.length)
+        				.eTag("etag")
+        				.build(), 
+    				AbortableInputStream.create(new ByteArrayInputStream(content, start, end - start + 1)));
+        	});
+
+        	File downloadedFolder = s3Interface.getAsFile(new Resource("folder1/", "folder1", 1));
+
+        	//the large object is downloaded as byte ranges by the blocking client, the small one without blocking
+        	verify(mockS3AsyncClient).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+        	verify(mockS3Client, times(3)).getObject(any(GetObjectRequest.class));
+        	assertArrayEquals(content, Files.readAllBytes(new File(downloadedFolder, "large").toPath()));
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_MultipartDownload() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.multipartDownloadThreshold(4)
+    		.multipartDownloadPartSize(4)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	byte[] content = "0123456789".getBytes();
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		int start = 0;
+        		int end = content.length - 1;
+        		String contentRange = null;
+        		if (request.range() != null) {
+        			String[] range = request.range().substring("bytes=".length()).split("-");
+        			start = Integer.parseInt(range[0]);
+        			end = Math.min(end, Integer.parseInt(range[1]));
+        			contentRange = "bytes " + start + "-" + end + "/" + content.length;
+        		}
+        		GetObjectResponse response = GetObjectResponse.builder()
+        			.contentLength((long) (end - start + 1))
+        			.contentRange(contentRange)
+        			.eTag("etag")
+        			.build();
+        		return new ResponseInputStream<>(response, AbortableInputStream.create(
+        			new ByteArrayInputStream(Arrays.copyOfRange(content, start, end + 1))));
+        	});
+
+            File downloadedFile = s3Interface.getAsFile(new Resource("file1", "file1", 0));
+
+            //the size is unknown, the first GET asks for the first part only and the response tells the size
+            assertArrayEquals(content, Files.readAllBytes(downloadedFile.toPath()));
+            ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+            verify(mockS3Client, times(3)).getObject(requestCaptor.capture());
+            assertEquals(List.of("bytes=0-3", "bytes=4-7", "bytes=8-9"), requestCaptor.getAllValues().stream()
+            	.map(GetObjectRequest::range).sorted().collect(Collectors.toList()));
+            
+            //every GET is measured to its response, the whole transfer as one download
+            S3InterfaceMetrics metrics = s3Interface.getMetrics();
+            assertEquals(3, metrics.getGetLatency().getCount());
+            assertEquals(1, metrics.getDownloadLatency().getCount());
+            assertEquals(content.length, metrics.getBytesDownloaded());
+            assertEquals(0, metrics.getInFlightRequests());
+            
+            //an empty object has no first part, it is requested again without range
+            when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            	GetObjectRequest request = invocation.getArgument(0);
+            	if (request.range() != null) {
+            		throw S3Exception.builder().statusCode(416).build();
+            	}
+            	return new ResponseInputStream<>(GetObjectResponse.builder().contentLength(0L).eTag("etag").build(), 
+            		AbortableInputStream.create(new ByteArrayInputStream(new byte[0])));
+            });
+            downloadedFile = s3Interface.getAsFile(new Resource("empty", "empty", 0));
+            assertEquals(0, Files.size(downloadedFile.toPath()));
+        }
+    }
+
+    @Test
+    public void testGetAsFileFailure_MultipartDownloadFirstPart() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.multipartDownloadThreshold(4)
+    		.multipartDownloadPartSize(4)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	byte[] content = "0123456789".getBytes();
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	AtomicInteger running = new AtomicInteger();
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		if (request.range().equals("bytes=0-3")) {
+        			//the first part fails while the other parts are being downloaded
+        			GetObjectResponse response = GetObjectResponse.builder()
+        				.contentLength(4L)
+        				.contentRange("bytes 0-3/" + content.length)
+        				.eTag("etag")
+        				.build();
+        			return new ResponseInputStream<>(response, AbortableInputStream.create(new InputStream() {
+        				@Override
+        				public int read() throws IOException {
+        					throw new IOException("Connection reset");
+        				}
+        			}));
+        		}
+        		running.incrementAndGet();
+        		try {
+        			Thread.sleep(300);
+        		} finally {
+        			running.decrementAndGet();
+        		}
+        		String[] range = request.range().substring("bytes=".length()).split("-");
+        		return new ResponseInputStream<>(GetObjectResponse.builder().build(), AbortableInputStream.create(
+        			new ByteArrayInputStream(Arrays.copyOfRange(content, Integer.parseInt(range[0]), 
+        				Integer.parseInt(range[1]) + 1))));
+        	});
+
+            assertThrows(S3InterfaceException.class, () -> s3Interface.getAsFile(new Resource("file1", "file1", 0)));
+
+            //no part is still writing once the failure is reported and the partial file deleted
+            assertEquals(0, running.get());
+            assertEquals(List.of(), listFileNames(baseFolder.resolve("test-bucket")));
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderSync() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.syncFolders(true)
+    		.pruneDeletedFiles(true)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	Instant lastModified = Instant.parse("2024-01-01T00:00:00Z");
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	S3Object s3Object1 = S3Object.builder()
+        		.key("folder1/file1").size(5L).eTag("etag1").lastModified(lastModified).build();
+        	S3Object s3Object2 = S3Object.builder()
+        		.key("folder1/file2").size(5L).eTag("etag2").lastModified(lastModified).build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+        		.thenReturn(ListObjectsV2Response.builder().contents(s3Object1, s3Object2).build());
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> 
+        		new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+        			AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes()))));
+
+        	Resource resource = new Resource("folder1/", "folder1", 1);
+        	s3Interface.getAsFile(resource);
+        	verify(mockS3Client, times(2)).getObject(any(GetObjectRequest.class));
+        	//the manifest is kept out of the download folder
+        	assertEquals(true, Files.exists(baseFolder.resolve("test-bucket.s3interface").resolve(".s3interface-manifest")));
+        	assertEquals(List.of("folder1"), listFileNames(baseFolder.resolve("test-bucket")));
+        	
+        	//the second sync skips both unchanged files
+        	s3Interface.getAsFile(resource);
+        	verify(mockS3Client, times(2)).getObject(any(GetObjectRequest.class));
+        	
+        	//the third sync downloads the changed file and deletes the removed one
+        	S3Object changedObject = S3Object.builder()
+        		.key("folder1/file1").size(5L).eTag("etag3").lastModified(lastModified).build();
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+        		.thenReturn(ListObjectsV2Response.builder().contents(changedObject).build());
+        	s3Interface.getAsFile(resource);
+        	verify(mockS3Client, times(3)).getObject(any(GetObjectRequest.class));
+        	assertEquals(false, Files.exists(baseFolder.resolve("test-bucket/folder1/file2")));
+        }
+    }
+
+    @Test
+    public void testStreamFolderAllPages() throws Exception {
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file1").build(), 
+        				  S3Object.builder().key("folder1/file2").build())
+        		.nextContinuationToken("next-token")
+        		.build();
+        	ListObjectsV2Response secondPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file3").build())
+        		.build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+        		ListObjectsV2Request request = invocation.getArgument(0);
+        		return request.continuationToken() == null ? firstPage : secondPage;
+        	});
+
+        	List<String> ids = s3Interface.streamFolder(new Resource("folder1/", "folder1", 1))
+        		.map(Resource::getId)
+        		.collect(Collectors.toList());
+
+        	assertEquals(List.of("folder1/file1", "folder1/file2", "folder1/file3"), ids);
+        }
+    }
+
+    @Test
+    public void testStreamFolderFiltered() throws Exception {
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	Instant now = Instant.now();
+        	ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/data/a.csv").size(10L).lastModified(now).build(), 
+        				  S3Object.builder().key("folder1/data/b.csv").size(500L).lastModified(now).build(),
+        				  S3Object.builder().key("folder1/data/c.csv").size(20L).lastModified(now.minusSeconds(7200)).build(),
+        				  S3Object.builder().key("folder1/data/d.json").size(30L).lastModified(now).build(),
+        				  S3Object.builder().key("folder1/data/sub/e.csv").size(40L).lastModified(now).build())
+        		.build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(mockResponse);
+
+        	ResourceFilter filter = ResourceFilter.builder()
+        		.glob("folder1/data/*.csv")
+        		.maxSize(100)
+        		.modifiedAfter(now.minusSeconds(3600))
+        		.startAfter("folder1/data/0")
+        		.build();
+        	List<String> ids = s3Interface.streamFolder(new Resource("folder1/", "folder1", 1), true, filter)
+        		.map(Resource::getId)
+        		.collect(Collectors.toList());
+
+        	assertEquals(List.of("folder1/data/a.csv"), ids);
+        	
+        	//the literal prefix of the glob and the start after key are sent to S3
+        	ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        	verify(mockS3Client, times(2)).listObjectsV2(requestCaptor.capture());
+        	assertEquals("folder1/data/", requestCaptor.getValue().prefix());
+        	assertEquals("folder1/data/0", requestCaptor.getValue().startAfter());
+        	
+        	assertThrows(IllegalArgumentException.class, 
+        		() -> ResourceFilter.builder().glob("*.csv").regex(".*").build());
+        }
+    }
+
+    @Test
+    public void testListFolderOneLevel() throws Exception {
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+        		.commonPrefixes(CommonPrefix.builder().prefix("folder1/folder2/").build())
+        		.contents(S3Object.builder().key("folder1/").build(), 
+        				  S3Object.builder().key("folder1/file1").build())
+        		.build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+        		.thenReturn(mockResponse);
+
+        	ListResult<Resource> result = s3Interface
+        		.listFolder(new Resource("folder1", "folder1", 1), null, false);
+
+        	assertEquals(2, result.getResources().size());
+        	assertEquals("folder1/folder2/", result.getResources().get(0).getId());
+        	assertEquals(1, result.getResources().get(0).getType());
+        	assertEquals("folder1/file1", result.getResources().get(1).getId());
+        	assertEquals(0, result.getResources().get(1).getType());
+        	
+        	ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        	verify(mockS3Client, times(2)).listObjectsV2(requestCaptor.capture());
+        	assertEquals("/", requestCaptor.getValue().delimiter());
+        	assertEquals("folder1/", requestCaptor.getValue().prefix());
+        }
+    }
+
+    @Test
+    public void testGetResourceMetadataCache() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.metadataCacheSize(10)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config)) {
+	        when(mockS3Client.headObject(any(HeadObjectRequest.class))).thenAnswer(invocation -> {
+	        	HeadObjectRequest request = invocation.getArgument(0);
+	        	if (request.key().equals("nonexistent-file")) {
+	        		throw NoSuchKeyException.builder().build();
+	        	}
+	        	return HeadObjectResponse.builder().contentLength(100L).eTag("etag").build();
+	        });
+	
+	        assertEquals(100L, s3Interface.getResource("file1.txt").getSize());
+	        assertEquals("etag", s3Interface.getResource("file1.txt").getETag());
+	        assertThrows(S3InterfaceException.class, 
+	        	() -> s3Interface.getResource("nonexistent-file"));
+	        assertThrows(S3InterfaceException.class, 
+	        	() -> s3Interface.getResource("nonexistent-file"));
+	        
+	        verify(mockS3Client, times(2)).headObject(any(HeadObjectRequest.class));
+	        CacheStats stats = s3Interface.getMetadataCacheStats();
+	        assertEquals(1, stats.getHits());
+	        assertEquals(2, stats.getMisses());
+	        assertEquals(1, stats.getNegativeHits());
+    	}
+    }
+
+    @Test
+    public void testMetadataCache_ConcurrentEviction() throws Exception {
+    	MetadataCache cache = new MetadataCache(100, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    	cache.put(new Resource("hot", "hot", 0));
+    	
+    	//the keys are added from several threads at once, the key read before every insertion is never evicted
+    	IntStream.range(0, 4000).parallel().forEach(i -> {
+    		assertNotNull(cache.get("hot"));
+    		cache.put(new Resource("file" + i, "file" + i, 0));
+    	});
+    	assertEquals(100, cache.size());
+    	assertNotNull(cache.get("hot"));
+    	
+    	cache.invalidate("hot");
+    	assertNull(cache.get("hot"));
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderBoundedPending() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.maxPendingDownloads(1)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file1").build(), 
+        				  S3Object.builder().key("folder1/folder2/file2").build())
+        		.nextContinuationToken("next-token")
+        		.build();
+        	ListObjectsV2Response secondPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file3").build())
+        		.build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+        		ListObjectsV2Request request = invocation.getArgument(0);
+        		return request.continuationToken() == null ? firstPage : secondPage;
+        	});
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> 
+    			new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+    				AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes()))));
+
+        	File downloadedFolder = s3Interface.getAsFile(new Resource("folder1/", "folder1", 1));
+
+        	verify(mockS3Client, times(3)).getObject(any(GetObjectRequest.class));
+        	assertEquals(true, new File(downloadedFolder, "folder2/file2").exists());
+        	assertEquals(true, new File(downloadedFolder, "file3").exists());
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderLargestFirst() throws Exception {
+    	//the first file holds the only download thread until the last file is listed,
+    	//the pending downloads are not limited so only the free capacity releases the files
+    	CountDownLatch listed = new CountDownLatch(1);
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.downloadThreads(1)
+    		.adaptiveConcurrency(false)
+    		.downloadSchedulingPolicy(file -> {
+    			if (file.getId().equals("folder1/large")) {
+    				listed.countDown();
+    			}
+    			return DownloadSchedulingPolicy.LARGEST_FIRST.priority(file);
+    		})
+    		.schedulingLookahead(10)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/small").size(1L).build(), 
+        				  S3Object.builder().key("folder1/medium1").size(3L).build(),
+        				  S3Object.builder().key("folder1/medium2").size(3L).build(),
+        				  S3Object.builder().key("folder1/large").size(5L).build())
+        		.build();
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(mockResponse);
+        	List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		requested.add(request.key());
+        		assertTrue(listed.await(5, TimeUnit.SECONDS));
+        		return new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+    				AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes())));
+        	});
+
+        	s3Interface.getAsFile(new Resource("folder1/", "folder1", 1));
+
+        	//the first file starts on the free slot, the files listed meanwhile start largest first
+        	//and the files of the same size in the listing order
+        	assertEquals(List.of("folder1/small", "folder1/large", "folder1/medium1", "folder1/medium2"), requested);
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderReleasedBeforeLookahead() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.downloadSchedulingPolicy(DownloadSchedulingPolicy.LARGEST_FIRST)
+    		.schedulingLookahead(10)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file1").size(5L).build())
+        		.nextContinuationToken("next-token")
+        		.build();
+        	ListObjectsV2Response secondPage = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/file2").size(5L).build())
+        		.build();
+        	
+        	//the second page is listed only once the first file is downloading
+        	CountDownLatch started = new CountDownLatch(1);
+        	AtomicBoolean startedFirst = new AtomicBoolean();
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+        		ListObjectsV2Request request = invocation.getArgument(0);
+        		if (request.continuationToken() == null) {
+        			return firstPage;
+        		}
+        		startedFirst.set(started.await(5, TimeUnit.SECONDS));
+        		return secondPage;
+        	});
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		started.countDown();
+        		return new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+    				AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes())));
+        	});
+
+        	File downloadedFolder = s3Interface.getAsFile(new Resource("folder1/", "folder1", 1));
+
+        	//the first file is not held until the lookahead fills, the downloads have free capacity
+        	assertTrue(startedFirst.get());
+        	assertEquals(List.of("file1", "file2"), listFileNames(downloadedFolder.toPath()));
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_FolderCreatesEachFolderOnce() throws Exception {
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	ListObjectsV2Response mockResponse = ListObjectsV2Response.builder()
+        		.contents(S3Object.builder().key("folder1/folder2/file1").build(), 
+        				  S3Object.builder().key("folder1/folder2/file2").build(),
+        				  S3Object.builder().key("folder1/file3").build(),
+        				  S3Object.builder().key("folder1/file4").build())
+        		.build();
 
             try (MockedStatic<Files> mockedFiles = mockStatic(Files.class);
             	 MockedStatic<S3InterfaceHelper> mockedS3Helper = mockStatic(S3InterfaceHelper.class)) {
-                mockedFiles
-                	.when(() -> Files.copy(any(InputStream.class), any(Path.class), any(CopyOption.class)))
-                    .thenAnswer(invocation -> null);
                 mockedS3Helper.when(() -> S3InterfaceHelper.createFolder(any(Path.class), any(Optional.class)))
                 	.thenAnswer(invocation -> null);
+                mockedS3Helper.when(() -> S3InterfaceHelper.createResourceFromObject(any(S3Object.class)))
+            		.thenCallRealMethod();
                 mockedS3Helper.when(() -> S3InterfaceHelper.createResourceFromKey(any(String.class)))
             		.thenCallRealMethod();
+                mockedS3Helper.when(() -> S3InterfaceHelper.extractFolderName(any(Resource.class)))
+            		.thenCallRealMethod();
 
                 when(mockS3Client.getObject(any(GetObjectRequest.class)))
-                	.thenReturn(mockInputStream);
+                	.thenReturn(mock(ResponseInputStream.class));
                 when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
 	            	.thenReturn(mockResponse);
 
-                File downloadedFolder = s3Interface.getAsFile(resource);
+                s3Interface.getAsFile(new Resource("folder1/", "folder1", 1));
 
-                assertNotNull(downloadedFolder);
-                assertEquals(mockFilePath.toFile(), downloadedFolder);
+                ArgumentCaptor<Path> folderCaptor = ArgumentCaptor.forClass(Path.class);
+                mockedS3Helper.verify(
+                	() -> S3InterfaceHelper.createFolder(folderCaptor.capture(), any(Optional.class)), times(2));
+                assertEquals(List.of(Paths.get("mock/path/test-bucket/folder1"), 
+                					 Paths.get("mock/path/test-bucket/folder1/folder2")), 
+                			 folderCaptor.getAllValues());
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetMetrics() throws Exception {
+    	ObjectName query = new ObjectName("qteam.solutions.s3:type=S3Interface,*");
+    	int registered = ManagementFactory.getPlatformMBeanServer().queryNames(query, null).size();
+    	
+    	try (S3Interface s3Interface = getMockS3Interface()) {
+	        when(mockS3Client.headObject(any(HeadObjectRequest.class))).thenAnswer(invocation -> {
+	        	HeadObjectRequest request = invocation.getArgument(0);
+	        	if (request.key().equals("nonexistent-file")) {
+	        		throw NoSuchKeyException.builder().build();
+	        	}
+	        	return HeadObjectResponse.builder().contentLength(100L).build();
+	        });
+	        
+	        s3Interface.getResource("file1.txt");
+	        assertThrows(S3InterfaceException.class, 
+	        	() -> s3Interface.getResource("nonexistent-file"));
+	        
+	        //the bucket validation sends one HEAD and one LIST request
+	        S3InterfaceMetrics metrics = s3Interface.getMetrics();
+	        assertEquals(3, metrics.getHeadLatency().getCount());
+	        assertEquals(1, metrics.getHeadLatency().getErrors());
+	        assertEquals(1, metrics.getListLatency().getCount());
+	        assertEquals(0, metrics.getGetLatency().getCount());
+	        assertEquals(1, metrics.getErrorCount());
+	        assertEquals(0, metrics.getInFlightRequests());
+	        assertEquals(registered + 1, ManagementFactory.getPlatformMBeanServer().queryNames(query, null).size());
+    	}
+    	assertEquals(registered, ManagementFactory.getPlatformMBeanServer().queryNames(query, null).size());
+    }
+
+    @Test
+    public void testGetAsFileSuccess_ResumeDownload() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.multipartDownloadPartSize(4)
+    		.resumableDownloads(true)
+    		.build();
+    	Path baseFolder = temporaryFolder.getRoot().toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	byte[] content = "0123456789".getBytes();
+    	GetObjectResponse response = GetObjectResponse.builder()
+    		.contentLength((long) content.length)
+    		.eTag("etag")
+    		.build();
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	//the first attempt is interrupted after the first part
+        	InputStream interruptedStream = new ByteArrayInputStream(content) {
+        		@Override
+        		public synchronized int read(byte[] b, int off, int len) {
+        			if (pos >= 4) {
+        				throw SdkClientException.create("Connection reset");
+        			}
+        			return super.read(b, off, len);
+        		}
+        	};
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenReturn(
+        		new ResponseInputStream<>(response, AbortableInputStream.create(interruptedStream)));
+        	
+        	assertThrows(S3InterfaceException.class, 
+        		() -> s3Interface.getAsFile(new Resource("file1", "file1", 0)));
+        	List<String> fileNames = listFileNames(baseFolder.resolve("test-bucket"));
+        	assertEquals(1, fileNames.size());
+        	assertTrue(fileNames.get(0).startsWith(".file1.") && fileNames.get(0).endsWith(".part"));
+        	//the journal is kept out of the download folder
+        	assertEquals(true, Files.exists(baseFolder.resolve("test-bucket.s3interface").resolve(".s3interface-journal")));
+        	assertFalse(Files.exists(baseFolder.resolve("test-bucket").resolve(".s3interface-journal")));
+        }
+        
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	//the second attempt only requests the missing ranges
+        	ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        	when(mockS3Client.getObject(requestCaptor.capture())).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		String[] range = request.range().substring("bytes=".length()).split("-");
+        		int start = Integer.parseInt(range[0]);
+        		int end = Integer.parseInt(range[1]);
+        		return new ResponseInputStream<>(response, AbortableInputStream.create(
+        			new ByteArrayInputStream(Arrays.copyOfRange(content, start, end + 1))));
+        	});
+        	
+        	File downloadedFile = s3Interface.getAsFile(new Resource("file1", "file1", 0));
+        	
+        	assertArrayEquals(content, Files.readAllBytes(downloadedFile.toPath()));
+        	assertEquals(List.of("file1"), listFileNames(baseFolder.resolve("test-bucket")));
+        	assertEquals(List.of("bytes=4-7", "bytes=8-9"), requestCaptor.getAllValues().stream()
+        		.map(GetObjectRequest::range).sorted().collect(Collectors.toList()));
+        	assertEquals(List.of("etag", "etag"), requestCaptor.getAllValues().stream()
+        		.map(GetObjectRequest::ifMatch).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testDownloadJournal() throws Exception {
+    	Path stateFolder = temporaryFolder.newFolder("state").toPath();
+    	try (DownloadJournal journal = DownloadJournal.open(stateFolder)) {
+    		//the journal is used by one process at a time
+    		assertNull(DownloadJournal.open(stateFolder));
+    		
+    		//a single file download is not remembered once completed
+    		journal.start("file1", "etag", 10, ".file1.x.part");
+    		journal.addRange("file1", 0, 4);
+    		List<long[]> missing = journal.getPartial("file1").getMissingRanges(10);
+    		assertEquals(1, missing.size());
+    		assertArrayEquals(new long[] {4, 10}, missing.get(0));
+    		journal.complete("file1", "etag");
+    		assertNull(journal.getPartial("file1"));
+    		assertFalse(journal.isCompleted("file1", "etag"));
+    		
+    		//the files of a folder download are remembered until it finishes
+    		journal.startFolder("folder1/");
+    		journal.complete("folder1/file2", "etag2");
+    		assertTrue(journal.isCompleted("folder1/file2", "etag2"));
+    		journal.finishFolder("folder1/", false);
+    	}
+    	
+    	try (DownloadJournal journal = DownloadJournal.open(stateFolder)) {
+    		assertTrue(journal.isCompleted("folder1/file2", "etag2"));
+    		assertFalse(journal.isCompleted("file1", "etag"));
+    		journal.startFolder("folder1/");
+    		journal.finishFolder("folder1/", true);
+    		assertFalse(journal.isCompleted("folder1/file2", "etag2"));
+    	}
+    	try (DownloadJournal journal = DownloadJournal.open(stateFolder)) {
+    		assertFalse(journal.isCompleted("folder1/file2", "etag2"));
+    	}
+    }
+
+    @Test
+    public void testReadRangeAndChannel() throws Exception {
+    	byte[] content = "0123456789".getBytes();
+    	
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		String[] range = request.range().substring("bytes=".length()).split("-");
+        		int start = Integer.parseInt(range[0]);
+        		int end = Math.min(content.length - 1, Integer.parseInt(range[1]));
+        		return new ResponseInputStream<>(GetObjectResponse.builder().contentLength((long) (end - start + 1)).build(), 
+        			AbortableInputStream.create(new ByteArrayInputStream(Arrays.copyOfRange(content, start, end + 1))));
+        	});
+        	
+        	ByteBuffer range = s3Interface.readRange("file1", 2, 3);
+        	assertEquals("234", StandardCharsets.UTF_8.decode(range).toString());
+        	//the buffer is sized on the bytes sent, not on the bytes requested
+        	ByteBuffer tail = s3Interface.readRange("file1", 8, 5);
+        	assertEquals(2, tail.array().length);
+        	assertEquals("89", StandardCharsets.UTF_8.decode(tail).toString());
+        	assertThrows(S3InterfaceException.class, () -> s3Interface.readRange("file1", -1, 5));
+        	
+        	//read the footer of the file through the channel, only the footer is requested
+        	Resource resource = new Resource("file1", "file1", 0, content.length, "etag", null);
+        	try (SeekableByteChannel channel = s3Interface.getAsChannel(resource)) {
+        		assertEquals(content.length, channel.size());
+        		channel.position(7);
+        		ByteBuffer footer = ByteBuffer.allocate(10);
+        		assertEquals(3, channel.read(footer));
+        		assertEquals(-1, channel.read(footer));
+        		footer.flip();
+        		assertEquals("789", StandardCharsets.UTF_8.decode(footer).toString());
+        	}
+        	ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        	verify(mockS3Client, times(3)).getObject(requestCaptor.capture());
+        	assertEquals("bytes=7-9", requestCaptor.getValue().range());
+        	assertEquals("etag", requestCaptor.getValue().ifMatch());
+        	
+        	assertThrows(S3InterfaceException.class, 
+        		() -> s3Interface.getAsStream(new Resource("folder1/", "folder1", 1)));
+        }
+    }
+
+    @Test
+    public void testPutFileAndFolder() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.multipartUploadThreshold(4)
+    		.multipartUploadPartSize(4)
+    		.build();
+    	Path folder = temporaryFolder.newFolder("upload").toPath();
+    	Files.createDirectories(folder.resolve("sub"));
+    	Files.write(folder.resolve("small"), "0123".getBytes());
+    	Files.write(folder.resolve("sub").resolve("large"), "0123456789".getBytes());
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config)) {
+        	List<String> uploadedParts = new CopyOnWriteArrayList<>();
+        	when(mockS3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+        		.thenReturn(PutObjectResponse.builder().eTag("small-etag").build());
+        	when(mockS3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+        		.thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload-id").build());
+        	when(mockS3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+        		UploadPartRequest request = invocation.getArgument(0);
+        		RequestBody body = invocation.getArgument(1);
+        		try (InputStream inputStream = body.contentStreamProvider().newStream()) {
+        			uploadedParts.add(request.partNumber() + ":" + new String(inputStream.readAllBytes()));
+        		}
+        		return UploadPartResponse.builder().eTag("etag-" + request.partNumber()).build();
+        	});
+        	when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+        		.thenReturn(CompleteMultipartUploadResponse.builder().eTag("large-etag").build());
+        	
+        	Resource small = s3Interface.putFile(folder.resolve("small"), "results/small");
+        	assertEquals("small-etag", small.getETag());
+        	assertEquals(4, small.getSize());
+        	assertThrows(S3InterfaceException.class, () -> s3Interface.putFile(folder.resolve("small"), "results/"));
+        	
+        	assertEquals(2, s3Interface.putFolder(folder, "results"));
+        	
+        	//the large file is sent as 3 parts completed in order
+        	assertEquals(List.of("1:0123", "2:4567", "3:89"), 
+        		uploadedParts.stream().sorted().collect(Collectors.toList()));
+        	ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor = 
+        		ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        	verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        	assertEquals("results/sub/large", completeCaptor.getValue().key());
+        	assertEquals(List.of("etag-1", "etag-2", "etag-3"), completeCaptor.getValue().multipartUpload().parts()
+        		.stream().map(CompletedPart::eTag).collect(Collectors.toList()));
+        	ArgumentCaptor<PutObjectRequest> putCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        	verify(mockS3Client, times(2)).putObject(putCaptor.capture(), any(RequestBody.class));
+        	assertEquals("results/small", putCaptor.getValue().key());
+        	assertEquals(10 + 4 + 4, s3Interface.getMetrics().getBytesUploaded());
+        }
+    }
+
+    @Test
+    public void testGetResources() throws Exception {
+        try (S3Interface s3Interface = getMockS3Interface()) {
+        	List<String> groupKeys = IntStream.range(0, 12)
+        		.mapToObj(i -> String.format("folder1/file%02d", i))
+        		.collect(Collectors.toList());
+        	List<S3Object> listed = groupKeys.stream()
+        		.filter(key -> !key.equals("folder1/file05") && !key.equals("folder1/file11"))
+        		.map(key -> S3Object.builder().key(key).size(10L).eTag("etag").build())
+        		.collect(Collectors.toList());
+        	
+        	when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+        		ListObjectsV2Request request = invocation.getArgument(0);
+        		if (request.delimiter() != null) {
+        			//the scan of the group starts just before its first key
+        			assertEquals("folder1/file", request.prefix());
+        			assertEquals("folder1/file0/", request.startAfter());
+        			return ListObjectsV2Response.builder().contents(listed).build();
+        		}
+        		return ListObjectsV2Response.builder()
+        			.contents(S3Object.builder().key(request.prefix() + "file").build())
+        			.build();
+        	});
+        	when(mockS3Client.headObject(any(HeadObjectRequest.class))).thenAnswer(invocation -> {
+	        	HeadObjectRequest request = invocation.getArgument(0);
+	        	if (request.key().equals("missing/file")) {
+	        		throw NoSuchKeyException.builder().build();
+	        	}
+	        	return HeadObjectResponse.builder().contentLength(100L).build();
+	        });
+        	
+        	List<String> ids = new ArrayList<>(groupKeys);
+        	ids.addAll(List.of("other/file", "missing/file", "folder2/", "folder1/file00"));
+        	Map<String, Optional<Resource>> resources = s3Interface.getResources(ids);
+        	
+        	assertEquals(15, resources.size());
+        	assertEquals(ids.subList(0, 15), new ArrayList<>(resources.keySet()));
+        	assertEquals(10L, resources.get("folder1/file00").get().getSize());
+        	assertEquals(Optional.empty(), resources.get("folder1/file05"));
+        	assertEquals(Optional.empty(), resources.get("folder1/file11"));
+        	assertEquals(100L, resources.get("other/file").get().getSize());
+        	assertEquals(Optional.empty(), resources.get("missing/file"));
+        	assertEquals(1, resources.get("folder2/").get().getType());
+        	
+        	//one scan for the group and one list for the folder, the bucket validation sends another one
+        	verify(mockS3Client, times(3)).listObjectsV2(any(ListObjectsV2Request.class));
+        	verify(mockS3Client, times(2)).headObject(any(HeadObjectRequest.class));
+        }
+    }
+
+    @Test
+    public void testGetAsFileSuccess_ObjectCache() throws Exception {
+    	Path baseFolder = temporaryFolder.newFolder("download").toPath();
+    	Files.createDirectories(baseFolder.resolve("test-bucket"));
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.objectCacheFolder(temporaryFolder.newFolder("cache").toPath())
+    		.build();
+    	
+        try (S3Interface s3Interface = getMockS3Interface(config, baseFolder)) {
+        	when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+        		GetObjectRequest request = invocation.getArgument(0);
+        		if ("\"etag1\"".equals(request.ifNoneMatch())) {
+        			throw S3Exception.builder().statusCode(304).build();
+        		}
+        		return new ResponseInputStream<>(GetObjectResponse.builder().eTag("\"etag1\"").build(), 
+        			AbortableInputStream.create(new ByteArrayInputStream("12345".getBytes())));
+        	});
+        	
+        	//the first read downloads the object and caches a copy of it, changing the file leaves the cache intact
+        	File downloadedFile = s3Interface.getAsFile(new Resource("file1", "file1", 0));
+        	assertArrayEquals("12345".getBytes(), Files.readAllBytes(downloadedFile.toPath()));
+        	assertEquals(1, Files.getAttribute(downloadedFile.toPath(), "unix:nlink"));
+        	Files.write(downloadedFile.toPath(), "54321".getBytes());
+        	Files.delete(downloadedFile.toPath());
+        	
+        	//a resource listed with the cached ETag is copied from the cache without any request
+        	downloadedFile = s3Interface.getAsFile(new Resource("file1", "file1", 0, 5, "\"etag1\"", null));
+        	assertArrayEquals("12345".getBytes(), Files.readAllBytes(downloadedFile.toPath()));
+        	verify(mockS3Client, times(1)).getObject(any(GetObjectRequest.class));
+        	
+        	//otherwise the cached version is validated with a conditional request
+        	Files.delete(downloadedFile.toPath());
+        	downloadedFile = s3Interface.getAsFile(new Resource("file1", "file1", 0));
+        	assertArrayEquals("12345".getBytes(), Files.readAllBytes(downloadedFile.toPath()));
+        	verify(mockS3Client, times(2)).getObject(any(GetObjectRequest.class));
+        	
+        	CacheStats stats = s3Interface.getObjectCacheStats();
+        	assertEquals(2, stats.getHits());
+        	assertEquals(1, stats.getMisses());
+        	assertEquals(1, stats.getSize());
+        }
+    }
+
+    @Test
+    public void testObjectCache_SharedQuota() throws Exception {
+    	Path cacheFolder = temporaryFolder.newFolder("cache").toPath();
+    	Path source = temporaryFolder.newFile("source").toPath();
+    	Files.write(source, "12345".getBytes());
+    	
+    	//two processes caching the same bucket share its quota, the least recently used file is evicted
+    	ObjectCache first = ObjectCache.open(cacheFolder, "test-bucket", 8, Duration.ZERO);
+    	ObjectCache second = ObjectCache.open(cacheFolder, "test-bucket", 8, Duration.ZERO);
+    	first.put("file1", "\"etag1\"", source);
+    	second.put("file2", "\"etag2\"", source);
+    	assertEquals(5, first.getTotalBytes());
+    	assertNull(first.get("file1"));
+    	assertNotNull(first.get("file2"));
+    	assertEquals(1, second.getStats().getSize());
+    }
+
+    @Test
+    public void testConnectionPoolConfig() throws Exception {
+    	//the default pool is sized on the transfer threads
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.downloadThreads(20)
+    		.multipartDownloadThreads(4)
+    		.build();
+    	assertEquals(20 + 4 + 1 + S3InterfaceConfig.EXTRA_CONNECTIONS, config.getMaxConnections());
+    	assertEquals(50, S3InterfaceConfig.builder().maxConnections(50).build().getMaxConnections());
+    	assertThrows(IllegalArgumentException.class, 
+    		() -> S3InterfaceConfig.builder().downloadThreads(20).maxConnections(10).build());
+    	
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		verify(mockBuilder).httpClientBuilder(any(ApacheHttpClient.Builder.class));
+    	}
+    	config = S3InterfaceConfig.builder()
+    		.httpClientType(S3InterfaceConfig.HttpClientType.URL_CONNECTION)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		verify(mockBuilder).httpClientBuilder(any(UrlConnectionHttpClient.Builder.class));
+    	}
+    }
+
+    @Test
+    public void testStreamFolder_Sharded() throws Exception {
+    	List<String> keys = List.of("a/1", "a/2", "a/3", "b/1", "b/2", "c", "d/1");
+    	
+    	//the shards are the sub folders of the bucket
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.listingParallelism(4)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    		try (Stream<Resource> resources = s3Interface.streamFolder(null)) {
+    			assertEquals(keys, resources.map(Resource::getId).sorted().collect(Collectors.toList()));
+    		}
+    	}
+    	
+    	//the shards are the ranges between the split points
+    	config = S3InterfaceConfig.builder()
+    		.listingParallelism(4)
+    		.listingSplitPoints(List.of("b/2", "a/3", "z"))
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    		try (Stream<Resource> resources = s3Interface.streamFolder(null)) {
+    			assertEquals(keys, resources.map(Resource::getId).sorted().collect(Collectors.toList()));
+    		}
+    		verify(mockS3Client, atLeast(5)).listObjectsV2(any(ListObjectsV2Request.class));
+    		
+    		assertThrows(S3InterfaceException.class, 
+    			() -> s3Interface.streamFolder(new Resource("missing/", "missing", 1)));
+    	}
+    }
+
+    @Test
+    public void testStreamFolder_ShardedUtf8Order() throws Exception {
+    	//the UTF-16 order of String.compareTo puts the supplementary chars before the chars above the surrogates
+    	String emoji = new String(Character.toChars(0x1F600));
+    	List<String> keys = List.of("a", "\uD7FF", "\uE0001", "\uFFFD1", emoji + "1", emoji + "2");
+    	for (String key : keys) {
+    		for (String other : keys) {
+    			assertEquals(Integer.signum(compareUtf8(key, other)), 
+    				Integer.signum(S3InterfaceHelper.compareKeys(key, other)));
+    		}
+    	}
+    	
+    	//the shards are split and bounded in the order of S3, none of the keys is lost
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.listingParallelism(4)
+    		.listingSplitPoints(List.of(emoji, "\uFFFD", "\uE000"))
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		List<String> startAfters = Collections.synchronizedList(new ArrayList<>());
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+    			ListObjectsV2Request request = invocation.getArgument(0);
+    			if (request.startAfter() != null) {
+    				startAfters.add(request.startAfter());
+    			}
+    			return listKeys(keys, request);
+    		});
+    		try (Stream<Resource> resources = s3Interface.streamFolder(null)) {
+    			assertEquals(keys.stream().sorted(S3InterfaceTest::compareUtf8).collect(Collectors.toList()), 
+    				resources.map(Resource::getId).sorted(S3InterfaceTest::compareUtf8).collect(Collectors.toList()));
+    		}
+    		//the listings start before the split points with well formed keys
+    		for (String startAfter : startAfters) {
+    			assertEquals(startAfter, new String(startAfter.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+    		}
+    	}
+    }
+
+    @Test
+    public void testStreamFolder_ShardedFiltered() throws Exception {
+    	List<String> keys = List.of("a/1.csv", "b/x/1.csv", "b/x/2.csv", "b/y/1.csv", "b/y/2.txt", "b/z.csv", "c/1.csv");
+    	ResourceFilter filter = ResourceFilter.builder()
+    		.glob("b/**.csv")
+    		.startAfter("b/x/1.csv")
+    		.build();
+    	
+    	//the shards are the sub folders of the literal prefix of the glob, listed after the start after key
+    	//then the ranges between the split points within it
+    	for (List<String> splitPoints : List.of(List.<String>of(), List.of("a/5", "b/y/"))) {
+    		S3InterfaceConfig config = S3InterfaceConfig.builder()
+    			.listingParallelism(4)
+    			.listingSplitPoints(splitPoints)
+    			.build();
+    		try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    			clearInvocations(mockS3Client);
+    			when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    				.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    			try (Stream<Resource> resources = s3Interface.streamFolder(null, true, filter)) {
+    				assertEquals(List.of("b/x/2.csv", "b/y/1.csv", "b/z.csv"), 
+    					resources.map(Resource::getId).sorted().collect(Collectors.toList()));
+    			}
+    			ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+    			verify(mockS3Client, atLeast(2)).listObjectsV2(requestCaptor.capture());
+    			for (ListObjectsV2Request request : requestCaptor.getAllValues()) {
+    				assertTrue(request.prefix().startsWith("b/"));
+    				assertTrue(request.startAfter() == null || request.startAfter().compareTo("b/x/1.csv") >= 0);
+    			}
+    			
+    			//a missing folder fails unless the filter narrows the listing, as with listFolder
+    			assertThrows(S3InterfaceException.class, () -> s3Interface.streamFolder(
+    				new Resource("missing/", "missing", 1), true, ResourceFilter.builder().maxSize(100).build()));
+    			try (Stream<Resource> resources = s3Interface.streamFolder(null, true, 
+    					ResourceFilter.builder().glob("missing/**").build())) {
+    				assertEquals(0, resources.count());
+    			}
+    		}
+    	}
+    }
+
+    @Test
+    public void testStreamFolder_StartAfterUtf8Order() throws Exception {
+    	String emoji = new String(Character.toChars(0x1F600));
+    	List<String> keys = List.of("a/\uE0001", "a/\uFFFD1", "a/" + emoji + "1");
+    	
+    	//S3 lists the supplementary chars after the chars above the surrogates, the start after follows its order
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.listingParallelism(4)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    		for (ResourceFilter filter : List.of(ResourceFilter.builder().startAfter("a/\uFFFD1").build(), 
+    				ResourceFilter.builder().glob("a/**").startAfter("a/\uFFFD1").build())) {
+    			assertFalse(filter.test(new Resource("a/\uFFFD1", "\uFFFD1", 0)));
+    			assertTrue(filter.test(new Resource("a/" + emoji + "1", emoji + "1", 0)));
+    			try (Stream<Resource> resources = s3Interface.streamFolder(null, true, filter)) {
+    				assertEquals(List.of("a/" + emoji + "1"), resources.map(Resource::getId).collect(Collectors.toList()));
+    			}
+    		}
+    	}
+    }
+
+    @Test
+    public void testStreamFolder_ShardedSlowConsumer() throws Exception {
+    	//5 pages of 10 keys per shard, far more than the queue holds
+    	List<ShardedListingIterator.Shard> shards = new ArrayList<>();
+    	for (int i = 0; i < 8; i++) {
+    		shards.add(new ShardedListingIterator.Shard("shard" + i + "/", null, null));
+    	}
+    	ShardedListingIterator.ShardLoader loader = (shard, cursor) -> {
+    		int page = (cursor == null) ? 0 : Integer.parseInt(cursor);
+    		List<Resource> resources = new ArrayList<>();
+    		for (int i = 0; i < 10; i++) {
+    			resources.add(new Resource(shard.getPrefix() + page + "-" + i, "file", 0));
+    		}
+    		return new ListResult<>(resources, page < 4 ? Integer.toString(page + 1) : null);
+    	};
+    	ExecutorService executor = Executors.newCachedThreadPool();
+    	try {
+    		ShardedListingIterator iterator = ShardedListingIterator.open(List.of(), shards, loader, executor, 2);
+    		int count = 0;
+    		while (iterator.hasNext()) {
+    			iterator.next();
+    			//the listing threads wait for room in the queue while the consumer is busy
+    			if (count++ % 100 == 0) {
+    				Thread.sleep(500);
+    			}
+    		}
+    		assertEquals(8 * 5 * 10, count);
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+
+    @Test
+    public void testConcurrencyLimit_AsyncEngine() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.engine(S3InterfaceConfig.Engine.ASYNC)
+    		.downloadThreads(4)
+    		.multipartDownloadThreads(2)
+    		.listingParallelism(2)
+    		.maxConnections(6)
+    		.maxInFlightRequests(100)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config)) {
+    		//the blocking requests stay within the connection pool, the async GETs have their own limit
+    		assertEquals(6 + 100, s3Interface.getMetrics().getConcurrencyLimit());
+    	}
+    }
+
+    @Test
+    public void testGetResourceSuccess_Throttled() throws Exception {
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.maxThrottleRetries(2)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		int initialLimit = s3Interface.getMetrics().getConcurrencyLimit();
+    		S3Exception slowDown = (S3Exception) S3Exception.builder().statusCode(503).message("SlowDown").build();
+    		when(mockS3Client.headObject(any(HeadObjectRequest.class)))
+    			.thenThrow(slowDown)
+    			.thenThrow(slowDown)
+    			.thenReturn(HeadObjectResponse.builder().contentLength(5L).build());
+    		
+    		//the throttled requests are retried and every throttle lowers the concurrency limit
+    		assertEquals(5L, s3Interface.getResource("file1.txt").getSize());
+    		verify(mockS3Client, times(3)).headObject(any(HeadObjectRequest.class));
+    		assertEquals(2, s3Interface.getMetrics().getThrottleCount());
+    		assertEquals(initialLimit / 4, s3Interface.getMetrics().getConcurrencyLimit());
+    		
+    		//the request fails once the retries are exhausted
+    		when(mockS3Client.headObject(any(HeadObjectRequest.class))).thenThrow(slowDown);
+    		assertThrows(S3InterfaceException.class, () -> s3Interface.getResource("file2.txt"));
+    		verify(mockS3Client, times(6)).headObject(any(HeadObjectRequest.class));
+    		
+    		//the client does not retry the throttled requests itself, only the other failures
+    		ArgumentCaptor<ClientOverrideConfiguration> configCaptor = 
+    			ArgumentCaptor.forClass(ClientOverrideConfiguration.class);
+    		verify(mockBuilder).overrideConfiguration(configCaptor.capture());
+    		RetryCondition retryCondition = configCaptor.getValue().retryPolicy().get().retryCondition();
+    		S3Exception internalError = (S3Exception) S3Exception.builder().statusCode(500).build();
+    		assertFalse(retryCondition.shouldRetry(RetryPolicyContext.builder()
+    			.exception(slowDown).httpStatusCode(503).build()));
+    		assertTrue(retryCondition.shouldRetry(RetryPolicyContext.builder()
+    			.exception(internalError).httpStatusCode(500).build()));
+    	}
+    }
+
+    @Test
+    public void testListAll() throws Exception {
+    	List<String> keys = new ArrayList<>();
+    	for (int i = 0; i < 40; i++) {
+    		keys.add(String.format("folder/sub%d/file-%03d.txt", i / 10, i));
+    	}
+    	keys.add("folder/\u00e9t\u00e9/");
+    	keys.add("folder/\u00e9t\u00e9/file");
+    	Instant lastModified = Instant.ofEpochMilli(1700000000000L);
+    	try (S3Interface s3Interface = getMockS3Interface()) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenReturn(ListObjectsV2Response.builder()
+    				.contents(IntStream.range(0, keys.size())
+    					.mapToObj(i -> S3Object.builder()
+    						.key(keys.get(i))
+    						.size((long) i)
+    						.eTag(i % 3 == 0 ? "\"0123456789abcdef0123456789abcdef\"" : 
+    							i % 3 == 1 ? "\"fedcba9876543210fedcba9876543210-" + i + "\"" : "other")
+    						.lastModified(i % 2 == 0 ? lastModified : null)
+    						.build())
+    					.collect(Collectors.toList()))
+    				.build());
+    		
+    		CompactResourceList resources = s3Interface.listAll(new Resource("folder/", "folder", 1));
+    		assertEquals(keys.size(), resources.size());
+    		assertEquals(keys, resources.stream().map(Resource::getId).collect(Collectors.toList()));
+    		for (int i = 0; i < keys.size(); i++) {
+    			Resource resource = resources.get(i);
+    			assertEquals(keys.get(i), resource.getId());
+    			assertEquals(i, resource.getSize());
+    			assertEquals(i % 3 == 0 ? "\"0123456789abcdef0123456789abcdef\"" : 
+    				i % 3 == 1 ? "\"fedcba9876543210fedcba9876543210-" + i + "\"" : "other", resource.getETag());
+    			assertEquals(i % 2 == 0 ? lastModified : null, resource.getLastModified());
+    		}
+    		assertEquals("file-017.txt", resources.get(17).getName());
+    		assertEquals(1, resources.get(40).getType());
+    		assertEquals("\u00e9t\u00e9", resources.get(40).getName());
+    	}
+    }
+    
+    @Test
+    public void testListingIndex() throws Exception {
+    	List<String> keys = List.of("a/", "a/1", "a/2", "b/c/1", "c", "d/1");
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.listingIndexFolder(temporaryFolder.newFolder("index").toPath())
+    		.listingIndexRefreshInterval(Duration.ZERO)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    		s3Interface.refreshListingIndex();
+    	}
+    	
+    	//the index built by the previous instance answers without any request
+    	try (S3Interface s3Interface = getMockS3Interface(config, Path.of("mock/path"))) {
+    		clearInvocations(mockS3Client);
+    		assertEquals(keys, s3Interface.listFolder(null, null).getResources().stream()
+    			.map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(List.of("a/", "b/", "c", "d/"), s3Interface.listFolder(null, null, false).getResources().stream()
+    			.map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(List.of("a/1", "a/2"), s3Interface.listFolder(new Resource("a", "a", 1), null, false)
+    			.getResources().stream().map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(1, s3Interface.getResource("a/2").getSize());
+    		assertEquals(1, s3Interface.getResource("b/").getType());
+    		assertThrows(S3InterfaceException.class, () -> s3Interface.getResource("b/c"));
+    		assertThrows(S3InterfaceException.class, () -> s3Interface.listFolder(new Resource("e/", "e", 1), null));
+    		assertEquals(Optional.empty(), s3Interface.getResources(List.of("a/1", "a/3")).get("a/3"));
+    		verifyNoInteractions(mockS3Client);
+    		
+    		//the uploads are listed before the index is rebuilt
+    		Path file = temporaryFolder.newFile("upload").toPath();
+    		when(mockS3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+    			.thenReturn(PutObjectResponse.builder().eTag("etag").build());
+    		for (String key : List.of("a/15", "b/c/2", "e/1")) {
+    			s3Interface.putFile(file, key);
+    		}
+    		assertEquals(List.of("a/", "a/1", "a/15", "a/2", "b/c/1", "b/c/2", "c", "d/1", "e/1"), 
+    			s3Interface.listFolder(null, null).getResources().stream()
+    				.map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(List.of("a/", "b/", "c", "d/", "e/"), s3Interface.listFolder(null, null, false).getResources()
+    			.stream().map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(List.of("a/1", "a/15", "a/2"), s3Interface.listFolder(new Resource("a", "a", 1), null, false)
+    			.getResources().stream().map(Resource::getId).collect(Collectors.toList()));
+    		assertEquals(List.of("e/1"), s3Interface.listFolder(new Resource("e/", "e", 1), null)
+    			.getResources().stream().map(Resource::getId).collect(Collectors.toList()));
+    	}
+    }
+    
+    @Test
+    public void testListingIndex_ConcurrentRebuilds() throws Exception {
+    	List<String> keys = IntStream.range(0, 500).mapToObj(i -> String.format("k/%05d", i))
+    		.collect(Collectors.toList());
+    	Path indexFolder = temporaryFolder.newFolder("index").toPath();
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.listingIndexFolder(indexFolder)
+    		.listingIndexRefreshInterval(Duration.ZERO)
+    		.build();
+    	ExecutorService executor = Executors.newFixedThreadPool(2);
+    	try (S3Interface first = getMockS3Interface(config, Path.of("mock/path"));
+    		 S3Interface second = getMockS3Interface(config, Path.of("mock/path"))) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenAnswer(invocation -> listKeys(keys, invocation.getArgument(0)));
+    		
+    		//the rebuilds of the instances sharing the index folder do not overwrite each other's files
+    		List<CompletableFuture<Void>> rebuilds = new ArrayList<>();
+    		for (int i = 0; i < 4; i++) {
+    			for (S3Interface s3Interface : List.of(first, second)) {
+    				rebuilds.add(CompletableFuture.runAsync(() -> {
+    					try {
+    						s3Interface.refreshListingIndex();
+    					} catch (S3InterfaceException e) {
+    						throw new UncheckedS3InterfaceException(e);
+    					}
+    				}, executor));
+    			}
+    		}
+    		CompletableFuture.allOf(rebuilds.toArray(new CompletableFuture[0])).join();
+    		
+    		for (S3Interface s3Interface : List.of(first, second)) {
+    			assertEquals(keys, s3Interface.listAll(null).stream().map(Resource::getId).collect(Collectors.toList()));
+    		}
+    		assertEquals(List.of("test-bucket.s3index", "test-bucket.s3index.lock"), listFileNames(indexFolder));
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    @Test
+    public void testFactorySharesClients() throws Exception {
+    	try (MockedStatic<S3Client> mockS3ClientStatic = 
+    			 mockStatic(S3Client.class);
+    		 MockedStatic<DefaultCredentialsProvider> mockCredentialsProviderStatic = 
+    			 mockStatic(DefaultCredentialsProvider.class);
+    		 MockedStatic<S3InterfaceHelper> mockS3InterfaceHelperStatic = 
+    			 mockStatic(S3InterfaceHelper.class, CALLS_REAL_METHODS)) {
+    		
+    		mockS3ClientStatic.when(S3Client::builder)
+    			.thenReturn(mockBuilder);
+    		mockCredentialsProviderStatic.when(DefaultCredentialsProvider::create)
+    			.thenReturn(mockCredentialsProvider);
+    		mockS3InterfaceHelperStatic.when(S3InterfaceHelper::getBaseDownloadFolder)
+    			.thenReturn(Path.of("mock/path"));
+    		mockS3InterfaceHelperStatic.when(() -> S3InterfaceHelper.createFolder(any(Path.class), any(Optional.class)))
+    			.thenAnswer(invocation -> null);
+    		when(mockBuilder.region(any(Region.class)))
+    			.thenReturn(mockBuilder);
+    		when(mockBuilder.credentialsProvider(any(AwsCredentialsProvider.class)))
+    			.thenReturn(mockBuilder);
+    		when(mockBuilder.build())
+    			.thenReturn(mockS3Client);
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenReturn(mockListObjectsV2Response);
+    		when(mockListObjectsV2Response.contents())
+    			.thenReturn(List.of(S3Object.builder().key("dummy").build()));
+    		
+    		when(mockS3Client.headObject(any(HeadObjectRequest.class)))
+    			.thenReturn(HeadObjectResponse.builder().contentLength(5L).build());
+    		
+    		S3InterfaceConfig config = S3InterfaceConfig.builder()
+    			.metadataCacheSize(10)
+    			.build();
+    		try (S3InterfaceFactory factory = new S3InterfaceFactory(config)) {
+    			//the client is built and every bucket is validated once
+    			for (int i = 0; i < 3; i++) {
+    				try (S3Interface s3Interface = factory.create("test-bucket", Region.US_EAST_1)) {
+    					assertNotNull(s3Interface.getMetrics());
+    					//the metadata cache of the bucket is shared by the instances
+    					assertEquals(5L, s3Interface.getResource("file1.txt").getSize());
+    					assertEquals(i, s3Interface.getMetadataCacheStats().getHits());
+    				}
+    			}
+    			verify(mockS3Client, times(1)).headObject(any(HeadObjectRequest.class));
+    			factory.create("other-bucket", Region.US_EAST_1).close();
+    			verify(mockBuilder, times(1)).build();
+    			verify(mockS3Client, times(2)).headBucket(any(HeadBucketRequest.class));
+    			verify(mockS3Client, never()).close();
+    			assertNotNull(factory.getMetrics(Region.US_EAST_1));
+    		}
+    		verify(mockS3Client).close();
+    	}
+    }
+    
+    @Test
+    public void testWriteFolderAsArchive() throws Exception {
+    	Map<String, byte[]> objects = new LinkedHashMap<>();
+    	objects.put("folder/", new byte[0]);
+    	objects.put("folder/a.txt", "12345".getBytes());
+    	objects.put("folder/sub/b.bin", "0123456789abcdefghijklmnopqrstuvwxyzABCD".getBytes());
+    	objects.put("folder/sub/empty", new byte[0]);
+    	S3InterfaceConfig config = S3InterfaceConfig.builder()
+    		.multipartDownloadPartSize(16)
+    		.archiveBufferBytes(32)
+    		.build();
+    	try (S3Interface s3Interface = getMockS3Interface(config)) {
+    		when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+    			.thenReturn(ListObjectsV2Response.builder()
+    				.contents(objects.entrySet().stream()
+    					.map(entry -> S3Object.builder().key(entry.getKey()).size((long) entry.getValue().length).build())
+    					.collect(Collectors.toList()))
+    				.build());
+    		when(mockS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+    			GetObjectRequest request = invocation.getArgument(0);
+    			String[] range = request.range().substring("bytes=".length()).split("-");
+    			byte[] content = Arrays.copyOfRange(objects.get(request.key()), 
+    				Integer.parseInt(range[0]), Integer.parseInt(range[1]) + 1);
+    			return new ResponseInputStream<>(GetObjectResponse.builder().build(), 
+    				AbortableInputStream.create(new ByteArrayInputStream(content)));
+    		});
+    		Resource folder = new Resource("folder/", "folder", 1);
+    		
+    		//the zip entries are named after the keys relative to the folder
+    		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    		assertEquals(3, s3Interface.writeFolderAsArchive(folder, zip, ArchiveFormat.ZIP));
+    		Map<String, byte[]> entries = new LinkedHashMap<>();
+    		try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+    			for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+    				entries.put(entry.getName(), input.readAllBytes());
+    			}
+    		}
+    		assertEquals(List.of("a.txt", "sub/b.bin", "sub/empty"), new ArrayList<>(entries.keySet()));
+    		assertArrayEquals(objects.get("folder/sub/b.bin"), entries.get("sub/b.bin"));
+    		verify(mockS3Client, times(4)).getObject(any(GetObjectRequest.class));
+    		
+    		//the tar entries are a header block followed by the content padded to the next block
+    		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    		assertEquals(3, s3Interface.writeFolderAsArchive(folder, tar, ArchiveFormat.TAR));
+    		byte[] bytes = tar.toByteArray();
+    		assertEquals(512 * (1 + 1 + 1 + 1 + 1 + 2), bytes.length);
+    		assertEquals("a.txt", new String(bytes, 0, 5, StandardCharsets.US_ASCII));
+    		assertEquals("00000000005", new String(bytes, 124, 11, StandardCharsets.US_ASCII));
+    		assertEquals("12345", new String(bytes, 512, 5, StandardCharsets.US_ASCII));
+    		assertEquals("sub/b.bin", new String(bytes, 1024, 9, StandardCharsets.US_ASCII));
+    		assertArrayEquals(objects.get("folder/sub/b.bin"), Arrays.copyOfRange(bytes, 1536, 1536 + 40));
+    	}
+    }
+    
+    /**
+     * Lists a fake bucket in pages of two entries, as S3 does with the prefix, delimiter and start after
+     */
+    private static ListObjectsV2Response listKeys(List<String> keys, ListObjectsV2Request request) {
+    	String prefix = (request.prefix() == null) ? "" : request.prefix();
+    	String after = (request.continuationToken() != null) ? request.continuationToken() : request.startAfter();
+    	List<S3Object> contents = new ArrayList<>();
+    	List<CommonPrefix> commonPrefixes = new ArrayList<>();
+    	String last = null;
+    	//S3 lists the keys in the order of their UTF-8 bytes
+    	List<String> sorted = new ArrayList<>(keys);
+    	sorted.sort(S3InterfaceTest::compareUtf8);
+    	for (String key : sorted) {
+    		if (!key.startsWith(prefix) || (after != null && compareUtf8(key, after) <= 0) ||
+    			(last != null && compareUtf8(key, last) <= 0)) {
+    			continue;
+    		}
+    		if (contents.size() + commonPrefixes.size() == 2) {
+    			return ListObjectsV2Response.builder().contents(contents).commonPrefixes(commonPrefixes)
+    				.nextContinuationToken(last).build();
+    		}
+    		int slash = key.indexOf('/', prefix.length());
+    		if (request.delimiter() != null && slash >= 0) {
+    			commonPrefixes.add(CommonPrefix.builder().prefix(key.substring(0, slash + 1)).build());
+    			last = key.substring(0, slash + 1) + new String(Character.toChars(Character.MAX_CODE_POINT));
+    		} else {
+    			contents.add(S3Object.builder().key(key).size(1L).build());
+    			last = key;
+    		}
+    	}
+    	return ListObjectsV2Response.builder().contents(contents).commonPrefixes(commonPrefixes).build();
+    }
+    
+    private static int compareUtf8(String key, String other) {
+    	return Arrays.compareUnsigned(key.getBytes(StandardCharsets.UTF_8), other.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Lists the names of the files of a folder, sorted
+     */
+    private static List<String> listFileNames(Path folder) throws IOException {
+    	try (Stream<Path> files = Files.list(folder)) {
+    		return files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+    	}
+    }
+}